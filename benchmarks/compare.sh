@@ -0,0 +1,28 @@
+#!/bin/sh
+# Runs the benchmarks against the library as of two commits and compares
+# the results. See README.txt.
+#
+# Usage: compare.sh BASE TARGET [JMH options]
+set -e
+if [ $# -lt 2 ]; then
+    echo "Usage: compare.sh BASE TARGET [JMH options]" >&2
+    exit 1
+fi
+cd "$(dirname "$0")"
+base=$(git rev-parse --short "$1")
+target=$(git rev-parse --short "$2")
+shift 2
+
+mvn -B -q package
+mkdir -p results
+for commit in $base $target; do
+    tree=target/tree-$commit
+    git worktree add -f --detach "$tree" "$commit" >/dev/null
+    (cd "$tree" && mvn -B -q compile)
+    # Library classes of the commit come first and shadow the ones in the jar
+    java -cp "$tree/target/classes:target/benchmarks.jar" org.pleasantnightmare.dbase.benchmarks.Benchmarks \
+        -rf csv -rff "results/$commit.csv" "$@"
+    git worktree remove -f "$tree"
+done
+java -cp target/benchmarks.jar org.pleasantnightmare.dbase.benchmarks.CompareResults \
+    "results/$base.csv" "results/$target.csv"
@@ -0,0 +1,33 @@
+package org.pleasantnightmare.dbase.benchmarks;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs JMH with given options, always with the GC profiler so allocation
+ * rates ({@code gc.alloc.rate.norm}, bytes per operation) are reported
+ * next to times.
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<String>(Arrays.asList(args));
+        if (!profilesGc(options)) {
+            options.add("-prof");
+            options.add("gc");
+        }
+        Main.main(options.toArray(new String[options.size()]));
+    }
+
+    private static boolean profilesGc(List<String> options) {
+        for (int i = 0; i < options.size() - 1; i++)
+            if (options.get(i).equals("-prof") && options.get(i + 1).startsWith("gc"))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,109 @@
+package org.pleasantnightmare.dbase.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files written with {@code -rf csv}, usually of
+ * two commits: prints both scores of every benchmark, parameters and
+ * secondary metric run in both, and how much the second differs. Changes
+ * within the error of either score are marked as noise.
+ * <p/>
+ * Usage: {@code CompareResults base.csv target.csv}
+ */
+public final class CompareResults {
+    private static final String PACKAGE = CompareResults.class.getPackage().getName() + ".";
+
+    private CompareResults() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults base.csv target.csv");
+            System.exit(1);
+        }
+        Map<String, Result> base = read(args[0]);
+        Map<String, Result> target = read(args[1]);
+
+        System.out.printf("%14s %14s %9s %-8s %s%n", "Base", "Target", "Change", "Unit", "Benchmark");
+        for (Map.Entry<String, Result> entry : target.entrySet()) {
+            Result before = base.get(entry.getKey());
+            Result after = entry.getValue();
+            if (before == null) {
+                System.out.printf("%14s %14.3f %9s %-8s %s%n", "-", after.score, "new", after.unit, entry.getKey());
+                continue;
+            }
+            double change = (after.score - before.score) / before.score * 100;
+            boolean noise = Math.abs(after.score - before.score) <= error(before) + error(after);
+            System.out.printf("%14.3f %14.3f %+8.1f%% %-8s %s%s%n", before.score, after.score, change, after.unit,
+                    entry.getKey(), noise ? " (noise)" : "");
+        }
+    }
+
+    private static double error(Result result) {
+        return Double.isNaN(result.error) ? 0 : result.error;
+    }
+
+    private static Map<String, Result> read(String file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<String, Result>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            List<String> header = split(reader.readLine());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> values = split(line);
+                String benchmark = values.get(header.indexOf("Benchmark"));
+                StringBuilder key = new StringBuilder(benchmark.substring(benchmark.indexOf(PACKAGE) == 0 ? PACKAGE.length() : 0));
+                for (int i = 0; i < header.size(); i++)
+                    if (header.get(i).startsWith("Param: ") && !values.get(i).isEmpty())
+                        key.append(' ').append(header.get(i).substring(7)).append('=').append(values.get(i));
+                Result result = new Result();
+                result.score = parse(values.get(header.indexOf("Score")));
+                result.error = parse(values.get(header.indexOf("Score Error (99.9%)")));
+                result.unit = values.get(header.indexOf("Unit"));
+                results.put(key.toString(), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // JMH quotes every text value; numbers are written as they are
+    private static List<String> split(String line) {
+        List<String> values = new ArrayList<String>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted) {
+                values.add(value.toString());
+                value.setLength(0);
+            } else
+                value.append(c);
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    private static class Result {
+        private double score;
+        private double error;
+        private String unit;
+    }
+}
@@ -0,0 +1,126 @@
+package org.pleasantnightmare.dbase.benchmarks;
+
+import org.pleasantnightmare.dbase.DefaultIdentified;
+
+import java.util.*;
+
+/**
+ * Rows of the shapes benchmarked: a flat one, one with fields spread over
+ * a deep class hierarchy, and one with large collection fields.
+ */
+public final class Rows {
+    static final int COLLECTION_SIZE = 1000;
+
+    private Rows() {
+    }
+
+    public static class FlatRow extends DefaultIdentified {
+        private int number;
+        private long stamp;
+        private double ratio;
+        private boolean active;
+        private String name;
+        private String description;
+
+        private FlatRow() {
+        }
+
+        public FlatRow(int number) {
+            this.number = number;
+            this.stamp = 1000000L * number;
+            this.ratio = number / 7.0;
+            this.active = number % 2 == 0;
+            this.name = "Row " + number;
+            this.description = "A somewhat longer description of row " + number;
+        }
+    }
+
+    public static class Level1 extends DefaultIdentified {
+        private int first;
+        private String firstName;
+
+        Level1() {
+        }
+
+        Level1(int number) {
+            first = number;
+            firstName = "first " + number;
+        }
+    }
+
+    public static class Level2 extends Level1 {
+        private long second;
+        private String secondName;
+
+        Level2() {
+        }
+
+        Level2(int number) {
+            super(number);
+            second = number * 2L;
+            secondName = "second " + number;
+        }
+    }
+
+    public static class Level3 extends Level2 {
+        private double third;
+        private String thirdName;
+
+        Level3() {
+        }
+
+        Level3(int number) {
+            super(number);
+            third = number * 3.0;
+            thirdName = "third " + number;
+        }
+    }
+
+    public static class Level4 extends Level3 {
+        private boolean fourth;
+        private String fourthName;
+
+        Level4() {
+        }
+
+        Level4(int number) {
+            super(number);
+            fourth = true;
+            fourthName = "fourth " + number;
+        }
+    }
+
+    public static class DeepRow extends Level4 {
+        private int fifth;
+        private String fifthName;
+
+        private DeepRow() {
+        }
+
+        public DeepRow(int number) {
+            super(number);
+            fifth = number * 5;
+            fifthName = "fifth " + number;
+        }
+    }
+
+    public static class CollectionRow extends DefaultIdentified {
+        private List<Long> list;
+        private Set<String> set;
+        private Map<String, Integer> map;
+
+        private CollectionRow() {
+        }
+
+        public CollectionRow(int size) {
+            list = new ArrayList<Long>(size);
+            set = new HashSet<String>(size);
+            map = new HashMap<String, Integer>(size);
+            for (int i = 0; i < size; i++) {
+                list.add((long) i);
+                set.add("element " + i);
+                map.put("key " + i, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.pleasantnightmare.dbase.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.pleasantnightmare.dbase.reflection.ReflectionDAO;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ReflectionDAO#serialize} and {@link ReflectionDAO#deserialize} of
+ * a single object, for every row shape and format.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    public enum Shape {
+        FLAT, DEEP, COLLECTIONS
+    }
+
+    @Param
+    public Shape shape;
+    @Param
+    public RowFormat format;
+
+    private final ReflectionDAO dao = ReflectionDAO.getInstance();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private Object row;
+    private byte[] encoded;
+
+    @Setup
+    public void encode() {
+        switch (shape) {
+            case FLAT:
+                row = new Rows.FlatRow(42);
+                break;
+            case DEEP:
+                row = new Rows.DeepRow(42);
+                break;
+            default:
+                row = new Rows.CollectionRow(Rows.COLLECTION_SIZE);
+        }
+        dao.serialize(row, out, format);
+        encoded = out.toByteArray();
+    }
+
+    @Benchmark
+    public int serialize() {
+        out.reset();
+        dao.serialize(row, out, format);
+        return out.size();
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return dao.deserialize(row.getClass(), new ByteArrayInputStream(encoded));
+    }
+}
@@ -0,0 +1,100 @@
+package org.pleasantnightmare.dbase.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Table} CRUD on tables of growing size. Tables are filled once per
+ * trial, so {@link #insert()} keeps adding rows to them; filling a million
+ * rows takes a while. Layout and format can be changed with
+ * {@code -p layout=FILE_PER_ROW -p format=XML}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class TableBenchmark {
+    private static final int BATCH = 10000;
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+    @Param("SEGMENTED")
+    public StorageLayout layout;
+    @Param("BINARY")
+    public RowFormat format;
+
+    private File root;
+    private Table<Rows.FlatRow> table;
+    private long[] ids;
+    private final Random random = new Random(1);
+    private int counter;
+
+    @Setup
+    public void fill() throws IOException {
+        root = File.createTempFile("reflectiondao-benchmark", "");
+        root.delete();
+        root.mkdirs();
+        table = new Table<Rows.FlatRow>(root, Rows.FlatRow.class, new TableOptions().layout(layout).format(format));
+
+        ids = new long[rows];
+        List<Rows.FlatRow> batch = new ArrayList<Rows.FlatRow>(BATCH);
+        for (int i = 0; i < rows; i += batch.size()) {
+            batch.clear();
+            for (int j = i; j < Math.min(rows, i + BATCH); j++)
+                batch.add(new Rows.FlatRow(j));
+            table.insertAll(batch);
+            for (int j = 0; j < batch.size(); j++)
+                ids[i + j] = batch.get(j).getId();
+        }
+        counter = rows;
+    }
+
+    @TearDown
+    public void delete() {
+        table.close();
+        delete(root);
+    }
+
+    @Benchmark
+    public long insert() {
+        Rows.FlatRow row = new Rows.FlatRow(counter++);
+        table.insert(row);
+        return row.getId();
+    }
+
+    @Benchmark
+    public Rows.FlatRow selectById() {
+        return table.selectById(ids[random.nextInt(rows)]);
+    }
+
+    @Benchmark
+    public void update() {
+        long id = ids[random.nextInt(rows)];
+        Rows.FlatRow row = new Rows.FlatRow(counter++);
+        row.setId(id);
+        table.update(id, row);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Rows.FlatRow> all() {
+        return table.all();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+}
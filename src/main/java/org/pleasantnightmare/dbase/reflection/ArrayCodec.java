@@ -0,0 +1,77 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.lang.reflect.Array;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Object arrays, in the format {@link ArrayPropertyEditor} always used:
+ * {@code [Ljava.lang.Integer;:3:(1,2,3)}. Elements are converted with
+ * the codec registered for the component type.
+ */
+final class ArrayCodec implements ValueCodec<Object[]> {
+    private static final Pattern REGEX = Pattern.compile("\\[L(.+?);:([0-9]+?):\\((.*?)\\)");
+
+    private final CodecRegistry registry;
+    private final Class<?> componentType;
+    private volatile ValueCodec<Object> componentCodec;
+
+    ArrayCodec(CodecRegistry registry, Class<?> componentType) {
+        this.registry = registry;
+        this.componentType = componentType;
+    }
+
+    public String encode(Object[] array) {
+        Class<?> clazz = array.getClass().getComponentType();
+        ValueCodec<Object> codec = clazz == componentType ? componentCodec() : registry.require(clazz);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(array.getClass().getName());
+        builder.append(':').append(array.length).append(':');
+        builder.append("(");
+        for (int i = 0; i < array.length; i++) {
+            if (i > 0)
+                builder.append(",");
+            Object o = array[i];
+            builder.append(o != null ? codec.encode(o) : "null");
+        }
+        builder.append(")");
+        return builder.toString();
+    }
+
+    public Object[] decode(String text) {
+        Matcher m = REGEX.matcher(text);
+        if (!m.matches())
+            throw new IllegalArgumentException("Cannot translate to array: " + text);
+
+        Class<?> clazz;
+        ValueCodec<Object> codec;
+        if (componentType.getName().equals(m.group(1))) {
+            clazz = componentType;
+            codec = componentCodec();
+        } else {
+            try {
+                clazz = Class.forName(m.group(1));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            codec = registry.require(clazz);
+        }
+
+        int length = Integer.parseInt(m.group(2));
+        Object[] array = (Object[]) Array.newInstance(clazz, length);
+        String[] data = m.group(3).split(",");
+        for (int i = 0; i < array.length; i++)
+            array[i] = "null".equals(data[i]) ? null : codec.decode(data[i]);
+        return array;
+    }
+
+    private ValueCodec<Object> componentCodec() {
+        ValueCodec<Object> codec = componentCodec;
+        if (codec == null) {
+            codec = registry.require(componentType);
+            componentCodec = codec;
+        }
+        return codec;
+    }
+}
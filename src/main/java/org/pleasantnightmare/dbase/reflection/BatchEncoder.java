@@ -0,0 +1,85 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serializes rows of a batch, split between a few worker threads when
+ * there are enough of them to be worth it.
+ */
+final class BatchEncoder {
+    // Below this, handing rows to other threads costs more than it saves
+    private static final int PARALLEL_THRESHOLD = 64;
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "reflection-dao-encoder-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private BatchEncoder() {
+    }
+
+    /**
+     * @param schemas schemas of the table the rows are for, or {@code null}
+     * @return serialized rows, in order of given objects
+     */
+    static byte[][] encode(final List<?> objects, final RowFormat format, final SchemaCatalog schemas) {
+        final byte[][] rows = new byte[objects.size()][];
+        int slices = Math.min(THREADS, objects.size() / PARALLEL_THRESHOLD);
+        if (slices <= 1) {
+            encode(objects, format, schemas, rows, 0, rows.length);
+            return rows;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(slices - 1);
+        int sliceSize = (rows.length + slices - 1) / slices;
+        for (int start = sliceSize; start < rows.length; start += sliceSize) {
+            final int from = start;
+            final int to = Math.min(start + sliceSize, rows.length);
+            futures.add(WORKERS.submit(new Runnable() {
+                public void run() {
+                    encode(objects, format, schemas, rows, from, to);
+                }
+            }));
+        }
+        encode(objects, format, schemas, rows, 0, sliceSize);
+
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while serializing rows", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+        return rows;
+    }
+
+    private static void encode(List<?> objects, RowFormat format, SchemaCatalog schemas, byte[][] rows, int from, int to) {
+        BinaryOutput row = BinaryOutput.acquire();
+        try {
+            for (int i = from; i < to; i++) {
+                row.reset();
+                ReflectionDAO.getInstance().serialize(objects.get(i), row, format, schemas);
+                rows[i] = Arrays.copyOf(row.array(), row.size());
+            }
+        } finally {
+            row.release();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.pleasantnightmare.dbase.reflection.BinaryFormat.*;
+
+/**
+ * Changed fields of a binary row (see {@link BinaryFormat}), stored in
+ * place of the whole row and merged back into it when read. Works on
+ * encoded bytes alone: values are copied around, never decoded.
+ * <p/>
+ * Layout is {@code class schema fingerprint (8) | changed field count (varint)},
+ * followed by {@code field position (varint) | value} for every changed
+ * field, by ascending position; values are encoded as they are in rows.
+ */
+final class BinaryDelta {
+    private static final int FINGERPRINT_OFFSET = HEADER.length + 1;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * @param row      binary row, in the first {@code length} bytes
+     * @param previous {@link RowSnapshots#hash field hashes} of the stored row
+     * @param current  field hashes of given row
+     * @return delta turning stored row into given one, or {@code null} if
+     *         rows aren't of the same schema or most of the row changed
+     */
+    static byte[] of(byte[] row, int length, long[] previous, long[] current) {
+        // First hash covers header, fingerprint and field count
+        if (previous.length != current.length || current.length < 2 || previous[0] != current[0])
+            return null;
+        int[] bounds = fieldBounds(ByteBuffer.wrap(row, 0, length));
+        if (bounds == null)
+            return null;
+
+        BinaryOutput out = new BinaryOutput();
+        out.writeBytes(row, FINGERPRINT_OFFSET, 8);
+        int changed = 0;
+        for (int i = 1; i < current.length; i++) {
+            if (previous[i] != current[i])
+                changed++;
+        }
+        out.writeVarLong(changed);
+        for (int i = 1; i < current.length; i++) {
+            if (previous[i] != current[i]) {
+                out.writeVarLong(i - 1);
+                out.writeBytes(row, bounds[i - 1], bounds[i] - bounds[i - 1]);
+            }
+        }
+        // Past half of the row, rewriting it whole keeps reads cheaper
+        if (out.size() * 2 > length)
+            return null;
+        return Arrays.copyOf(out.array(), out.size());
+    }
+
+    /**
+     * @return stored row with changes of given delta applied
+     */
+    static ByteBuffer merge(ByteBuffer base, ByteBuffer delta) {
+        byte[] row = toArray(base);
+        int[] bounds = fieldBounds(ByteBuffer.wrap(row));
+        if (bounds == null)
+            throw new IllegalStateException("Deserialization error: delta of a row that is not binary");
+
+        ByteBuffer changes = delta.duplicate();
+        if (changes.getLong() != ByteBuffer.wrap(row).getLong(FINGERPRINT_OFFSET))
+            throw new IllegalStateException("Deserialization error: delta doesn't match schema of its row");
+
+        BinaryOutput out = new BinaryOutput(row.length + changes.remaining());
+        out.writeBytes(row, 0, bounds[0]);
+        long remaining = readVarLong(changes);
+        long next = remaining > 0 ? readVarLong(changes) : -1;
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            if (i == next) {
+                int from = changes.position();
+                skipValue(changes);
+                byte[] value = new byte[changes.position() - from];
+                ByteBuffer copy = changes.duplicate();
+                copy.position(from);
+                copy.get(value);
+                out.writeBytes(value, 0, value.length);
+                next = --remaining > 0 ? readVarLong(changes) : -1;
+            } else {
+                out.writeBytes(row, bounds[i], bounds[i + 1] - bounds[i]);
+            }
+        }
+        if (remaining > 0)
+            throw new IllegalStateException("Deserialization error: delta of field " + next + " past end of row");
+        return ByteBuffer.wrap(out.array(), 0, out.size());
+    }
+
+    /**
+     * @return where fields of given row start and end, relative to its
+     *         position: element 0 is start of the first field, element
+     *         {@code i + 1} end of field {@code i}; {@code null} if row
+     *         is not binary
+     */
+    static int[] fieldBounds(ByteBuffer row) {
+        ByteBuffer buffer = row.duplicate();
+        int start = buffer.position();
+        if (buffer.remaining() < FINGERPRINT_OFFSET + 8 + 1)
+            return null;
+        for (byte b : HEADER) {
+            if (buffer.get() != b)
+                return null;
+        }
+        if (buffer.get() != VERSION)
+            return null;
+
+        buffer.position(start + FINGERPRINT_OFFSET + 8);
+        long count = readVarLong(buffer);
+        if (count < 0 || count > buffer.remaining())
+            return null;
+        int[] bounds = new int[(int) count + 1];
+        bounds[0] = buffer.position() - start;
+        for (int i = 0; i < count; i++) {
+            skipValue(buffer);
+            bounds[i + 1] = buffer.position() - start;
+        }
+        return bounds;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
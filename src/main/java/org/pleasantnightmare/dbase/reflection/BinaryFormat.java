@@ -0,0 +1,156 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of binary rows:
+ * <pre>
+ * magic (0xB1 'R' 'D'), version byte
+ * class schema fingerprint (8 bytes, see {@link ClassPlan#getFingerprint()})
+ * field count (varint)
+ * field values, in {@link ClassPlan} order
+ * </pre>
+ * Every value starts with a tag byte. Integral numbers are zig-zag
+ * varints, floating point numbers are stored as their raw bits, strings
+ * as length-prefixed UTF-8, and anything else as length-prefixed text of
+ * its {@link ValueCodec}. Collections carry their byte length (so readers
+ * can skip them), element count and element class name, followed by the
+ * elements themselves. Objects of classes without a codec are embedded
+ * with their byte length, class name, schema fingerprint and field count,
+ * followed by their field values; objects embedded before fingerprints
+ * were recorded lack one. A value of a field whose declared type has no
+ * codec, such as {@code Object}, while the value's class has one, is
+ * prefixed with that class's name. Numeric primitive arrays, and lists and sets of numbers
+ * of one type, are packed blocks (see {@link PackedArrays}): byte length,
+ * container and element type bytes, then the raw values.
+ */
+final class BinaryFormat {
+    static final byte MAGIC = (byte) 0xB1;
+    static final byte[] HEADER = {MAGIC, 'R', 'D'};
+    static final byte VERSION = 1;
+
+    static final byte TAG_NULL = 0;
+    static final byte TAG_VARINT = 1;
+    static final byte TAG_DOUBLE = 2;
+    static final byte TAG_FLOAT = 3;
+    static final byte TAG_TRUE = 4;
+    static final byte TAG_FALSE = 5;
+    static final byte TAG_STRING = 6;
+    static final byte TAG_TEXT = 7;
+    static final byte TAG_LIST = 8;
+    static final byte TAG_SET = 9;
+    static final byte TAG_MAP = 10;
+    // Embedded object without schema fingerprint, as written before
+    static final byte TAG_OBJECT = 11;
+    static final byte TAG_PACKED = 12;
+    static final byte TAG_TYPED = 13;
+    static final byte TAG_EMBEDDED = 14;
+
+    // Containers of packed blocks
+    static final byte PACKED_ARRAY = 0;
+    static final byte PACKED_LIST = 1;
+    static final byte PACKED_SET = 2;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * XML rows start with '<' (or whitespace), binary ones with {@link #MAGIC}.
+     */
+    static boolean isBinary(int firstByte) {
+        return (byte) firstByte == MAGIC;
+    }
+
+    /**
+     * @return schema fingerprint of binary row starting at buffer's position
+     */
+    static long fingerprintOf(ByteBuffer row) {
+        return row.getLong(row.position() + HEADER.length + 1);
+    }
+
+    static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalStateException("Deserialization error: malformed varint");
+    }
+
+    static long readSignedVarLong(ByteBuffer buffer) {
+        long v = readVarLong(buffer);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static int readLength(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining())
+            throw new IllegalStateException("Deserialization error: length " + length + " past end of row");
+        return (int) length;
+    }
+
+    /**
+     * Reads number of elements that follow, each taking at least given
+     * number of bytes, so a corrupt count can't size a huge collection.
+     */
+    static int readCount(ByteBuffer buffer, int minElementSize) {
+        long count = readVarLong(buffer);
+        if (count < 0 || count > buffer.remaining() / minElementSize)
+            throw new IllegalStateException("Deserialization error: " + count + " elements past end of row");
+        return (int) count;
+    }
+
+    /**
+     * Moves past next value; collections are skipped whole, by their length.
+     */
+    static void skipValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+            case TAG_TRUE:
+            case TAG_FALSE:
+                break;
+            case TAG_VARINT:
+            case TAG_FLOAT:
+                readVarLong(buffer);
+                break;
+            case TAG_DOUBLE:
+                buffer.position(buffer.position() + 8);
+                break;
+            case TAG_STRING:
+            case TAG_TEXT:
+            case TAG_LIST:
+            case TAG_SET:
+            case TAG_MAP:
+            case TAG_OBJECT:
+            case TAG_EMBEDDED:
+            case TAG_PACKED:
+                int length = readLength(buffer);
+                buffer.position(buffer.position() + length);
+                break;
+            case TAG_TYPED:
+                int nameLength = readLength(buffer);
+                buffer.position(buffer.position() + nameLength);
+                skipValue(buffer);
+                break;
+            default:
+                throw new IllegalStateException("Deserialization error: unknown value tag " + tag);
+        }
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = readLength(buffer);
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, BinaryOutput.UTF8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, BinaryOutput.UTF8);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,286 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer rows are encoded into before being written out in
+ * one go.
+ * <p/>
+ * Every thread has one to {@link #acquire()} and {@link #release()} again,
+ * so encoding rows one after another reuses the same bytes. Encoding
+ * nested in another on the same thread, by a {@link ValueCodec} that
+ * serializes objects of its own, gets a new buffer.
+ */
+final class BinaryOutput {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    // Buffers grown past this aren't kept, so one huge row doesn't hold memory forever
+    private static final int MAX_POOLED = 1024 * 1024;
+    private static final ThreadLocal<BinaryOutput> POOL = new ThreadLocal<BinaryOutput>();
+
+    private byte[] bytes;
+    private int size;
+    private boolean acquired;
+    private Utf8Writer writer;
+
+    BinaryOutput() {
+        this(256);
+    }
+
+    BinaryOutput(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /**
+     * @return empty buffer of this thread; {@link #release()} it when done
+     */
+    static BinaryOutput acquire() {
+        BinaryOutput out = POOL.get();
+        if (out == null || out.acquired) {
+            out = new BinaryOutput(1024);
+            if (POOL.get() == null)
+                POOL.set(out);
+        }
+        out.acquired = true;
+        out.reset();
+        return out;
+    }
+
+    /**
+     * Hands buffer back to its thread; its contents are not to be used any more.
+     */
+    void release() {
+        acquired = false;
+        if (bytes.length > MAX_POOLED && POOL.get() == this)
+            POOL.remove();
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] array() {
+        return bytes;
+    }
+
+    void reset() {
+        size = 0;
+        if (writer != null)
+            writer.highSurrogate = 0;
+    }
+
+    void writeByte(int b) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) b;
+    }
+
+    void writeBytes(byte[] b, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(b, offset, bytes, size, length);
+        size += length;
+    }
+
+    void writeLong(long v) {
+        ensureCapacity(8);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            bytes[size++] = (byte) (v >>> shift);
+    }
+
+    /**
+     * Unsigned LEB128, 1 byte for values under 128.
+     */
+    void writeVarLong(long v) {
+        ensureCapacity(10);
+        while ((v & ~0x7FL) != 0) {
+            bytes[size++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        bytes[size++] = (byte) v;
+    }
+
+    /**
+     * Zig-zag encoded, so small negative numbers stay small too.
+     */
+    void writeSignedVarLong(long v) {
+        writeVarLong((v << 1) ^ (v >> 63));
+    }
+
+    /**
+     * Writes UTF-8 bytes of given string, prefixed with their count. Same
+     * bytes as {@link String#getBytes} gives, without making a copy.
+     */
+    void writeString(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80)
+                length++;
+            else if (c < 0x800)
+                length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c))
+                length++;
+            else
+                length += 3;
+        }
+        writeVarLong(length);
+        writeChars(s, 0, s.length());
+    }
+
+    /**
+     * Writes UTF-8 bytes of given characters; unpaired surrogates are
+     * written as {@code '?'}, as by {@link String#getBytes}.
+     */
+    private void writeChars(CharSequence s, int offset, int length) {
+        ensureCapacity(length * 3);
+        for (int i = offset, end = offset + length; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[size++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | c >> 6);
+                bytes[size++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else if (Character.isSurrogate(c)) {
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | c >> 12);
+                bytes[size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[size++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+        // Pair of chars, 6 bytes of room reserved for them
+        bytes[size++] = (byte) (0xF0 | codePoint >> 18);
+        bytes[size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+        bytes[size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+        bytes[size++] = (byte) (0x80 | codePoint & 0x3F);
+    }
+
+    /**
+     * Reserves next {@code length} bytes, for bulk writes of primitives.
+     *
+     * @return big-endian buffer over the reserved bytes
+     */
+    ByteBuffer claim(int length) {
+        ensureCapacity(length);
+        ByteBuffer claimed = ByteBuffer.wrap(bytes, size, length).slice();
+        size += length;
+        return claimed;
+    }
+
+    /**
+     * Moves everything written since given size forward, to put its length
+     * in front of it the way {@link #writeVarLong} would.
+     */
+    void insertLength(int from) {
+        int length = size - from;
+        int prefix = 1;
+        for (long v = length; (v & ~0x7FL) != 0; v >>>= 7)
+            prefix++;
+        ensureCapacity(prefix);
+        System.arraycopy(bytes, from, bytes, from + prefix, length);
+        int end = size + prefix;
+        size = from;
+        writeVarLong(length);
+        size = end;
+    }
+
+    /**
+     * @return writer of UTF-8 text into this buffer, the same one every time
+     */
+    Writer writer() {
+        if (writer == null)
+            writer = new Utf8Writer();
+        return writer;
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, 0, size);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+    }
+
+    /**
+     * Encodes as {@link java.io.OutputStreamWriter} would, including
+     * surrogate pairs split between writes.
+     */
+    private final class Utf8Writer extends Writer {
+        private char highSurrogate;
+
+        @Override
+        public void write(int c) {
+            write((char) c);
+        }
+
+        private void write(char c) {
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    ensureCapacity(4);
+                    writeCodePoint(Character.toCodePoint(high, c));
+                    return;
+                }
+                writeByte('?');
+            }
+            if (Character.isHighSurrogate(c))
+                highSurrogate = c;
+            else if (c < 0x80)
+                writeByte(c);
+            else
+                writeChars(String.valueOf(c), 0, 1);
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            if (length == 0)
+                return;
+            if (highSurrogate != 0) {
+                write(text.charAt(offset));
+                offset++;
+                length--;
+            }
+            // A pair split between this write and the next is kept for the next
+            if (length > 0 && Character.isHighSurrogate(text.charAt(offset + length - 1))) {
+                writeChars(text, offset, length - 1);
+                highSurrogate = text.charAt(offset + length - 1);
+            } else {
+                writeChars(text, offset, length);
+            }
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            write(new String(chars, offset, length), 0, length);
+        }
+
+        /**
+         * Keeps a trailing high surrogate waiting for its pair, as the JDK
+         * does; it is written, as {@code '?'}, only on {@link #close()}.
+         */
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                writeByte('?');
+            }
+        }
+    }
+}
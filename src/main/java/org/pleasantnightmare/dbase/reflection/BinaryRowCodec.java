@@ -0,0 +1,459 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.pleasantnightmare.dbase.reflection.BinaryFormat.*;
+
+/**
+ * Compact binary rows, see {@link BinaryFormat} for the layout. Numbers,
+ * booleans and strings skip text conversion entirely; other scalars are
+ * stored as the text of their {@link ValueCodec}.
+ */
+final class BinaryRowCodec implements RowCodec {
+    private final CodecRegistry codecs;
+
+    BinaryRowCodec(CodecRegistry codecs) {
+        this.codecs = codecs;
+    }
+
+    public void write(ClassPlan<?> plan, Object o, OutputStream outputStream) {
+        BinaryOutput out = BinaryOutput.acquire();
+        try {
+            write(plan, o, out, null);
+            out.writeTo(outputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Appends row to given buffer.
+     *
+     * @param schemas schemas of the table the row is for, to record those
+     *                of embedded objects in; or {@code null}
+     */
+    void write(ClassPlan<?> plan, Object o, BinaryOutput out, SchemaCatalog schemas) {
+        out.writeBytes(HEADER, 0, HEADER.length);
+        out.writeByte(VERSION);
+        out.writeLong(plan.getFingerprint());
+
+        List<FieldPlan> fields = plan.getFields();
+        out.writeVarLong(fields.size());
+        for (FieldPlan field : fields)
+            writeValue(out, field.getKind(), field.getCodec(), field.get(o), schemas);
+    }
+
+    private void writeValue(BinaryOutput out, FieldPlan.Kind kind, ValueCodec<Object> codec, Object value, SchemaCatalog schemas) {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+
+        switch (kind) {
+            case LIST:
+                writeCollection(out, TAG_LIST, (List<?>) value, schemas);
+                break;
+            case SET:
+                writeCollection(out, TAG_SET, (Set<?>) value, schemas);
+                break;
+            case MAP:
+                writeMap(out, (Map<?, ?>) value, schemas);
+                break;
+            default:
+                writeScalar(out, codec, value, schemas);
+        }
+    }
+
+    /**
+     * @param codec codec of the declared type; {@code null} if it has none,
+     *              in which case value is embedded, or its class recorded
+     */
+    private void writeScalar(BinaryOutput out, ValueCodec<Object> codec, Object value, SchemaCatalog schemas) {
+        Class<?> type = value.getClass();
+        if (codec == null && PackedArrays.arrayTypeOf(type) == PackedArrays.NONE) {
+            codec = codecs.find(type);
+            if (codec == null) {
+                writeObject(out, value, schemas);
+                return;
+            }
+            // Declared type, such as Object, doesn't tell how to read it back
+            out.writeByte(TAG_TYPED);
+            out.writeString(type.getName());
+        }
+
+        if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class) {
+            out.writeByte(TAG_VARINT);
+            out.writeSignedVarLong(((Number) value).longValue());
+        } else if (type == Character.class) {
+            out.writeByte(TAG_VARINT);
+            out.writeSignedVarLong((Character) value);
+        } else if (type == Double.class) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (type == Float.class) {
+            out.writeByte(TAG_FLOAT);
+            out.writeVarLong(Float.floatToRawIntBits((Float) value) & 0xFFFFFFFFL);
+        } else if (type == Boolean.class) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (type == String.class) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (PackedArrays.arrayTypeOf(type) != PackedArrays.NONE) {
+            writeArray(out, PackedArrays.arrayTypeOf(type), value);
+        } else {
+            out.writeByte(TAG_TEXT);
+            out.writeString(codec.encode(value));
+        }
+    }
+
+    private static void writeArray(BinaryOutput out, int type, Object array) {
+        int length = PackedArrays.byteLength(type, Array.getLength(array));
+        out.writeByte(TAG_PACKED);
+        out.writeVarLong(2 + length);
+        out.writeByte(PACKED_ARRAY);
+        out.writeByte(type);
+        PackedArrays.put(out.claim(length), array);
+    }
+
+    private void writeObject(BinaryOutput out, Object value, SchemaCatalog schemas) {
+        ClassPlan<Object> plan = codecs.embeddedPlan(value.getClass());
+        // Before any object of the class as it is now gets written
+        if (schemas != null)
+            schemas.register(plan);
+        out.writeByte(TAG_EMBEDDED);
+        int start = out.size();
+        out.writeString(plan.getType().getName());
+        out.writeLong(plan.getFingerprint());
+        List<FieldPlan> fields = plan.getFields();
+        out.writeVarLong(fields.size());
+        for (FieldPlan field : fields)
+            writeValue(out, field.getKind(), field.getCodec(), field.get(value), schemas);
+        out.insertLength(start);
+    }
+
+    private void writeCollection(BinaryOutput out, byte tag, Collection<?> collection, SchemaCatalog schemas) {
+        Class<?> genericType = !collection.isEmpty() ? collection.iterator().next().getClass() : null;
+        int packed = genericType != null ? PackedArrays.typeOf(collection, genericType) : PackedArrays.NONE;
+        if (packed != PackedArrays.NONE) {
+            int length = PackedArrays.byteLength(packed, collection.size());
+            out.writeByte(TAG_PACKED);
+            out.writeVarLong(2 + length);
+            out.writeByte(tag == TAG_SET ? PACKED_SET : PACKED_LIST);
+            out.writeByte(packed);
+            PackedArrays.put(out.claim(length), collection, packed);
+            return;
+        }
+
+        out.writeByte(tag);
+        int start = out.size();
+        out.writeVarLong(collection.size());
+        if (genericType != null) {
+            ValueCodec<Object> codec = codecs.find(genericType);
+            out.writeString(genericType.getName());
+            for (Object o : collection)
+                writeElement(out, genericType, codec, o, schemas);
+        }
+        out.insertLength(start);
+    }
+
+    private void writeMap(BinaryOutput out, Map<?, ?> map, SchemaCatalog schemas) {
+        out.writeByte(TAG_MAP);
+        int start = out.size();
+        out.writeVarLong(map.size());
+        if (!map.isEmpty()) {
+            Map.Entry<?, ?> classDeterminingEntry = map.entrySet().iterator().next();
+            Class<?> keyGenericType = classDeterminingEntry.getKey().getClass();
+            Class<?> valueGenericType = classDeterminingEntry.getValue().getClass();
+            ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+            ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+            out.writeString(keyGenericType.getName());
+            out.writeString(valueGenericType.getName());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeElement(out, keyGenericType, keyCodec, entry.getKey(), schemas);
+                writeElement(out, valueGenericType, valueCodec, entry.getValue(), schemas);
+            }
+        }
+        out.insertLength(start);
+    }
+
+    private void writeElement(BinaryOutput out, Class<?> genericType, ValueCodec<Object> codec, Object o, SchemaCatalog schemas) {
+        if (o == null) {
+            out.writeByte(TAG_NULL);
+            return;
+        }
+        Class<?> type = o.getClass();
+        writeValue(out, FieldPlan.kindOf(type), type == genericType ? codec : null, o, schemas);
+    }
+
+    public <T> T read(ClassPlan<T> plan, InputStream inputStream) {
+        return read(plan, ByteBuffer.wrap(readFully(inputStream)), null);
+    }
+
+    /**
+     * @param schemas schemas rows of the class were written in before, to
+     *                read rows of those by field name; or {@code null}
+     */
+    <T> T read(ClassPlan<T> plan, ByteBuffer buffer, SchemaCatalog schemas) {
+        try {
+            checkHeader(buffer);
+            List<FieldPlan> fields = plan.getFields();
+            int[] targets = targets(plan, buffer.getLong(), schemas);
+            long count = readVarLong(buffer);
+
+            if (targets == null && count < fields.size())
+                throw new IllegalStateException("Deserialization error: stored object has fewer fields than class '" + plan.getType().getName() + "'");
+            T object = plan.newInstance();
+            readInto(plan, object, buffer, targets, count, schemas);
+            return object;
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalStateException)
+                throw e;
+            throw new IllegalStateException("Deserialization error: corrupt binary row", e);
+        }
+    }
+
+    public void readFields(ClassPlan<?> plan, InputStream inputStream, Projection projection, Object[] values) {
+        readFields(plan, ByteBuffer.wrap(readFully(inputStream)), projection, values, null);
+    }
+
+    void readFields(ClassPlan<?> plan, ByteBuffer buffer, Projection projection, Object[] values, SchemaCatalog schemas) {
+        try {
+            checkHeader(buffer);
+            List<FieldPlan> fields = plan.getFields();
+            int[] targets = targets(plan, buffer.getLong(), schemas);
+            long count = readVarLong(buffer);
+
+            if (targets == null) {
+                if (count < fields.size())
+                    throw new IllegalStateException("Deserialization error: stored object has fewer fields than class '" + plan.getType().getName() + "'");
+                for (int i = 0, last = projection.getLast(); i <= last; i++) {
+                    FieldPlan field = fields.get(i);
+                    if (projection.includes(i))
+                        values[i] = readValue(buffer, field.getType(), field.getCodec(), schemas);
+                    else
+                        skipValue(buffer);
+                }
+                return;
+            }
+
+            // Older schema, wanted fields may be anywhere in the row, or not in it
+            checkCount(count, targets);
+            projection.clear(fields, values);
+            for (int target : targets) {
+                if (target >= 0 && projection.includes(target)) {
+                    FieldPlan field = fields.get(target);
+                    values[target] = readValue(buffer, field.getType(), field.getCodec(), schemas);
+                } else {
+                    skipValue(buffer);
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        } catch (RuntimeException e) {
+            if (e instanceof IllegalStateException)
+                throw e;
+            throw new IllegalStateException("Deserialization error: corrupt binary row", e);
+        }
+    }
+
+    /**
+     * Reads fields of row or embedded object into given object.
+     *
+     * @param targets {@code null} to read fields in plan order, otherwise
+     *                where fields of an older schema go
+     */
+    private <T> void readInto(ClassPlan<T> plan, T object, ByteBuffer buffer, int[] targets, long count, SchemaCatalog schemas)
+            throws ClassNotFoundException {
+        List<FieldPlan> fields = plan.getFields();
+        if (targets == null) {
+            for (FieldPlan field : fields)
+                field.set(object, readValue(buffer, field.getType(), field.getCodec(), schemas));
+            return;
+        }
+
+        checkCount(count, targets);
+        for (int target : targets) {
+            if (target < 0) {
+                skipValue(buffer);
+                continue;
+            }
+            FieldPlan field = fields.get(target);
+            field.set(object, readValue(buffer, field.getType(), field.getCodec(), schemas));
+        }
+    }
+
+    /**
+     * @return {@code null} if row is of the plan's own schema, otherwise
+     *         where its fields go, see {@link SchemaCatalog#binding}
+     */
+    private static int[] targets(ClassPlan<?> plan, long fingerprint, SchemaCatalog schemas) {
+        if (fingerprint == plan.getFingerprint())
+            return null;
+        int[] targets = schemas != null ? schemas.binding(fingerprint, plan) : null;
+        if (targets == null)
+            throw new IllegalStateException("Deserialization error: stored object doesn't match schema of class '" + plan.getType().getName() + "'");
+        return targets;
+    }
+
+    private static void checkCount(long count, int[] targets) {
+        if (count != targets.length)
+            throw new IllegalStateException("Deserialization error: stored object has " + count + " fields, its schema " + targets.length);
+    }
+
+    private static void checkHeader(ByteBuffer buffer) {
+        for (byte b : HEADER) {
+            if (buffer.get() != b)
+                throw new IllegalStateException("Deserialization error: not a binary row");
+        }
+        byte version = buffer.get();
+        if (version != VERSION)
+            throw new IllegalStateException("Deserialization error: unknown binary row version " + version);
+    }
+
+    private Object readValue(ByteBuffer buffer, Class<?> type, ValueCodec<Object> codec, SchemaCatalog schemas) throws ClassNotFoundException {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_VARINT:
+                return fromLong(readSignedVarLong(buffer), type);
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(buffer.getLong());
+            case TAG_FLOAT:
+                return Float.intBitsToFloat((int) readVarLong(buffer));
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_STRING:
+            case TAG_TEXT:
+                String text = readString(buffer);
+                if (type == String.class)
+                    return text;
+                if (codec == null)
+                    codec = codecs.require(type);
+                return codec.decode(text);
+            case TAG_TYPED:
+                Class<?> valueType = Class.forName(readString(buffer));
+                return readValue(buffer, valueType, codecs.find(valueType), schemas);
+            case TAG_LIST:
+            case TAG_SET:
+                readLength(buffer);
+                return readCollection(buffer, tag == TAG_SET, schemas);
+            case TAG_MAP:
+                readLength(buffer);
+                return readMap(buffer, schemas);
+            case TAG_OBJECT:
+            case TAG_EMBEDDED:
+                readLength(buffer);
+                return readObject(buffer, tag == TAG_EMBEDDED, schemas);
+            case TAG_PACKED:
+                return readPacked(buffer);
+            default:
+                throw new IllegalStateException("Deserialization error: unknown value tag " + tag);
+        }
+    }
+
+    private static Object fromLong(long v, Class<?> type) {
+        if (type == int.class || type == Integer.class)
+            return (int) v;
+        if (type == long.class || type == Long.class)
+            return v;
+        if (type == short.class || type == Short.class)
+            return (short) v;
+        if (type == byte.class || type == Byte.class)
+            return (byte) v;
+        if (type == char.class || type == Character.class)
+            return (char) v;
+        throw new IllegalStateException("Deserialization error: cannot store integral number into " + type);
+    }
+
+    private Collection<Object> readCollection(ByteBuffer buffer, boolean set, SchemaCatalog schemas) throws ClassNotFoundException {
+        // Each element has at least its tag
+        int size = readCount(buffer, 1);
+        if (size == 0)
+            // Same as XML rows, where empty collections have no type to go by
+            return set ? new HashSet<Object>() : new LinkedList<Object>();
+
+        Class<?> genericType = Class.forName(readString(buffer));
+        ValueCodec<Object> codec = codecs.find(genericType);
+        Collection<Object> returnable = set ? new HashSet<Object>(hashCapacity(size)) : new ArrayList<Object>(size);
+        for (int i = 0; i < size; i++)
+            returnable.add(readValue(buffer, genericType, codec, schemas));
+        return returnable;
+    }
+
+    private static Object readPacked(ByteBuffer buffer) {
+        int length = readLength(buffer) - 2;
+        byte container = buffer.get();
+        byte type = buffer.get();
+        if (length < 0 || type < 0 || type > 5)
+            throw new IllegalStateException("Deserialization error: malformed packed block");
+        int count = PackedArrays.length(type, length);
+        if (container == PACKED_ARRAY)
+            return PackedArrays.get(buffer, type, count);
+        return PackedArrays.getAll(buffer, type, count, container == PACKED_SET);
+    }
+
+    /**
+     * @param withSchema whether object carries its schema fingerprint;
+     *                   objects embedded before schemas were recorded are
+     *                   read by position
+     */
+    private Object readObject(ByteBuffer buffer, boolean withSchema, SchemaCatalog schemas) throws ClassNotFoundException {
+        ClassPlan<Object> plan = codecs.embeddedPlan(Class.forName(readString(buffer)));
+        int[] targets = withSchema ? targets(plan, buffer.getLong(), schemas) : null;
+        long count = readVarLong(buffer);
+        if (targets == null && count != plan.getFields().size())
+            throw new IllegalStateException("Deserialization error: stored object doesn't match schema of class '" + plan.getType().getName() + "'");
+
+        Object object = plan.newInstance();
+        readInto(plan, object, buffer, targets, count, schemas);
+        return object;
+    }
+
+    private Map<?, ?> readMap(ByteBuffer buffer, SchemaCatalog schemas) throws ClassNotFoundException {
+        // Each entry has at least tags of its key and value
+        int size = readCount(buffer, 2);
+        if (size == 0)
+            return new HashMap<Object, Object>();
+
+        Class<?> keyGenericType = Class.forName(readString(buffer));
+        Class<?> valueGenericType = Class.forName(readString(buffer));
+        ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+        ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+        Map<Object, Object> returnable = new HashMap<Object, Object>(hashCapacity(size));
+        for (int i = 0; i < size; i++) {
+            Object key = readValue(buffer, keyGenericType, keyCodec, schemas);
+            returnable.put(key, readValue(buffer, valueGenericType, valueCodec, schemas));
+        }
+        return returnable;
+    }
+
+    private static int hashCapacity(int size) {
+        return (int) Math.min(2L * size, Integer.MAX_VALUE);
+    }
+
+    static byte[] readFully(InputStream inputStream) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1)
+                bytes.write(chunk, 0, read);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
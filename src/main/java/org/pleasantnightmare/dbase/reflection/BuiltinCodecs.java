@@ -0,0 +1,154 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+/**
+ * Codecs for primitives, their wrappers and strings, and for {@link Ref}s.
+ * Text format is the same one the JDK property editors used to produce,
+ * so rows stored before codecs were introduced still read.
+ */
+final class BuiltinCodecs {
+    static final ValueCodec<String> STRING = new ValueCodec<String>() {
+        public String encode(String value) {
+            return value;
+        }
+
+        public String decode(String text) {
+            return text;
+        }
+    };
+
+    static final ValueCodec<Integer> INTEGER = new ValueCodec<Integer>() {
+        public String encode(Integer value) {
+            return value.toString();
+        }
+
+        public Integer decode(String text) {
+            return Integer.valueOf(Integer.parseInt(text));
+        }
+    };
+
+    static final ValueCodec<Long> LONG = new ValueCodec<Long>() {
+        public String encode(Long value) {
+            return value.toString();
+        }
+
+        public Long decode(String text) {
+            return Long.valueOf(Long.parseLong(text));
+        }
+    };
+
+    static final ValueCodec<Short> SHORT = new ValueCodec<Short>() {
+        public String encode(Short value) {
+            return value.toString();
+        }
+
+        public Short decode(String text) {
+            return Short.valueOf(Short.parseShort(text));
+        }
+    };
+
+    static final ValueCodec<Byte> BYTE = new ValueCodec<Byte>() {
+        public String encode(Byte value) {
+            return value.toString();
+        }
+
+        public Byte decode(String text) {
+            return Byte.valueOf(Byte.parseByte(text));
+        }
+    };
+
+    static final ValueCodec<Double> DOUBLE = new ValueCodec<Double>() {
+        public String encode(Double value) {
+            return value.toString();
+        }
+
+        public Double decode(String text) {
+            return Double.valueOf(Double.parseDouble(text));
+        }
+    };
+
+    static final ValueCodec<Float> FLOAT = new ValueCodec<Float>() {
+        public String encode(Float value) {
+            return value.toString();
+        }
+
+        public Float decode(String text) {
+            return Float.valueOf(Float.parseFloat(text));
+        }
+    };
+
+    static final ValueCodec<Boolean> BOOLEAN = new ValueCodec<Boolean>() {
+        // Capitalized, as JDK's BooleanEditor wrote it
+        public String encode(Boolean value) {
+            return value.booleanValue() ? "True" : "False";
+        }
+
+        public Boolean decode(String text) {
+            if ("true".equalsIgnoreCase(text))
+                return Boolean.TRUE;
+            if ("false".equalsIgnoreCase(text))
+                return Boolean.FALSE;
+            throw new IllegalArgumentException("Cannot translate to boolean: " + text);
+        }
+    };
+
+    static final ValueCodec<Character> CHARACTER = new ValueCodec<Character>() {
+        public String encode(Character value) {
+            return value.toString();
+        }
+
+        public Character decode(String text) {
+            if (text.length() != 1)
+                throw new IllegalArgumentException("Cannot translate to character: " + text);
+            return Character.valueOf(text.charAt(0));
+        }
+    };
+
+    private BuiltinCodecs() {
+    }
+
+    /**
+     * Class and id of referenced row, as in {@link Ref#toString()}.
+     */
+    static final ValueCodec<Ref<?>> REF = new ValueCodec<Ref<?>>() {
+        public String encode(Ref<?> value) {
+            return value.toString();
+        }
+
+        public Ref<?> decode(String text) {
+            int colon = text.lastIndexOf(':');
+            try {
+                Class<?> type = Class.forName(text.substring(0, colon));
+                return Ref.read(type.asSubclass(Identified.class), Long.parseLong(text.substring(colon + 1)));
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * @return codec of given enum class
+     */
+    static <E extends Enum<E>> EnumCodec<E> enumCodec(Class<?> enumClass) {
+        @SuppressWarnings("unchecked")
+        Class<E> type = (Class<E>) enumClass;
+        return new EnumCodec<E>(type);
+    }
+
+    static final class EnumCodec<E extends Enum<E>> implements ValueCodec<E> {
+        private final Class<E> enumClass;
+
+        EnumCodec(Class<E> enumClass) {
+            this.enumClass = enumClass;
+        }
+
+        public String encode(E value) {
+            return value.name();
+        }
+
+        public E decode(String text) {
+            return Enum.valueOf(enumClass, text);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Snapshot of row cache counters of a {@link Table}, see
+ * {@link TableOptions#cacheSize(int)}.
+ */
+public final class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int rows;
+    private final long bytes;
+
+    CacheStats(long hits, long misses, long evictions, int rows, long bytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rows = rows;
+        this.bytes = bytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return rows dropped to stay within limits; invalidated rows aren't counted
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return rows currently cached
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return stored size of rows currently cached
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", rows=" + rows + ", bytes=" + bytes + '}';
+    }
+}
@@ -0,0 +1,47 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * A row inserted, updated or deleted, as recorded in the change log of
+ * its table; see {@link Table#changesSince(long)}.
+ */
+public final class Change {
+    public enum Type {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    private final long sequence;
+    private final Type type;
+    private final long id;
+
+    Change(long sequence, Type type, long id) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+    }
+
+    /**
+     * @return number of this change; changes of a table are numbered
+     *         one after another, from 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return id of changed row
+     */
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return sequence + ": " + type + " " + id;
+    }
+}
@@ -0,0 +1,18 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+/**
+ * Receives changes of a table, subscribed through
+ * {@link Table#subscribe(ChangeListener, long, boolean)}. Changes come
+ * one at a time, in order of their sequence, on the executor of the
+ * table's async operations.
+ */
+public interface ChangeListener<T extends Identified> {
+    /**
+     * @param row changed row as stored when the change is delivered, if
+     *            rows were asked for; {@code null} otherwise, for deletes
+     *            and for rows deleted since
+     */
+    void changed(Change change, T row);
+}
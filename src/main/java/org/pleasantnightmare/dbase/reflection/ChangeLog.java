@@ -0,0 +1,332 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Numbers changes of a table's rows, keeps the latest of them and hands
+ * them to subscribers, in order.
+ * <p/>
+ * Kept in {@code .changes} of the table directory: a header holding the
+ * sequence of the last change dropped and the retention, then one record
+ * per change, its type and row id; sequences are implied by position.
+ * Once twice the retention is kept, the oldest are dropped by rewriting
+ * the file. Tables without retention keep just the header, its dropped
+ * sequence leased ahead the way {@link IdAllocator} leases ids, so that
+ * numbering never starts over; after a crash it continues past the
+ * lease, and sequences saved before are rejected as no longer kept.
+ * Shared by all tables opened on the same directory.
+ */
+final class ChangeLog {
+    static final String CHANGES_FILE = ".changes";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 9;
+    private static final long SEQUENCE_LEASE = 1000;
+    private static final Change.Type[] TYPES = Change.Type.values();
+
+    private static final Map<File, ChangeLog> OPEN_LOGS = new HashMap<File, ChangeLog>();
+
+    // Null for logs of in-memory tables
+    private final File file;
+    // Null unless changes are kept on disk
+    private FileChannel channel;
+    // Kept changes of in-memory tables
+    private byte[] records = new byte[0];
+    private long retention;
+    private long dropped;
+    private long sequence;
+    // Sequence written to header of a log without retention
+    private long leasedUpTo;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private int references;
+
+    private ChangeLog(File file, long retention) {
+        this.file = file;
+        this.retention = retention;
+    }
+
+    /**
+     * @return log not kept on disk nor shared, for in-memory tables
+     */
+    static ChangeLog inMemory(long retention) {
+        return new ChangeLog(null, retention);
+    }
+
+    /**
+     * Opens change log of given directory. Retention is set by the first
+     * table opening it; {@code 0} keeps what the log was last opened with.
+     */
+    static ChangeLog open(File directory, long retention) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_LOGS) {
+            ChangeLog log = OPEN_LOGS.get(key);
+            if (log == null) {
+                log = new ChangeLog(new File(key, CHANGES_FILE), retention);
+                log.load();
+                OPEN_LOGS.put(key, log);
+            }
+            log.references++;
+            return log;
+        }
+    }
+
+    private void load() {
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                if (channel.read(header, 0) == HEADER_SIZE) {
+                    dropped = header.getLong(0);
+                    if (retention == 0)
+                        retention = header.getLong(8);
+                }
+                // Drops a torn record, and a torn header of a log never written to
+                long kept = Math.max(0, (channel.size() - HEADER_SIZE) / RECORD_SIZE);
+                channel.truncate(HEADER_SIZE + kept * RECORD_SIZE);
+                writeHeader(channel, dropped, retention);
+                sequence = dropped + kept;
+                leasedUpTo = sequence;
+                channel.position(channel.size());
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return sequence of the latest change
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    void append(Change.Type type, long id, boolean sync) {
+        append(type, new long[]{id}, 1, sync);
+    }
+
+    /**
+     * Numbers first {@code count} of given ids as changed, one after another.
+     */
+    synchronized void append(Change.Type type, long[] ids, int count, boolean sync) {
+        if (count == 0)
+            return;
+        if (retention > 0) {
+            ByteBuffer appended = ByteBuffer.allocate(count * RECORD_SIZE);
+            for (int i = 0; i < count; i++) {
+                appended.put((byte) type.ordinal());
+                appended.putLong(ids[i]);
+            }
+            appended.flip();
+            write(appended, sync);
+        }
+        for (int i = 0; i < count; i++) {
+            sequence++;
+            if (!subscribers.isEmpty()) {
+                Change change = new Change(sequence, type, ids[i]);
+                for (Subscriber subscriber : subscribers)
+                    subscriber.offer(change);
+            }
+        }
+        if (retention == 0) {
+            dropped = sequence;
+            if (channel != null && sequence > leasedUpTo)
+                lease(sync);
+        } else if (sequence - dropped >= 2 * retention)
+            trim();
+    }
+
+    private void lease(boolean sync) {
+        try {
+            writeHeader(channel, sequence + SEQUENCE_LEASE, 0);
+            if (sync)
+                channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        leasedUpTo = sequence + SEQUENCE_LEASE;
+    }
+
+    private void write(ByteBuffer appended, boolean sync) {
+        if (channel == null) {
+            int size = (int) (sequence - dropped) * RECORD_SIZE;
+            if (records.length < size + appended.remaining())
+                records = Arrays.copyOf(records, Math.max(2 * records.length, size + appended.remaining()));
+            appended.get(records, size, appended.remaining());
+            return;
+        }
+        try {
+            while (appended.hasRemaining())
+                channel.write(appended);
+            if (sync)
+                channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Drops all but the latest {@code retention} changes.
+     */
+    private void trim() {
+        long kept = retention;
+        long from = sequence - kept;
+        if (channel == null) {
+            int offset = (int) (from - dropped) * RECORD_SIZE;
+            System.arraycopy(records, offset, records, 0, (int) kept * RECORD_SIZE);
+            dropped = from;
+            return;
+        }
+
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            FileChannel trimmed = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                writeHeader(trimmed, from, retention);
+                trimmed.position(HEADER_SIZE);
+                long position = HEADER_SIZE + (from - dropped) * RECORD_SIZE;
+                for (long copied = 0; copied < kept * RECORD_SIZE; )
+                    copied += channel.transferTo(position + copied, kept * RECORD_SIZE - copied, trimmed);
+                trimmed.force(false);
+                replace(temp, file);
+            } catch (IOException e) {
+                trimmed.close();
+                temp.delete();
+                throw e;
+            }
+            channel.close();
+            channel = trimmed;
+            channel.position(channel.size());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        dropped = from;
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, long dropped, long retention) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(dropped).putLong(retention).flip();
+        while (header.hasRemaining())
+            channel.write(header, HEADER_SIZE - header.remaining());
+    }
+
+    /**
+     * @return changes after the one with given sequence, in order
+     * @throws IllegalStateException if some of them were dropped already
+     */
+    synchronized List<Change> since(long after) {
+        if (after > sequence)
+            throw new IllegalStateException("No change " + after + " yet, latest is " + sequence);
+        if (after < dropped)
+            throw new IllegalStateException("Changes up to " + dropped + " are no longer kept, "
+                    + (retention > 0 ? "see TableOptions.changeRetention" : "table keeps no changes"));
+
+        int count = (int) (sequence - after);
+        ByteBuffer kept;
+        if (channel == null) {
+            kept = ByteBuffer.wrap(records, (int) (after - dropped) * RECORD_SIZE, count * RECORD_SIZE);
+        } else {
+            kept = ByteBuffer.allocate(count * RECORD_SIZE);
+            try {
+                long position = HEADER_SIZE + (after - dropped) * RECORD_SIZE;
+                while (kept.hasRemaining()) {
+                    if (channel.read(kept, position + kept.position()) < 0)
+                        throw new IllegalStateException("Change log " + file + " ends early");
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            kept.flip();
+        }
+
+        List<Change> changes = new ArrayList<Change>(count);
+        for (long number = after + 1; number <= sequence; number++) {
+            byte type = kept.get();
+            if (type < 0 || type >= TYPES.length)
+                throw new IllegalStateException("Malformed change " + number + " in " + (file != null ? file : "change log"));
+            changes.add(new Change(number, TYPES[type], kept.getLong()));
+        }
+        return changes;
+    }
+
+    /**
+     * Hands subscriber every change from now on, until unsubscribed.
+     */
+    synchronized void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Hands changes after the one with given sequence to subscriber, then
+     * every change from now on, until unsubscribed.
+     */
+    synchronized void subscribe(Subscriber subscriber, long after) {
+        for (Change change : since(after))
+            subscriber.offer(change);
+        subscribers.add(subscriber);
+    }
+
+    void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    void close() {
+        if (file == null)
+            return;
+        synchronized (OPEN_LOGS) {
+            if (--references > 0)
+                return;
+            OPEN_LOGS.remove(file.getParentFile());
+        }
+        synchronized (this) {
+            if (channel == null)
+                return;
+            try {
+                // Numbering goes on right where it stopped
+                if (retention == 0)
+                    writeHeader(channel, sequence, 0);
+                channel.close();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Takes changes as they are made, while holding the log's lock;
+     * should only queue them.
+     */
+    interface Subscriber {
+        void offer(Change change);
+    }
+}
@@ -0,0 +1,176 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Everything reflection DAO needs to know about a persisted class,
+ * resolved once: the default constructor and the ordered list of
+ * persisted fields, with accessors already bound.
+ * <p/>
+ * Plans are immutable and safe to share between threads. Field order
+ * is the order rows are written in: declared fields of the class itself
+ * first, then those of its superclasses.
+ */
+final class ClassPlan<T> {
+    private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+
+    private final Class<T> type;
+    private final MethodHandle constructor;
+    private final List<FieldPlan> fields;
+    private final long fingerprint;
+    private final CodecRegistry codecs;
+
+    private ClassPlan(Class<T> type, MethodHandle constructor, List<FieldPlan> fields, CodecRegistry codecs) {
+        this.type = type;
+        this.codecs = codecs;
+        this.constructor = constructor;
+        this.fields = fields;
+        this.fingerprint = fingerprint(type, fields);
+    }
+
+    static <T> ClassPlan<T> build(Class<T> type, CodecRegistry codecs) {
+        List<FieldPlan> fields = new ArrayList<FieldPlan>();
+        Class<?> persistingClass = type;
+        while (persistingClass != Object.class) {
+            for (Field field : persistingClass.getDeclaredFields()) {
+                if (isFieldValidForPersisting(field))
+                    fields.add(FieldPlan.of(field, codecs));
+            }
+            persistingClass = persistingClass.getSuperclass();
+        }
+
+        return new ClassPlan<T>(type, findConstructor(type), Collections.unmodifiableList(fields), codecs);
+    }
+
+    /**
+     * 64-bit FNV-1a over class name and names and types of persisted fields.
+     */
+    private static long fingerprint(Class<?> type, List<FieldPlan> fields) {
+        StringBuilder schema = new StringBuilder(type.getName());
+        for (FieldPlan field : fields)
+            schema.append(';').append(field.getName()).append(':').append(field.getType().getName());
+
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < schema.length(); i++) {
+            hash ^= schema.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static boolean isFieldValidForPersisting(Field field) {
+        return !Modifier.isTransient(field.getModifiers()) && !Modifier.isStatic(field.getModifiers());
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            Constructor<?> defaultConstructor = type.getDeclaredConstructor();
+            defaultConstructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(defaultConstructor).asType(CONSTRUCTOR_TYPE);
+        } catch (NoSuchMethodException e) {
+            // Reported when the class is actually used, same as before plans were cached
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Default constructor is not accessible!", e);
+        }
+    }
+
+    Class<T> getType() {
+        return type;
+    }
+
+    List<FieldPlan> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return position of persisted field with given name; the class's own
+     *         field if a superclass has one of the same name
+     */
+    int indexOf(String name) {
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i).getName().equals(name))
+                return i;
+        }
+        throw new IllegalStateException("No persisted field " + name + " in " + type.getName());
+    }
+
+    /**
+     * Identifies class name together with the layout of its persisted fields;
+     * changes whenever a field is added, removed, renamed, retyped or moved.
+     */
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    void checkDefaultConstructor() {
+        if (constructor == null)
+            throw new IllegalStateException("Missing default constructor!");
+    }
+
+    T newInstance() {
+        if (constructor == null)
+            throw new IllegalStateException("Missing default constructor (how did you manage to serialize this class?)");
+
+        try {
+            return type.cast((Object) constructor.invokeExact());
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Failed to instantiate object, dunno why.", t);
+        }
+    }
+
+    /**
+     * Copies persisted fields of given object into a new instance. Lists,
+     * sets, maps, arrays, embedded objects and references are copied as
+     * well; other values, being what codecs turn strings back into, are shared.
+     */
+    T copy(T source) {
+        T copy = newInstance();
+        for (FieldPlan field : fields) {
+            Object value = field.get(source);
+            // Only scalar fields of types without codecs can hold embedded objects
+            if (field.getKind() == FieldPlan.Kind.SCALAR && field.getCodec() == null && value != null
+                    && codecs.find(value.getClass()) == null)
+                value = codecs.embeddedPlan(value.getClass()).copy(value);
+            field.set(copy, copyValue(value));
+        }
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(Object value) {
+        if (value instanceof List)
+            return new ArrayList<Object>((List<Object>) value);
+        else if (value instanceof Set)
+            return new HashSet<Object>((Set<Object>) value);
+        else if (value instanceof Map)
+            return new HashMap<Object, Object>((Map<Object, Object>) value);
+        else if (value instanceof Object[])
+            return ((Object[]) value).clone();
+        else if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        else if (value instanceof Ref)
+            return ((Ref<?>) value).copy();
+        else
+            return value;
+    }
+}
@@ -0,0 +1,12 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator over rows that are read as it advances. Closing it stops
+ * reading; iterators that are run to the end need not be closed.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+    void close();
+}
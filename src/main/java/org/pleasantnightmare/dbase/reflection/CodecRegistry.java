@@ -0,0 +1,150 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+import java.awt.Color;
+import java.beans.PropertyEditor;
+import java.beans.PropertyEditorManager;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe lookup of {@link ValueCodec}s by type.
+ * <p/>
+ * Primitives, wrappers, strings, enums, object arrays and numeric
+ * primitive arrays are known out of the box, as are {@link Color} and {@link Ref}. Anything else can be registered
+ * through {@link ReflectionDAO#registerCodec(Class, ValueCodec)}. As a last resort, editors
+ * registered with {@link PropertyEditorManager} are picked up and adapted
+ * through {@link PropertyEditorCodec}, so existing editor registrations
+ * keep working. Objects of other classes are stored inline, see
+ * {@link #embeddedPlan(Class)}.
+ */
+final class CodecRegistry {
+    private static final ValueCodec<Object> NO_CODEC = new ValueCodec<Object>() {
+        public String encode(Object value) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Object decode(String text) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private final ConcurrentMap<Class<?>, ValueCodec<?>> codecs = new ConcurrentHashMap<Class<?>, ValueCodec<?>>();
+    private final ConcurrentMap<Class<?>, ClassPlan<?>> embedded = new ConcurrentHashMap<Class<?>, ClassPlan<?>>();
+
+    CodecRegistry() {
+        registerBuiltins();
+    }
+
+    private void registerBuiltins() {
+        register(String.class, BuiltinCodecs.STRING);
+        register(Integer.class, BuiltinCodecs.INTEGER);
+        register(int.class, BuiltinCodecs.INTEGER);
+        register(Long.class, BuiltinCodecs.LONG);
+        register(long.class, BuiltinCodecs.LONG);
+        register(Short.class, BuiltinCodecs.SHORT);
+        register(short.class, BuiltinCodecs.SHORT);
+        register(Byte.class, BuiltinCodecs.BYTE);
+        register(byte.class, BuiltinCodecs.BYTE);
+        register(Double.class, BuiltinCodecs.DOUBLE);
+        register(double.class, BuiltinCodecs.DOUBLE);
+        register(Float.class, BuiltinCodecs.FLOAT);
+        register(float.class, BuiltinCodecs.FLOAT);
+        register(Boolean.class, BuiltinCodecs.BOOLEAN);
+        register(boolean.class, BuiltinCodecs.BOOLEAN);
+        register(Character.class, BuiltinCodecs.CHARACTER);
+        register(char.class, BuiltinCodecs.CHARACTER);
+        register(Color.class, new PropertyEditorCodec<Color>(Color.class, ColorPropertyEditor.class));
+        codecs.put(Ref.class, BuiltinCodecs.REF);
+    }
+
+    <T> void register(Class<T> type, ValueCodec<? super T> codec) {
+        codecs.put(type, codec);
+        // Fields of embedded classes may be of given type
+        embedded.clear();
+    }
+
+    /**
+     * @return codec for given type, or {@code null} if type cannot be converted
+     */
+    @SuppressWarnings("unchecked")
+    ValueCodec<Object> find(Class<?> type) {
+        ValueCodec<?> codec = codecs.get(type);
+        if (codec == null) {
+            codec = resolve(type);
+            ValueCodec<?> existing = codecs.putIfAbsent(type, codec);
+            if (existing != null)
+                codec = existing;
+        }
+        return codec == NO_CODEC ? null : (ValueCodec<Object>) codec;
+    }
+
+    ValueCodec<Object> require(Class<?> type) {
+        ValueCodec<Object> codec = find(type);
+        if (codec == null)
+            throw new IllegalStateException("Don't know how to convert class: " + type);
+        return codec;
+    }
+
+    /**
+     * Plans class without a codec, whose objects are stored inline in rows
+     * of other classes, field by field. Classes of other tables' rows are
+     * stored as {@link Ref}s instead. Only application classes with
+     * persisted fields are: JDK classes such as {@code Date} keep their
+     * state in fields of their own choosing, often transient, and would
+     * come back as something else.
+     *
+     * @throws IllegalStateException if class can't be stored inline
+     */
+    @SuppressWarnings("unchecked")
+    ClassPlan<Object> embeddedPlan(Class<?> type) {
+        ClassPlan<?> plan = embedded.get(type);
+        if (plan == null) {
+            if (Identified.class.isAssignableFrom(type))
+                throw new IllegalStateException("Rows of " + type.getName() + " are not stored inside other rows, refer to them through Ref");
+            if (!isEmbeddable(type))
+                throw new IllegalStateException("Don't know how to convert class: " + type);
+            try {
+                plan = ClassPlan.build(type, this);
+                plan.checkDefaultConstructor();
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("Don't know how to convert class: " + type, e);
+            }
+            if (plan.getFields().isEmpty())
+                throw new IllegalStateException("Don't know how to convert class: " + type);
+            embedded.putIfAbsent(type, plan);
+        }
+        return (ClassPlan<Object>) plan;
+    }
+
+    private static boolean isEmbeddable(Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || type.isInterface() || Modifier.isAbstract(type.getModifiers()))
+            return false;
+        if (type.getClassLoader() == null)
+            return false;
+        String name = type.getName();
+        return !name.startsWith("java.") && !name.startsWith("javax.") && !name.startsWith("jdk.")
+                && !name.startsWith("sun.") && !name.startsWith("com.sun.");
+    }
+
+    @SuppressWarnings("unchecked")
+    private ValueCodec<?> resolve(final Class<?> type) {
+        if (Enum.class.isAssignableFrom(type))
+            // Constants with bodies are anonymous subclasses of their enum
+            return BuiltinCodecs.enumCodec(type.isEnum() ? type : type.getSuperclass());
+        if (type.isArray() && !type.getComponentType().isPrimitive())
+            return new ArrayCodec(this, type.getComponentType());
+        if (PackedArrays.arrayTypeOf(type) != PackedArrays.NONE)
+            return new PackedArrays.Base64Codec(type.getComponentType());
+
+        if (PropertyEditorManager.findEditor(type) == null)
+            return NO_CODEC;
+        return new PropertyEditorCodec<Object>((Class<Object>) type, null) {
+            @Override protected PropertyEditor createEditor() {
+                return PropertyEditorManager.findEditor(type);
+            }
+        };
+    }
+}
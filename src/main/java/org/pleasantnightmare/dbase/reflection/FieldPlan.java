@@ -0,0 +1,141 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single persisted field of a {@link ClassPlan}, with its accessors
+ * bound once through method handles instead of toggling
+ * {@code setAccessible} on every read and write, and its codec
+ * resolved once instead of per value.
+ */
+final class FieldPlan {
+    enum Kind {
+        SCALAR, LIST, SET, MAP
+    }
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final String name;
+    private final Class<?> type;
+    private final Kind kind;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final ValueCodec<Object> codec;
+    private final IndexType index;
+    private final Object absent;
+
+    private FieldPlan(String name, Class<?> type, Kind kind, MethodHandle getter, MethodHandle setter,
+                      ValueCodec<Object> codec, IndexType index) {
+        this.name = name;
+        this.type = type;
+        this.kind = kind;
+        this.getter = getter;
+        this.setter = setter;
+        this.codec = codec;
+        this.index = index;
+        absent = type.isPrimitive() ? Array.get(Array.newInstance(type, 1), 0) : null;
+    }
+
+    static FieldPlan of(Field field, CodecRegistry codecs) {
+        field.setAccessible(true);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle getter = lookup.unreflectGetter(field).asType(GETTER_TYPE);
+            MethodHandle setter = lookup.unreflectSetter(field).asType(SETTER_TYPE);
+            Kind kind = kindOf(field.getType());
+            ValueCodec<Object> codec = kind == Kind.SCALAR ? codecs.find(field.getType()) : null;
+            Indexed indexed = field.getAnnotation(Indexed.class);
+            return new FieldPlan(field.getName(), field.getType(), kind, getter, setter, codec,
+                    indexed != null ? indexed.value() : null);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access field: " + field, e);
+        }
+    }
+
+    static Kind kindOf(Class<?> type) {
+        if (List.class.equals(type))
+            return Kind.LIST;
+        else if (Set.class.equals(type))
+            return Kind.SET;
+        else if (Map.class.equals(type))
+            return Kind.MAP;
+        else
+            return Kind.SCALAR;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return codec resolved for declared type of a scalar field, {@code null}
+     *         for collections and types no codec is known for
+     */
+    ValueCodec<Object> getCodec() {
+        return codec;
+    }
+
+    /**
+     * @return index declared on the field through {@link Indexed}, or {@code null}
+     */
+    IndexType getIndex() {
+        return index;
+    }
+
+    /**
+     * @return value of the field in rows that don't have it, such as rows
+     *         written before it was added: zero for primitives, otherwise {@code null}
+     */
+    Object getAbsent() {
+        return absent;
+    }
+
+    /**
+     * Converts value compared with the field to its type, so that for
+     * example an {@code int} can be compared with a {@code long} field.
+     */
+    Object coerce(Object value) {
+        Class<?> boxed = MethodType.methodType(type).wrap().returnType();
+        if (value == null || boxed.isInstance(value))
+            return value;
+        if (codec != null && (value instanceof Number || value instanceof String || value instanceof Character))
+            return codec.decode(value.toString());
+        throw new IllegalStateException("Cannot compare field " + name + " with " + value.getClass().getName());
+    }
+
+    Object get(Object target) {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot read field: " + name, t);
+        }
+    }
+
+    void set(Object target, Object value) {
+        try {
+            setter.invokeExact(target, value);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException("Cannot write field: " + name, t);
+        }
+    }
+}
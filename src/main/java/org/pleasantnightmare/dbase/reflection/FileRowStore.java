@@ -0,0 +1,310 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link StorageLayout#FILE_PER_ROW}: every row is a file named by its id.
+ * Files starting with a dot are table metadata, not rows.
+ * <p/>
+ * Rows are written to a temporary file ({@code .<id>-<process>-<n>.tmp}) that is
+ * then renamed over the row file, so a crash of the JVM never leaves a
+ * row half written. The temporary file is forced to disk before the
+ * rename only when {@link SyncPolicy} syncs the write, so a crash of the
+ * machine may leave other recent rows empty or torn. Temporary files left behind by a crash are removed when the
+ * store is opened, which happens under the table's
+ * {@link IdAllocator lock}, so never while another process writes them.
+ * <p/>
+ * Stores are shared by all tables opened on the same directory, and closed
+ * when the last of those tables is closed.
+ */
+final class FileRowStore implements RowStore {
+    private static final Logger LOG = LoggerFactory.getLogger(FileRowStore.class);
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Tells temporary files of tables open in this process from leftovers
+    private static final String TEMP_PREFIX = Long.toString(System.nanoTime() ^ new SecureRandom().nextLong(), 36);
+    private static final AtomicLong TEMP_NAMES = new AtomicLong();
+
+    private static final Map<File, FileRowStore> OPEN_STORES = new HashMap<File, FileRowStore>();
+
+    private final File directory;
+    private final boolean memoryMapped;
+    private final SyncPolicy sync;
+    // Rows written or deleted since last periodic sync
+    private final Set<Long> unsynced = new HashSet<Long>();
+    private final ScheduledFuture<?> periodicSync;
+    private int references;
+
+    private FileRowStore(File directory, TableOptions options) {
+        this.directory = directory;
+        this.memoryMapped = options.isMemoryMapped();
+        this.sync = options.getSync();
+        if (sync == SyncPolicy.PERIODIC) {
+            periodicSync = SyncScheduler.schedule(new Runnable() {
+                public void run() {
+                    syncPending();
+                }
+            }, options.getSyncInterval());
+        } else {
+            periodicSync = null;
+        }
+    }
+
+    /**
+     * Opens store on given directory, or shares one already open there
+     * (in which case options it was opened with apply). Table has to be
+     * locked already.
+     */
+    static FileRowStore open(File directory, TableOptions options) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_STORES) {
+            FileRowStore store = OPEN_STORES.get(key);
+            if (store == null) {
+                removeTemporaryFiles(key);
+                store = new FileRowStore(key, options);
+                OPEN_STORES.put(key, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    private static void removeTemporaryFiles(File directory) {
+        File[] leftovers = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.matches("\\.\\d+-.+\\" + TEMP_SUFFIX) && !name.contains("-" + TEMP_PREFIX + "-");
+            }
+        });
+        if (leftovers == null)
+            throw new IllegalStateException("Cannot list table directory: " + directory);
+
+        for (File leftover : leftovers) {
+            LOG.info("Removing incomplete write {}", leftover);
+            if (!leftover.delete())
+                LOG.warn("Failed to remove {}", leftover);
+        }
+    }
+
+    public ByteBuffer read(long id) {
+        File row = rowFile(id);
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(row, "r");
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        try {
+            if (memoryMapped) {
+                // Mapping stays valid after the file is closed
+                FileChannel channel = file.getChannel();
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return ByteBuffer.wrap(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(file);
+        }
+    }
+
+    public boolean contains(long id) {
+        return rowFile(id).exists();
+    }
+
+    public void write(long id, byte[] row, int length) {
+        write(id, row, length, sync.syncsWrites());
+        if (sync.syncsWrites())
+            syncDirectory();
+    }
+
+    public void writeAll(long[] ids, byte[][] rows) {
+        for (int i = 0; i < ids.length; i++)
+            write(ids[i], rows[i], rows[i].length, sync.syncsBatches());
+        if (sync.syncsBatches())
+            syncDirectory();
+    }
+
+    private void write(long id, byte[] row, int length, boolean force) {
+        File temp = new File(directory, "." + id + "-" + TEMP_PREFIX + "-" + TEMP_NAMES.incrementAndGet() + TEMP_SUFFIX);
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            // Whole row in one call, short writes aside
+            ByteBuffer buffer = ByteBuffer.wrap(row, 0, length);
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            if (force)
+                channel.force(false);
+            channel.close();
+            channel = null;
+            replace(temp, rowFile(id));
+        } catch (IOException e) {
+            close(channel);
+            temp.delete();
+            throw new IllegalStateException(e);
+        }
+        markUnsynced(id);
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public boolean patch(long id, byte[] delta) {
+        // Rewriting a row file costs about the same whole or not
+        return false;
+    }
+
+    public boolean delete(long id) {
+        boolean deleted = rowFile(id).delete();
+        if (deleted && sync.syncsWrites())
+            syncDirectory();
+        markUnsynced(id);
+        return deleted;
+    }
+
+    public void deleteAll(long[] ids) {
+        for (long id : ids) {
+            rowFile(id).delete();
+            markUnsynced(id);
+        }
+        if (sync.syncsBatches())
+            syncDirectory();
+    }
+
+    private void markUnsynced(long id) {
+        if (periodicSync != null) {
+            synchronized (unsynced) {
+                unsynced.add(id);
+            }
+        }
+    }
+
+    /**
+     * Forces rows written since last time to disk, for {@link SyncPolicy#PERIODIC}.
+     */
+    private void syncPending() {
+        Long[] ids;
+        synchronized (unsynced) {
+            if (unsynced.isEmpty())
+                return;
+            ids = unsynced.toArray(new Long[unsynced.size()]);
+            unsynced.clear();
+        }
+
+        for (Long id : ids) {
+            FileChannel channel;
+            try {
+                channel = FileChannel.open(rowFile(id).toPath(), StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                // Deleted meanwhile
+                continue;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                close(channel);
+            }
+        }
+        syncDirectory();
+    }
+
+    /**
+     * Makes file creations and removals durable. Not every platform can
+     * open a directory for that (Windows can't), and there it is left
+     * to the file system.
+     */
+    private void syncDirectory() {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            LOG.debug("Cannot open {} for sync: {}", directory, e);
+            return;
+        }
+        try {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Cannot sync {}: {}", directory, e);
+        } finally {
+            close(channel);
+        }
+    }
+
+    public long[] ids() {
+        String[] names = directory.list();
+        if (names == null)
+            throw new IllegalStateException("Cannot list table directory: " + directory);
+
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith("."))
+                continue;
+            try {
+                long id = Long.parseLong(name);
+                ids[count++] = id;
+            } catch (NumberFormatException e) {
+                LOG.warn("Ignoring stray file in table directory: {}", name);
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    public void close() {
+        synchronized (OPEN_STORES) {
+            if (--references > 0)
+                return;
+            OPEN_STORES.remove(directory);
+        }
+        if (periodicSync != null) {
+            periodicSync.cancel(false);
+            syncPending();
+        }
+    }
+
+    private File rowFile(long id) {
+        return new File(directory, Long.toString(id));
+    }
+
+    private static void close(Closeable closeable) {
+        try {
+            if (closeable != null)
+                closeable.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close row file!", e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Tables in directories named after them, under a root directory. Table
+ * state is shared by all tables opened on the same directory, through
+ * whichever backend.
+ */
+final class FilesystemBackend extends StorageBackend {
+    private final File root;
+    // Canonical root, resolved on first use
+    private volatile File key;
+
+    FilesystemBackend(File root) {
+        this.root = root;
+    }
+
+    @Override
+    Object key() {
+        if (key == null) {
+            try {
+                key = root.getCanonicalFile();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return key;
+    }
+
+    TableStorage open(String name, ClassPlan<?> plan, TableOptions options) {
+        File directory = new File(root, name);
+        createDirectory(directory);
+
+        // Locks the table before its rows get recovered
+        IdAllocator ids = IdAllocator.open(directory);
+        RowStore store;
+        try {
+            if (options.getLayout() == StorageLayout.SEGMENTED)
+                store = SegmentedRowStore.open(directory, options);
+            else
+                store = FileRowStore.open(directory, options);
+        } catch (RuntimeException e) {
+            ids.close();
+            throw e;
+        }
+        try {
+            ids.continueAfter(store);
+        } catch (RuntimeException e) {
+            store.close();
+            ids.close();
+            throw e;
+        }
+        SchemaCatalog schemas;
+        SecondaryIndexes indexes;
+        try {
+            schemas = SchemaCatalog.open(directory);
+        } catch (RuntimeException e) {
+            ids.close();
+            store.close();
+            throw e;
+        }
+        try {
+            // Before any row of the class as it is now gets written
+            schemas.register(plan);
+            indexes = SecondaryIndexes.open(directory, plan, options, store, schemas);
+        } catch (RuntimeException e) {
+            schemas.close();
+            ids.close();
+            store.close();
+            throw e;
+        }
+        ChangeLog changes;
+        try {
+            changes = ChangeLog.open(directory, options.getChangeRetention());
+        } catch (RuntimeException e) {
+            indexes.close();
+            schemas.close();
+            ids.close();
+            store.close();
+            throw e;
+        }
+        RowLocks locks = RowLocks.open(directory);
+        RowSnapshots snapshots = options.getTrackedRows() > 0 ? RowSnapshots.open(directory, options.getTrackedRows()) : null;
+        return new TableStorage(store, ids, indexes, locks, schemas, snapshots, changes, true);
+    }
+
+    private static void createDirectory(File directory) {
+        File maxNumberFile = new File(directory, IdAllocator.MAX_NUMBER_FILE);
+        try {
+            if (!directory.exists()) {
+                directory.mkdirs();
+                maxNumberFile.createNewFile();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This stuff simulates an auto-increment number from a proper DB, now
+ * without touching the disk on every insert.
+ * <p/>
+ * Ids are handed out from an {@link AtomicLong}. What goes to
+ * {@code .maxNumber} is a lease: the highest id that may have been handed
+ * out, written ahead in blocks of {@link #LEASE_SIZE}. After a restart
+ * numbering continues past both the lease and the highest stored row, so
+ * ids are never reused; a crash just leaves a gap, which autoincrements
+ * are allowed to have anyway.
+ * <p/>
+ * {@code .maxNumber} is locked for as long as the allocator is open, which
+ * keeps other processes from opening the same table; it is opened before
+ * anything else of the table, so nothing gets recovered or cleaned up
+ * under another process. Within a process, allocators are shared by all
+ * tables opened on the same directory.
+ */
+final class IdAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(IdAllocator.class);
+    static final String MAX_NUMBER_FILE = ".maxNumber";
+    static final long LEASE_SIZE = 1000;
+
+    private static final Map<File, IdAllocator> OPEN_ALLOCATORS = new HashMap<File, IdAllocator>();
+
+    private final File directory;
+    private final AtomicLong lastId = new AtomicLong();
+    private volatile long leasedUpTo;
+    private RandomAccessFile maxNumberFile;
+    private FileChannel maxNumberChannel;
+    private FileLock lock;
+    private boolean scanned;
+    private int references;
+
+    private IdAllocator(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens allocator for table in given directory, or shares one already
+     * open there. Numbering has to be {@link #continueAfter continued}
+     * before ids are handed out.
+     */
+    static IdAllocator open(File directory) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_ALLOCATORS) {
+            IdAllocator allocator = OPEN_ALLOCATORS.get(key);
+            if (allocator == null) {
+                allocator = new IdAllocator(key);
+                allocator.load();
+                OPEN_ALLOCATORS.put(key, allocator);
+            }
+            allocator.references++;
+            return allocator;
+        }
+    }
+
+    /**
+     * @return allocator for a table kept in memory, which leases nothing
+     *         and is not shared
+     */
+    static IdAllocator inMemory(RowStore store) {
+        IdAllocator allocator = new IdAllocator(null);
+        long maxNumber = 0;
+        for (long id : store.ids())
+            maxNumber = Math.max(maxNumber, id);
+        allocator.lastId.set(maxNumber);
+        allocator.leasedUpTo = Long.MAX_VALUE;
+        return allocator;
+    }
+
+    private void load() {
+        try {
+            maxNumberFile = new RandomAccessFile(new File(directory, MAX_NUMBER_FILE), "rw");
+            maxNumberChannel = maxNumberFile.getChannel();
+            lock = maxNumberChannel.tryLock();
+            if (lock == null)
+                throw new IllegalStateException("Table is in use by another process: " + directory);
+
+            long maxNumber = 0;
+            ByteBuffer numberBuffer = ByteBuffer.allocate(8);
+            if (maxNumberChannel.read(numberBuffer, 0) == numberBuffer.capacity())
+                maxNumber = numberBuffer.getLong(0);
+
+            lastId.set(maxNumber);
+            leasedUpTo = maxNumber;
+            LOG.debug("Numbering of {} continues after {}", directory, maxNumber);
+        } catch (IOException e) {
+            closeFile();
+            throw new IllegalStateException(e);
+        } catch (OverlappingFileLockException e) {
+            closeFile();
+            throw new IllegalStateException("Table is already open: " + directory, e);
+        } catch (RuntimeException e) {
+            closeFile();
+            throw e;
+        }
+    }
+
+    /**
+     * Continues numbering past the highest stored row. Only the first
+     * table opening the allocator scans its rows.
+     */
+    synchronized void continueAfter(RowStore store) {
+        if (scanned)
+            return;
+        long maxNumber = lastId.get();
+        for (long id : store.ids())
+            maxNumber = Math.max(maxNumber, id);
+        lastId.set(maxNumber);
+        leasedUpTo = Math.max(leasedUpTo, maxNumber);
+        scanned = true;
+    }
+
+    /**
+     * @return new unused id
+     */
+    long next() {
+        return reserve(1);
+    }
+
+    /**
+     * @return first of {@code count} consecutive unused ids
+     */
+    long reserve(int count) {
+        long last = lastId.addAndGet(count);
+        if (last > leasedUpTo)
+            extendLease(last);
+        return last - count + 1;
+    }
+
+    private synchronized void extendLease(long id) {
+        if (id <= leasedUpTo)
+            return;
+
+        long lease = id + LEASE_SIZE;
+        try {
+            ByteBuffer numberBuffer = ByteBuffer.allocate(8);
+            numberBuffer.putLong(0, lease);
+            while (numberBuffer.hasRemaining())
+                maxNumberChannel.write(numberBuffer, numberBuffer.position());
+            maxNumberChannel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        leasedUpTo = lease;
+    }
+
+    void close() {
+        synchronized (OPEN_ALLOCATORS) {
+            if (--references > 0)
+                return;
+            OPEN_ALLOCATORS.remove(directory);
+        }
+        closeFile();
+    }
+
+    private void closeFile() {
+        try {
+            if (lock != null)
+                lock.release();
+            if (maxNumberFile != null)
+                maxNumberFile.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close " + MAX_NUMBER_FILE + " of " + directory, e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Kind of secondary index kept on a field, see {@link Indexed}.
+ */
+public enum IndexType {
+    /**
+     * Serves {@link Table#findBy(String, Object)} only.
+     */
+    HASH,
+    /**
+     * Serves {@link Table#findBy(String, Object)} and {@link Table#range(String, Object, Object)};
+     * field values must be {@link Comparable}.
+     */
+    SORTED
+}
@@ -0,0 +1,20 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keeps a secondary index on the annotated field, so rows can be looked
+ * up by its value without reading the whole table. Indexes can also be
+ * declared through {@link TableOptions#index(String, IndexType)}.
+ * <p/>
+ * Only scalar fields can be indexed. Rows where the field is {@code null}
+ * are not found through the index.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+    IndexType value() default IndexType.HASH;
+}
@@ -0,0 +1,62 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors async table operations run on, see {@link TableOptions#executor(Executor)}.
+ */
+final class IoExecutors {
+    // Threads mostly wait on the disk, so there can be more of them than cores
+    private static final int THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    private IoExecutors() {
+    }
+
+    /**
+     * @return daemon pool shared by all tables that don't set their own executor
+     */
+    static Executor shared() {
+        return SharedHolder.POOL;
+    }
+
+    /**
+     * @return executor starting a virtual thread per task
+     * @throws IllegalStateException if JVM is older than 21
+     */
+    static Executor virtualThreads() {
+        if (VirtualHolder.EXECUTOR == null)
+            throw new IllegalStateException("Virtual threads need Java 21 or newer, running on " + System.getProperty("java.version"));
+        return VirtualHolder.EXECUTOR;
+    }
+
+    private static final class SharedHolder {
+        private static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "reflection-dao-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static final class VirtualHolder {
+        private static final ExecutorService EXECUTOR = createVirtual();
+
+        // Looked up reflectively, as the library still builds for Java 8
+        private static ExecutorService createVirtual() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (NoSuchMethodException e) {
+                return null;
+            } catch (Exception e) {
+                throw new IllegalStateException("Cannot create virtual thread executor", e);
+            }
+        }
+    }
+}
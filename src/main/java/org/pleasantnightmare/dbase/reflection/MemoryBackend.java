@@ -0,0 +1,27 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tables held in memory, by name. Opening a table again, on this backend,
+ * gets the same rows; state of a table is created by whichever opens it
+ * first, with its options.
+ */
+final class MemoryBackend extends StorageBackend {
+    private final Map<String, TableStorage> tables = new HashMap<String, TableStorage>();
+
+    synchronized TableStorage open(String name, ClassPlan<?> plan, TableOptions options) {
+        TableStorage storage = tables.get(name);
+        if (storage == null) {
+            RowStore store = new MemoryRowStore();
+            RowSnapshots snapshots = options.getTrackedRows() > 0 ? RowSnapshots.unshared(options.getTrackedRows()) : null;
+            SchemaCatalog schemas = SchemaCatalog.inMemory();
+            schemas.register(plan);
+            storage = new TableStorage(store, IdAllocator.inMemory(store), SecondaryIndexes.inMemory(plan, options, store, schemas),
+                    RowLocks.unshared(), schemas, snapshots, ChangeLog.inMemory(options.getChangeRetention()), false);
+            tables.put(name, storage);
+        }
+        return storage;
+    }
+}
@@ -0,0 +1,61 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Encoded rows held in memory, for {@link StorageBackend#inMemory()}.
+ * Rows are encoded just like on disk, so tables behave the same, only
+ * without any I/O; they are gone once the backend is.
+ */
+final class MemoryRowStore implements RowStore {
+    private final ConcurrentMap<Long, byte[]> rows = new ConcurrentHashMap<Long, byte[]>();
+
+    public ByteBuffer read(long id) {
+        byte[] row = rows.get(id);
+        return row != null ? ByteBuffer.wrap(row) : null;
+    }
+
+    public boolean contains(long id) {
+        return rows.containsKey(id);
+    }
+
+    public void write(long id, byte[] row, int length) {
+        rows.put(id, Arrays.copyOf(row, length));
+    }
+
+    public void writeAll(long[] ids, byte[][] encoded) {
+        for (int i = 0; i < ids.length; i++)
+            rows.put(ids[i], encoded[i]);
+    }
+
+    public boolean patch(long id, byte[] delta) {
+        return false;
+    }
+
+    public boolean delete(long id) {
+        return rows.remove(id) != null;
+    }
+
+    public void deleteAll(long[] ids) {
+        for (long id : ids)
+            rows.remove(id);
+    }
+
+    public long[] ids() {
+        long[] ids = new long[rows.size()];
+        int count = 0;
+        for (Long id : rows.keySet()) {
+            // Rows may be added meanwhile
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2 + 1);
+            ids[count++] = id;
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    public void close() {
+    }
+}
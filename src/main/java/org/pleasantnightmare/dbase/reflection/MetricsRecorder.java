@@ -0,0 +1,169 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link TableMetrics} that keeps counters and latency histograms of a
+ * table in memory, to be read whenever:
+ * <pre>
+ * MetricsRecorder metrics = new MetricsRecorder();
+ * Table&lt;Player&gt; players = new Table&lt;Player&gt;(root, Player.class, new TableOptions().metrics(metrics));
+ * ...
+ * LOG.info("Players: {}", metrics);
+ * </pre>
+ */
+public final class MetricsRecorder implements TableMetrics {
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+    private final Map<Operation, LongAdder> rows = new EnumMap<Operation, LongAdder>(Operation.class);
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder readNanos = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final LongAdder encodeNanos = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+    private final LatencyHistogram allocations = new LatencyHistogram();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public MetricsRecorder() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            rows.put(operation, new LongAdder());
+        }
+    }
+
+    public void operation(Operation operation, int rows, long nanos) {
+        latencies.get(operation).record(nanos);
+        this.rows.get(operation).add(rows);
+    }
+
+    public void read(int rows, long bytes, long nanos) {
+        rowsRead.add(rows);
+        bytesRead.add(bytes);
+        readNanos.add(nanos);
+    }
+
+    public void written(int rows, long bytes, long nanos) {
+        rowsWritten.add(rows);
+        bytesWritten.add(bytes);
+        writeNanos.add(nanos);
+    }
+
+    public void encoded(int rows, long nanos) {
+        encodeNanos.add(nanos);
+    }
+
+    public void decoded(int rows, long nanos) {
+        decodeNanos.add(nanos);
+    }
+
+    public void allocated(int ids, long nanos) {
+        allocations.record(nanos);
+    }
+
+    public void cacheLookup(boolean hit) {
+        if (hit)
+            cacheHits.increment();
+        else
+            cacheMisses.increment();
+    }
+
+    /**
+     * @return latencies of given operation; its count is the number of calls
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * @return rows given operation was called with, or found
+     */
+    public long getRows(Operation operation) {
+        return rows.get(operation).sum();
+    }
+
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getRowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /**
+     * @return time spent reading rows from storage
+     */
+    public long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    /**
+     * @return time spent writing rows to storage
+     */
+    public long getWriteNanos() {
+        return writeNanos.sum();
+    }
+
+    /**
+     * @return time spent serializing rows
+     */
+    public long getEncodeNanos() {
+        return encodeNanos.sum();
+    }
+
+    /**
+     * @return time spent deserializing rows
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    /**
+     * @return time of id allocations, long ones being waits for the
+     *         {@code .maxNumber} lease
+     */
+    public LatencyHistogram getAllocations() {
+        return allocations;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public double getCacheHitRatio() {
+        long hits = getCacheHits();
+        long lookups = hits + getCacheMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("MetricsRecorder{");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = latencies.get(operation);
+            if (latency.getCount() > 0)
+                text.append(operation).append(": ").append(latency).append(", rows=").append(getRows(operation)).append("; ");
+        }
+        text.append(String.format("read: %d rows, %d bytes, %.1fms; written: %d rows, %d bytes, %.1fms; "
+                + "encode %.1fms, decode %.1fms; ids: %s; cache hit ratio %.2f}",
+                getRowsRead(), getBytesRead(), getReadNanos() / 1e6, getRowsWritten(), getBytesWritten(), getWriteNanos() / 1e6,
+                getEncodeNanos() / 1e6, getDecodeNanos() / 1e6, allocations, getCacheHitRatio()));
+        return text.toString();
+    }
+}
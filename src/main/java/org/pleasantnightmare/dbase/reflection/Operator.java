@@ -0,0 +1,34 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Comparison of a field to a value in {@link Query} conditions. Ordering
+ * comparisons need {@link Comparable} field values and are never true for
+ * {@code null}s; {@link #EQ} and {@link #NE} also work with {@code null}.
+ */
+public enum Operator {
+    EQ, NE, LT, LE, GT, GE;
+
+    @SuppressWarnings("unchecked")
+    boolean test(Object fieldValue, Object value) {
+        switch (this) {
+            case EQ:
+                return fieldValue == null ? value == null : fieldValue.equals(value);
+            case NE:
+                return fieldValue == null ? value != null : !fieldValue.equals(value);
+        }
+
+        if (fieldValue == null || value == null)
+            return false;
+        int comparison = ((Comparable<Object>) fieldValue).compareTo(value);
+        switch (this) {
+            case LT:
+                return comparison < 0;
+            case LE:
+                return comparison <= 0;
+            case GT:
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Numeric arrays, and lists and sets of numbers, stored as packed blocks
+ * of big-endian values: raw in binary rows, as base64 text in XML rows.
+ * Arrays are copied to and from the block in bulk, never boxing their
+ * elements; collections box them only on the way in or out.
+ * <p/>
+ * Element types are identified by a code, shared by primitives and their
+ * wrappers: {@code byte, short, int, long, float, double}.
+ */
+final class PackedArrays {
+    static final int NONE = -1;
+    private static final Class<?>[] PRIMITIVES = {byte.class, short.class, int.class, long.class, float.class, double.class};
+    private static final Class<?>[] WRAPPERS = {Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class};
+    private static final int[] WIDTHS = {1, 2, 4, 8, 4, 8};
+
+    private PackedArrays() {
+    }
+
+    /**
+     * @return code of given primitive or wrapper type, {@link #NONE} for others
+     */
+    static int typeOf(Class<?> type) {
+        for (int i = 0; i < PRIMITIVES.length; i++) {
+            if (PRIMITIVES[i] == type || WRAPPERS[i] == type)
+                return i;
+        }
+        return NONE;
+    }
+
+    /**
+     * @return code of component type of given primitive array type,
+     *         {@link #NONE} for other types
+     */
+    static int arrayTypeOf(Class<?> type) {
+        return type.isArray() && type.getComponentType().isPrimitive() ? typeOf(type.getComponentType()) : NONE;
+    }
+
+    /**
+     * @return code of elements of collection if they are all numbers of
+     *         the same type, {@link #NONE} otherwise
+     */
+    static int typeOf(Collection<?> collection, Class<?> genericType) {
+        int type = typeOf(genericType);
+        if (type == NONE || genericType.isPrimitive())
+            return NONE;
+        for (Object o : collection) {
+            if (o == null || o.getClass() != genericType)
+                return NONE;
+        }
+        return type;
+    }
+
+    static Class<?> wrapper(int type) {
+        return WRAPPERS[type];
+    }
+
+    /**
+     * @return number of bytes given array packs into
+     */
+    static int byteLength(int type, int length) {
+        return WIDTHS[type] * length;
+    }
+
+    /**
+     * @return number of elements in a block of given length
+     */
+    static int length(int type, int byteLength) {
+        if (byteLength % WIDTHS[type] != 0)
+            throw new IllegalStateException("Deserialization error: packed block of " + byteLength + " bytes for " + PRIMITIVES[type]);
+        return byteLength / WIDTHS[type];
+    }
+
+    /**
+     * Packs primitive array into given buffer, which must have room for it.
+     */
+    static void put(ByteBuffer buffer, Object array) {
+        if (array instanceof byte[])
+            buffer.put((byte[]) array);
+        else if (array instanceof short[])
+            buffer.asShortBuffer().put((short[]) array);
+        else if (array instanceof int[])
+            buffer.asIntBuffer().put((int[]) array);
+        else if (array instanceof long[])
+            buffer.asLongBuffer().put((long[]) array);
+        else if (array instanceof float[])
+            buffer.asFloatBuffer().put((float[]) array);
+        else
+            buffer.asDoubleBuffer().put((double[]) array);
+    }
+
+    /**
+     * Reads next {@code length} elements of given type from buffer, moving past them.
+     *
+     * @return primitive array of the elements
+     */
+    static Object get(ByteBuffer buffer, int type, int length) {
+        ByteBuffer block = buffer.slice();
+        buffer.position(buffer.position() + byteLength(type, length));
+        switch (type) {
+            case 0:
+                byte[] bytes = new byte[length];
+                block.get(bytes);
+                return bytes;
+            case 1:
+                short[] shorts = new short[length];
+                block.asShortBuffer().get(shorts);
+                return shorts;
+            case 2:
+                int[] ints = new int[length];
+                block.asIntBuffer().get(ints);
+                return ints;
+            case 3:
+                long[] longs = new long[length];
+                block.asLongBuffer().get(longs);
+                return longs;
+            case 4:
+                float[] floats = new float[length];
+                block.asFloatBuffer().get(floats);
+                return floats;
+            default:
+                double[] doubles = new double[length];
+                block.asDoubleBuffer().get(doubles);
+                return doubles;
+        }
+    }
+
+    /**
+     * Packs numbers of given collection, all of the same wrapper type,
+     * into given buffer.
+     */
+    static void put(ByteBuffer buffer, Collection<?> collection, int type) {
+        for (Object o : collection) {
+            Number n = (Number) o;
+            switch (type) {
+                case 0:
+                    buffer.put(n.byteValue());
+                    break;
+                case 1:
+                    buffer.putShort(n.shortValue());
+                    break;
+                case 2:
+                    buffer.putInt(n.intValue());
+                    break;
+                case 3:
+                    buffer.putLong(n.longValue());
+                    break;
+                case 4:
+                    buffer.putFloat(n.floatValue());
+                    break;
+                default:
+                    buffer.putDouble(n.doubleValue());
+            }
+        }
+    }
+
+    /**
+     * Reads next {@code length} elements of given type from buffer into a
+     * new list or set, moving past them.
+     */
+    static Collection<Object> getAll(ByteBuffer buffer, int type, int length, boolean set) {
+        Collection<Object> returnable = set ? new HashSet<Object>(length * 2) : new ArrayList<Object>(length);
+        for (int i = 0; i < length; i++) {
+            switch (type) {
+                case 0:
+                    returnable.add(buffer.get());
+                    break;
+                case 1:
+                    returnable.add(buffer.getShort());
+                    break;
+                case 2:
+                    returnable.add(buffer.getInt());
+                    break;
+                case 3:
+                    returnable.add(buffer.getLong());
+                    break;
+                case 4:
+                    returnable.add(buffer.getFloat());
+                    break;
+                default:
+                    returnable.add(buffer.getDouble());
+            }
+        }
+        return returnable;
+    }
+
+    static String toBase64(Object array, int type) {
+        byte[] bytes = new byte[byteLength(type, Array.getLength(array))];
+        put(ByteBuffer.wrap(bytes), array);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    static String toBase64(Collection<?> collection, int type) {
+        byte[] bytes = new byte[byteLength(type, collection.size())];
+        put(ByteBuffer.wrap(bytes), collection, type);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    static ByteBuffer fromBase64(String text) {
+        try {
+            return ByteBuffer.wrap(Base64.getMimeDecoder().decode(text));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Deserialization error: malformed packed block", e);
+        }
+    }
+
+    /**
+     * Primitive arrays as base64 text of their packed block, for XML rows
+     * and wherever else codecs are used.
+     */
+    static final class Base64Codec implements ValueCodec<Object> {
+        private final int type;
+
+        Base64Codec(Class<?> componentType) {
+            this.type = typeOf(componentType);
+        }
+
+        public String encode(Object value) {
+            return toBase64(value, type);
+        }
+
+        public Object decode(String text) {
+            ByteBuffer block = fromBase64(text);
+            return get(block, type, length(type, block.remaining()));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * How {@link Table#all(ParallelismOptions)} spreads reading and decoding
+ * of rows between threads. By default it runs on the common fork-join pool.
+ */
+public class ParallelismOptions {
+    private ForkJoinPool pool;
+    private int threads;
+    private int chunkSize = 256;
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Pool to decode rows on. Takes precedence over {@link #threads(int)}.
+     */
+    public ParallelismOptions pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Decode rows on a pool of given number of threads, started for the
+     * scan and shut down after it.
+     */
+    public ParallelismOptions threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Number of consecutive rows a single task reads; smaller chunks balance
+     * load better, larger ones cost less scheduling.
+     */
+    public ParallelismOptions chunkSize(int chunkSize) {
+        if (chunkSize < 1)
+            throw new IllegalStateException("Chunk size must be positive: " + chunkSize);
+        this.chunkSize = chunkSize;
+        return this;
+    }
+}
@@ -0,0 +1,55 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Subset of fields of a {@link ClassPlan}, for reading rows partially
+ * through {@link RowCodec#readFields}.
+ */
+final class Projection {
+    private final boolean[] included;
+    private final int last;
+
+    private Projection(boolean[] included, int last) {
+        this.included = included;
+        this.last = last;
+    }
+
+    /**
+     * @throws IllegalStateException if any of the names isn't a persisted field
+     */
+    static Projection of(ClassPlan<?> plan, Collection<String> names) {
+        List<FieldPlan> fields = plan.getFields();
+        boolean[] included = new boolean[fields.size()];
+        int last = -1;
+        for (String name : names) {
+            int position = plan.indexOf(name);
+            included[position] = true;
+            last = Math.max(last, position);
+        }
+        return new Projection(included, last);
+    }
+
+    boolean includes(int position) {
+        return included[position];
+    }
+
+    /**
+     * Sets values of included fields to what they are in rows without them,
+     * see {@link FieldPlan#getAbsent()}.
+     */
+    void clear(List<FieldPlan> fields, Object[] values) {
+        for (int i = 0; i <= last; i++) {
+            if (included[i])
+                values[i] = fields.get(i).getAbsent();
+        }
+    }
+
+    /**
+     * @return position of the last included field, {@code -1} if there are none
+     */
+    int getLast() {
+        return last;
+    }
+}
@@ -0,0 +1,55 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.beans.PropertyEditor;
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * Adapts a {@link PropertyEditor} class to {@link ValueCodec}, for types
+ * that already have an editor written for them (see {@link ColorPropertyEditor}).
+ * <p/>
+ * Property editors are stateful, so every thread gets its own editor
+ * instance instead of sharing one.
+ */
+public class PropertyEditorCodec<T> implements ValueCodec<T> {
+    private final Class<T> type;
+    private final Class<? extends PropertyEditor> editorClass;
+    private final ThreadLocal<PropertyEditor> editors = new ThreadLocal<PropertyEditor>() {
+        @Override protected PropertyEditor initialValue() {
+            return createEditor();
+        }
+    };
+
+    public PropertyEditorCodec(Class<T> type, Class<? extends PropertyEditor> editorClass) {
+        this.type = type;
+        this.editorClass = editorClass;
+    }
+
+    /**
+     * Creates editor for the calling thread.
+     */
+    protected PropertyEditor createEditor() {
+        try {
+            return editorClass.getDeclaredConstructor().newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Cannot instantiate property editor: " + editorClass, e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Cannot instantiate property editor: " + editorClass, e.getCause());
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Property editor has no default constructor: " + editorClass, e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Property editor is not public: " + editorClass, e);
+        }
+    }
+
+    public String encode(T value) {
+        PropertyEditor pe = editors.get();
+        pe.setValue(value);
+        return pe.getAsText();
+    }
+
+    public T decode(String text) {
+        PropertyEditor pe = editors.get();
+        pe.setAsText(text);
+        return type.cast(pe.getValue());
+    }
+}
@@ -0,0 +1,196 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Rows of a {@link Table} filtered by conditions on their fields, started
+ * with {@link Table#where(String, Operator, Object)} or {@link Table#select(String...)}.
+ * <p/>
+ * Conditions are checked against the stored row: only fields they refer
+ * to are decoded, and rows that don't match are never instantiated. Rows
+ * that do are read whole, or, when {@link #select(String...) selected},
+ * with just the selected fields set and the rest left at their defaults.
+ * Collection fields that aren't selected are skipped without decoding.
+ * <p/>
+ * When a condition is on an {@link Indexed} field, only rows the index
+ * points at are read. Results are ordered by id.
+ */
+public final class Query<T extends Identified> {
+    private final Table<T> table;
+    private final ClassPlan<T> plan;
+    private final List<Condition> conditions = new ArrayList<Condition>();
+    private final List<String> conditionFields = new ArrayList<String>();
+    private List<String> selected;
+
+    Query(Table<T> table, ClassPlan<T> plan) {
+        this.table = table;
+        this.plan = plan;
+    }
+
+    /**
+     * Keeps only rows where given field compares to value as stated; all
+     * conditions must hold.
+     */
+    public Query<T> where(String field, Operator operator, Object value) {
+        int position = plan.indexOf(field);
+        FieldPlan fieldPlan = plan.getFields().get(position);
+        if (fieldPlan.getKind() != FieldPlan.Kind.SCALAR)
+            throw new IllegalStateException("Cannot compare collection field: " + field);
+        conditions.add(new Condition(field, position, operator, fieldPlan.coerce(value)));
+        conditionFields.add(field);
+        return this;
+    }
+
+    /**
+     * Sets only given fields of returned rows, besides their id.
+     */
+    public Query<T> select(String... fields) {
+        for (String field : fields)
+            plan.indexOf(field);
+        selected = Arrays.asList(fields);
+        return this;
+    }
+
+    public List<T> list() {
+        List<T> rows = new ArrayList<T>();
+        Iterator<T> matching = iterator();
+        while (matching.hasNext())
+            rows.add(matching.next());
+        return rows;
+    }
+
+    /**
+     * @return matching rows, read as the stream gets to them
+     */
+    public Stream<T> stream() {
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    /**
+     * @return number of matching rows; none of them is instantiated
+     */
+    public long count() {
+        long[] ids = candidates();
+        Projection conditionProjection = Projection.of(plan, conditionFields);
+        Object[] values = new Object[plan.getFields().size()];
+        long count = 0;
+        for (long id : ids) {
+            if (matches(table.readRow(id), conditionProjection, values) != null)
+                count++;
+        }
+        return count;
+    }
+
+    private Iterator<T> iterator() {
+        final long[] ids = candidates();
+        final Projection conditionProjection = Projection.of(plan, conditionFields);
+        final Projection selectProjection = selected != null ? Projection.of(plan, selected) : null;
+        final Object[] values = new Object[plan.getFields().size()];
+
+        return new Iterator<T>() {
+            private int position;
+            private T next;
+
+            public boolean hasNext() {
+                while (next == null && position < ids.length) {
+                    long id = ids[position++];
+                    ByteBuffer row = matches(table.readRow(id), conditionProjection, values);
+                    if (row != null)
+                        next = instantiate(id, row, selectProjection, values);
+                }
+                return next != null;
+            }
+
+            public T next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                T row = next;
+                next = null;
+                return row;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return ids of rows that may match, ascending; narrowed down by the
+     *         first condition an index can serve
+     */
+    private long[] candidates() {
+        for (Condition condition : conditions) {
+            SecondaryIndex index = table.indexOn(condition.field);
+            if (index == null || condition.value == null)
+                continue;
+
+            long[] ids = null;
+            if (condition.operator == Operator.EQ)
+                ids = index.find(condition.value);
+            else if (index.getType() == IndexType.SORTED && condition.operator != Operator.NE) {
+                boolean below = condition.operator == Operator.LT || condition.operator == Operator.LE;
+                // Bounds are inclusive; conditions are checked on rows anyway
+                ids = below ? index.range(null, condition.value) : index.range(condition.value, null);
+            }
+            if (ids != null) {
+                Arrays.sort(ids);
+                return ids;
+            }
+        }
+        return table.sortedIds();
+    }
+
+    /**
+     * @return the row, rewound, if it exists and meets all conditions;
+     *         {@code null} otherwise
+     */
+    private ByteBuffer matches(ByteBuffer row, Projection conditionProjection, Object[] values) {
+        if (row == null)
+            return null;
+        if (conditions.isEmpty())
+            return row;
+
+        table.readFields(row.duplicate(), conditionProjection, values);
+        for (Condition condition : conditions) {
+            if (!condition.operator.test(values[condition.position], condition.value))
+                return null;
+        }
+        return row;
+    }
+
+    private T instantiate(long id, ByteBuffer row, Projection selectProjection, Object[] values) {
+        if (selectProjection == null)
+            return table.deserializeObject(row);
+
+        table.readFields(row, selectProjection, values);
+        T object = plan.newInstance();
+        List<FieldPlan> fields = plan.getFields();
+        for (int i = 0; i <= selectProjection.getLast(); i++) {
+            if (selectProjection.includes(i))
+                fields.get(i).set(object, values[i]);
+        }
+        object.setId(id);
+        return object;
+    }
+
+    private static final class Condition {
+        private final String field;
+        private final int position;
+        private final Operator operator;
+        private final Object value;
+
+        private Condition(String field, int position, Operator operator, Object value) {
+            this.field = field;
+            this.position = position;
+            this.operator = operator;
+            this.value = value;
+        }
+    }
+}
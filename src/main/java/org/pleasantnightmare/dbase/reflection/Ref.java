@@ -0,0 +1,125 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+/**
+ * Reference to a row of another table, stored as its class and id
+ * instead of the row itself. Its target is loaded on first {@link #get()},
+ * from a table of that class open on the backend the referring row was
+ * read from, or in bulk through {@link Table#resolve(java.util.Collection)}.
+ * <p/>
+ * Fields are declared as {@code Ref<Customer>} rather than {@code Customer},
+ * so that loading a row never loads the rows it refers to. References
+ * are equal when they point to the same row.
+ */
+public final class Ref<T extends Identified> {
+    // Backend of the table rows are being read from, on this thread
+    private static final ThreadLocal<StorageBackend> READING = new ThreadLocal<StorageBackend>();
+
+    private final Class<T> type;
+    private final long id;
+    // Null when not read from a table, to load from ReflectionDAO's backend
+    private final StorageBackend backend;
+    private volatile T target;
+
+    private Ref(Class<T> type, long id, StorageBackend backend) {
+        this.type = type;
+        this.id = id;
+        this.backend = backend;
+    }
+
+    /**
+     * @return reference to given stored row, already loaded
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Identified> Ref<T> to(T target) {
+        if (!target.isPersisted())
+            throw new IllegalStateException("Cannot refer to a row that isn't stored yet: " + target);
+        Ref<T> ref = new Ref<T>((Class<T>) target.getClass(), target.getId(), null);
+        ref.target = target;
+        return ref;
+    }
+
+    /**
+     * @return reference to row with given id in the table of given class
+     */
+    public static <T extends Identified> Ref<T> of(Class<T> type, long id) {
+        return new Ref<T>(type, id, null);
+    }
+
+    /**
+     * @return reference read from a row, loading from the backend rows are
+     *         being read from on this thread
+     */
+    static <T extends Identified> Ref<T> read(Class<T> type, long id) {
+        return new Ref<T>(type, id, READING.get());
+    }
+
+    /**
+     * Sets backend references read on this thread load from, until set again.
+     *
+     * @return backend set before
+     */
+    static StorageBackend reading(StorageBackend backend) {
+        StorageBackend previous = READING.get();
+        READING.set(backend);
+        return previous;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isLoaded() {
+        return target != null;
+    }
+
+    /**
+     * @return referenced row, loaded on first call; {@code null} if there
+     *         is no such row (any more)
+     * @throws IllegalStateException if no table of the row's class is open
+     */
+    public T get() {
+        T loaded = target;
+        if (loaded == null) {
+            loaded = (backend != null ? backend : ReflectionDAO.getInstance().getBackend()).find(type).selectById(id);
+            target = loaded;
+        }
+        return loaded;
+    }
+
+    void load(T target) {
+        this.target = target;
+    }
+
+    /**
+     * @return same reference, not loaded yet
+     */
+    Ref<T> copy() {
+        return new Ref<T>(type, id, backend);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Ref))
+            return false;
+        Ref<?> other = (Ref<?>) o;
+        return id == other.id && type.equals(other.type);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type.hashCode() + (int) (id ^ (id >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return type.getName() + ":" + id;
+    }
+}
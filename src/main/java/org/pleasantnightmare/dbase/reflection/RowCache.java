@@ -0,0 +1,93 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used rows of a table, kept decoded so repeated
+ * {@link Table#selectById(long)} calls skip reading and parsing.
+ * Bounded by number of rows, by stored size of rows, or both.
+ * <p/>
+ * Rows read before an invalidation must not be cached after it, or an
+ * update racing with a read would leave a stale row behind. Readers
+ * take a {@link #stamp()} before reading the store and {@link #put} is
+ * ignored when anything was invalidated in between.
+ */
+final class RowCache<T> {
+    private final int maxRows;
+    private final long maxBytes;
+    private final LinkedHashMap<Long, Entry<T>> rows = new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true);
+    private long bytes;
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxRows  maximum number of rows, {@code 0} for no limit
+     * @param maxBytes maximum stored size of rows, {@code 0} for no limit
+     */
+    RowCache(int maxRows, long maxBytes) {
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return cached row, or {@code null} if there is none
+     */
+    synchronized T get(long id) {
+        Entry<T> entry = rows.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.row;
+    }
+
+    synchronized long stamp() {
+        return invalidations;
+    }
+
+    /**
+     * @param weight stored size of the row
+     * @param stamp  {@link #stamp()} taken before the row was read
+     */
+    synchronized void put(long id, T row, int weight, long stamp) {
+        if (stamp != invalidations || (maxBytes > 0 && weight > maxBytes))
+            return;
+
+        Entry<T> previous = rows.put(id, new Entry<T>(row, weight));
+        if (previous != null)
+            bytes -= previous.weight;
+        bytes += weight;
+
+        Iterator<Entry<T>> eldest = rows.values().iterator();
+        while ((maxRows > 0 && rows.size() > maxRows) || (maxBytes > 0 && bytes > maxBytes)) {
+            bytes -= eldest.next().weight;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void invalidate(long id) {
+        invalidations++;
+        Entry<T> entry = rows.remove(id);
+        if (entry != null)
+            bytes -= entry.weight;
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, rows.size(), bytes);
+    }
+
+    private static final class Entry<T> {
+        private final T row;
+        private final int weight;
+
+        private Entry(T row, int weight) {
+            this.row = row;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes objects as stored rows and reads them back, using class plans
+ * for field layout. Implementations are stateless and shared between
+ * threads; I/O failures are reported as {@link IllegalStateException}s.
+ */
+interface RowCodec {
+    void write(ClassPlan<?> plan, Object o, OutputStream outputStream);
+
+    <T> T read(ClassPlan<T> plan, InputStream inputStream);
+
+    /**
+     * Reads values of some fields only, without instantiating the object.
+     * Other fields are skipped without being decoded, and the row is read
+     * no further than the last wanted field.
+     *
+     * @param projection which fields of the plan to read
+     * @param values receives read values, at positions of their fields
+     */
+    void readFields(ClassPlan<?> plan, InputStream inputStream, Projection projection, Object[] values);
+}
@@ -0,0 +1,16 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * How rows are stored. Reading always detects the format of each row by
+ * itself, so a table can hold rows of both formats at once.
+ */
+public enum RowFormat {
+    /**
+     * Human readable XML, the format reflection DAO always used.
+     */
+    XML,
+    /**
+     * Compact binary encoding, smaller and faster to read and write.
+     */
+    BINARY
+}
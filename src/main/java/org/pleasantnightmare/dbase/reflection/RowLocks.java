@@ -0,0 +1,106 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks on rows of a table, striped by id: a fixed number of
+ * locks, each guarding every row whose id falls on it. Reads never block
+ * each other; writes block reads and writes of rows on the same stripe.
+ * <p/>
+ * Shared by all tables opened on the same directory, like the rest of
+ * table state. Batches lock their stripes in ascending order, so two
+ * batches can't deadlock.
+ */
+final class RowLocks {
+    static final int STRIPES = 64;
+
+    private static final Map<File, RowLocks> OPEN_LOCKS = new HashMap<File, RowLocks>();
+
+    private final File directory;
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    private int references;
+
+    private RowLocks(File directory) {
+        this.directory = directory;
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * @return locks not shared through {@link #open}, for in-memory tables
+     */
+    static RowLocks unshared() {
+        return new RowLocks(null);
+    }
+
+    static RowLocks open(File directory) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_LOCKS) {
+            RowLocks locks = OPEN_LOCKS.get(key);
+            if (locks == null) {
+                locks = new RowLocks(key);
+                OPEN_LOCKS.put(key, locks);
+            }
+            locks.references++;
+            return locks;
+        }
+    }
+
+    Lock read(long id) {
+        return stripe(id).readLock();
+    }
+
+    Lock write(long id) {
+        return stripe(id).writeLock();
+    }
+
+    /**
+     * Takes write locks of all stripes given rows are on.
+     *
+     * @return stripes taken, to be passed to {@link #unlockAll}
+     */
+    boolean[] lockAll(long[] ids) {
+        boolean[] taken = new boolean[STRIPES];
+        for (long id : ids)
+            taken[index(id)] = true;
+        for (int i = 0; i < STRIPES; i++) {
+            if (taken[i])
+                stripes[i].writeLock().lock();
+        }
+        return taken;
+    }
+
+    void unlockAll(boolean[] taken) {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            if (taken[i])
+                stripes[i].writeLock().unlock();
+        }
+    }
+
+    void close() {
+        synchronized (OPEN_LOCKS) {
+            if (--references == 0)
+                OPEN_LOCKS.remove(directory);
+        }
+    }
+
+    private ReentrantReadWriteLock stripe(long id) {
+        return stripes[index(id)];
+    }
+
+    private static int index(long id) {
+        // Consecutive ids land on different stripes
+        return (int) (id & (STRIPES - 1));
+    }
+}
@@ -0,0 +1,122 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Hashes of rows as last read or written, for recently used rows of a
+ * table, so that updates can tell what changed without reading the row
+ * back. Binary rows are hashed field by field (see {@link #hash}),
+ * anything else whole.
+ * <p/>
+ * Every write of a row goes through here, so hashes never describe an
+ * outdated row; rows written in batches are just forgotten. Shared by all
+ * tables opened on the same directory, like the rest of table state.
+ */
+final class RowSnapshots {
+    private static final Map<File, RowSnapshots> OPEN_SNAPSHOTS = new HashMap<File, RowSnapshots>();
+
+    private final File directory;
+    private final LinkedHashMap<Long, long[]> hashes;
+    private int references;
+
+    private RowSnapshots(File directory, final int maxRows) {
+        this.directory = directory;
+        this.hashes = new LinkedHashMap<Long, long[]>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+                return size() > maxRows;
+            }
+        };
+    }
+
+    /**
+     * @return snapshots not shared through {@link #open}, for in-memory tables
+     */
+    static RowSnapshots unshared(int maxRows) {
+        return new RowSnapshots(null, maxRows);
+    }
+
+    /**
+     * Opens snapshots of table in given directory, or shares ones already
+     * open there (in which case their size applies).
+     */
+    static RowSnapshots open(File directory, int maxRows) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_SNAPSHOTS) {
+            RowSnapshots snapshots = OPEN_SNAPSHOTS.get(key);
+            if (snapshots == null) {
+                snapshots = new RowSnapshots(key, maxRows);
+                OPEN_SNAPSHOTS.put(key, snapshots);
+            }
+            snapshots.references++;
+            return snapshots;
+        }
+    }
+
+    /**
+     * @return hashes of the stored row, or {@code null} if it isn't known
+     */
+    synchronized long[] get(long id) {
+        return hashes.get(id);
+    }
+
+    synchronized void put(long id, long[] rowHashes) {
+        hashes.put(id, rowHashes);
+    }
+
+    synchronized void forget(long id) {
+        hashes.remove(id);
+    }
+
+    void close() {
+        synchronized (OPEN_SNAPSHOTS) {
+            if (--references == 0)
+                OPEN_SNAPSHOTS.remove(directory);
+        }
+    }
+
+    /**
+     * @return for binary rows, hash of everything before the fields (which
+     *         includes the class schema fingerprint), followed by a hash of
+     *         every field; for others, a single hash of the whole row
+     */
+    static long[] hash(ByteBuffer row) {
+        int[] bounds = BinaryDelta.fieldBounds(row);
+        if (bounds == null)
+            return new long[]{hash(row, 0, row.remaining())};
+
+        long[] rowHashes = new long[bounds.length];
+        rowHashes[0] = hash(row, 0, bounds[0]);
+        for (int i = 1; i < bounds.length; i++)
+            rowHashes[i] = hash(row, bounds[i - 1], bounds[i]);
+        return rowHashes;
+    }
+
+    /**
+     * Two independent 32 bit hashes, so that an unchanged hash can be
+     * trusted to mean unchanged bytes.
+     */
+    private static long hash(ByteBuffer row, int from, int to) {
+        ByteBuffer bytes = row.duplicate();
+        bytes.position(row.position() + from);
+        bytes.limit(row.position() + to);
+        int polynomial = 1;
+        for (int i = bytes.position(); i < bytes.limit(); i++)
+            polynomial = 31 * polynomial + bytes.get(i);
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue() << 32 | (polynomial & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,56 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a {@link Table} keeps its encoded rows, addressed by row id.
+ * Failures are reported as {@link IllegalStateException}s.
+ * <p/>
+ * A row is replaced atomically, and written rows are forced to disk as
+ * the table's {@link SyncPolicy} says. Incomplete writes left by a crash
+ * are rolled back when the store is opened.
+ */
+interface RowStore extends Closeable {
+    /**
+     * @return encoded row, or {@code null} if there is no row with given id
+     */
+    ByteBuffer read(long id);
+
+    boolean contains(long id);
+
+    /**
+     * Stores row with given id, replacing existing one if there is any.
+     */
+    void write(long id, byte[] row, int length);
+
+    /**
+     * Stores rows in one pass, {@code rows[i]} under {@code ids[i]}.
+     */
+    void writeAll(long[] ids, byte[][] rows);
+
+    /**
+     * Stores changed fields of a row instead of the whole row, see {@link BinaryDelta}.
+     *
+     * @return false if there is no such row or store doesn't keep deltas,
+     *         in which case the whole row must be written instead
+     */
+    boolean patch(long id, byte[] delta);
+
+    /**
+     * @return false if there was no row with given id
+     */
+    boolean delete(long id);
+
+    /**
+     * Deletes rows in one pass, ignoring ids there are no rows for.
+     */
+    void deleteAll(long[] ids);
+
+    /**
+     * @return ids of all stored rows, in no particular order
+     */
+    long[] ids();
+
+    void close();
+}
@@ -0,0 +1,167 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Every schema rows of a table were ever written in, so rows written
+ * before a class gained, lost or reordered fields can still be read:
+ * their fields are bound to the class's current ones by name (see
+ * {@link StoredSchema#bindTo}). Bindings are worked out once per schema.
+ * <p/>
+ * Kept in {@code .schemas} of the table directory, one schema per line,
+ * added to (and forced to disk) before the first row of a new schema
+ * is written. Rows of schemas written before there was a catalog can
+ * only be read as long as the class stays as it was. Shared by all
+ * tables opened on the same directory.
+ */
+final class SchemaCatalog {
+    private static final Logger LOG = LoggerFactory.getLogger(SchemaCatalog.class);
+    static final String SCHEMAS_FILE = ".schemas";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Map<File, SchemaCatalog> OPEN_CATALOGS = new HashMap<File, SchemaCatalog>();
+
+    // Null for catalogs of in-memory tables
+    private final File file;
+    private final ConcurrentMap<Long, StoredSchema> schemas = new ConcurrentHashMap<Long, StoredSchema>();
+    private final ConcurrentMap<Long, Binding> bindings = new ConcurrentHashMap<Long, Binding>();
+    private int references;
+
+    private SchemaCatalog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return catalog not kept on disk nor shared, for in-memory tables
+     */
+    static SchemaCatalog inMemory() {
+        return new SchemaCatalog(null);
+    }
+
+    static SchemaCatalog open(File directory) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_CATALOGS) {
+            SchemaCatalog catalog = OPEN_CATALOGS.get(key);
+            if (catalog == null) {
+                catalog = new SchemaCatalog(new File(key, SCHEMAS_FILE));
+                catalog.load();
+                OPEN_CATALOGS.put(key, catalog);
+            }
+            catalog.references++;
+            return catalog;
+        }
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    StoredSchema schema = StoredSchema.parse(line);
+                    if (schema != null)
+                        schemas.put(schema.getFingerprint(), schema);
+                    else if (!line.trim().isEmpty())
+                        LOG.warn("Ignoring malformed schema in {}: {}", file, line);
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records schema of given plan, unless it is known already.
+     */
+    void register(ClassPlan<?> plan) {
+        if (schemas.containsKey(plan.getFingerprint()))
+            return;
+
+        synchronized (this) {
+            if (schemas.containsKey(plan.getFingerprint()))
+                return;
+            StoredSchema schema = StoredSchema.of(plan);
+            if (file != null)
+                append(schema);
+            schemas.put(schema.getFingerprint(), schema);
+        }
+    }
+
+    private void append(StoredSchema schema) {
+        try {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            try {
+                // Starts on a line of its own even after a torn write
+                ByteBuffer line = ByteBuffer.wrap(("\n" + schema + "\n").getBytes(UTF8));
+                while (line.hasRemaining())
+                    channel.write(line);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return for every field of rows in schema with given fingerprint,
+     *         position of given plan's field it is read into, or {@code -1}
+     *         to skip it; {@code null} if schema is not known
+     */
+    int[] binding(long fingerprint, ClassPlan<?> plan) {
+        Binding binding = bindings.get(fingerprint);
+        // Plans are rebuilt when codecs are registered
+        if (binding != null && binding.plan == plan)
+            return binding.targets;
+
+        StoredSchema schema = schemas.get(fingerprint);
+        if (schema == null)
+            return null;
+        binding = new Binding(plan, schema.bindTo(plan));
+        bindings.put(fingerprint, binding);
+        return binding.targets;
+    }
+
+    void close() {
+        if (file == null)
+            return;
+        synchronized (OPEN_CATALOGS) {
+            if (--references > 0)
+                return;
+            OPEN_CATALOGS.remove(file.getParentFile());
+        }
+    }
+
+    private static final class Binding {
+        private final ClassPlan<?> plan;
+        private final int[] targets;
+
+        private Binding(ClassPlan<?> plan, int[] targets) {
+            this.plan = plan;
+            this.targets = targets;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Secondary index on one field of a table: field values mapped to ids of
+ * rows holding them. Kept in memory and persisted as an append-only log,
+ * {@code .index-<field>} in the table directory, which is replayed when
+ * the table is opened and rewritten as a snapshot once it is mostly
+ * superseded records.
+ * <p/>
+ * Entries are logged once their row is written or deleted, so a failed
+ * write leaves the index as it was. Closing the index ends the log with
+ * a {@code CLOSE} record; a log that doesn't end with one may have lost
+ * entries of rows written just before a crash, so the index is rebuilt,
+ * as it is when it knows a different set of ids than the store. Entries
+ * are forced to disk whenever their rows are, see {@link SyncPolicy}.
+ * <p/>
+ * Indexes of in-memory tables have no log, and are rebuilt whenever
+ * their table is opened.
+ * <p/>
+ * Log starts with {@code magic (4) | class fingerprint (8) | index type (1)},
+ * followed by records {@code PUT (1) | id (8) | has value (1) | value length (4) | UTF-8 value},
+ * {@code REMOVE (1) | id (8)} and {@code CLOSE (1)}. Values are encoded by the field's codec.
+ */
+final class SecondaryIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(SecondaryIndex.class);
+
+    static final String FILE_PREFIX = ".index-";
+    private static final int MAGIC = 0x52444958;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLOSE = 3;
+    // Log is rewritten once it has this many records and less than half are live
+    private static final int MIN_COMPACTION_RECORDS = 1024;
+
+    // Null for indexes that aren't persisted
+    private final File file;
+    private final FieldPlan field;
+    private final IndexType type;
+    private final long fingerprint;
+    private final Map<Object, Set<Long>> ids;
+    // Every row is here, including those where the field is null
+    private final Map<Long, Object> keys = new HashMap<Long, Object>();
+    private FileOutputStream logFile;
+    private DataOutputStream log;
+    private long logRecords;
+
+    /**
+     * @param directory where the log is kept; {@code null} for none
+     */
+    SecondaryIndex(File directory, long fingerprint, FieldPlan field, IndexType type) {
+        check(field, type);
+        this.file = directory != null ? new File(directory, FILE_PREFIX + field.getName()) : null;
+        this.field = field;
+        this.type = type;
+        this.fingerprint = fingerprint;
+        this.ids = type == IndexType.SORTED ? new TreeMap<Object, Set<Long>>() : new HashMap<Object, Set<Long>>();
+    }
+
+    private static void check(FieldPlan field, IndexType type) {
+        if (field.getKind() != FieldPlan.Kind.SCALAR || field.getType().isArray() || field.getCodec() == null)
+            throw new IllegalStateException("Cannot index field: " + field.getName());
+        if (type == IndexType.SORTED && !field.getType().isPrimitive() && !Comparable.class.isAssignableFrom(field.getType()))
+            throw new IllegalStateException("Sorted index needs comparable values, field: " + field.getName());
+    }
+
+    FieldPlan getField() {
+        return field;
+    }
+
+    IndexType getType() {
+        return type;
+    }
+
+    /**
+     * Replays the log.
+     *
+     * @param storedIds ids of rows in the store
+     * @return false if there was no usable log, or it doesn't cover exactly
+     *         given rows; index is left empty then, to be rebuilt
+     */
+    boolean load(long[] storedIds) {
+        if (file == null || !file.exists())
+            return false;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readLong() != fingerprint || in.readByte() != type.ordinal()) {
+                LOG.info("Index {} was built for other version of the class", file);
+                return false;
+            }
+
+            int op;
+            boolean closed = false;
+            while ((op = in.read()) != -1) {
+                closed = op == CLOSE;
+                if (closed)
+                    continue;
+                long id = in.readLong();
+                if (op == PUT)
+                    apply(id, in.readBoolean() ? field.getCodec().decode(readString(in)) : null);
+                else if (op == REMOVE)
+                    unapply(id);
+                else
+                    throw new IllegalStateException("Corrupt index " + file);
+                logRecords++;
+            }
+            if (!closed) {
+                LOG.info("Index {} was not closed", file);
+                clear();
+                return false;
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot read index " + file, e);
+            clear();
+            return false;
+        } catch (RuntimeException e) {
+            LOG.warn("Cannot read index " + file, e);
+            clear();
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+
+        boolean current = keys.size() == storedIds.length;
+        for (int i = 0; current && i < storedIds.length; i++)
+            current = keys.containsKey(storedIds[i]);
+        if (!current) {
+            LOG.info("Index {} is out of date", file);
+            clear();
+        }
+        return current;
+    }
+
+    /**
+     * Adds row to an index being rebuilt; {@link #open()} writes it out.
+     */
+    void rebuild(long id, Object row) {
+        apply(id, field.get(row));
+    }
+
+    /**
+     * Starts logging changes. Index that was rebuilt or loaded from a
+     * log mostly of dead records is written out as a snapshot first.
+     */
+    synchronized void open(boolean rebuilt) {
+        if (file == null)
+            return;
+        if (rebuilt || needsCompaction())
+            writeSnapshot();
+        else
+            openLog();
+    }
+
+    synchronized void put(long id, Object row, boolean sync) {
+        try {
+            logPut(id, field.get(row));
+            flush(sync);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        compactIfNeeded();
+    }
+
+    synchronized void putAll(long[] rowIds, List<?> rows, boolean sync) {
+        try {
+            for (int i = 0; i < rowIds.length; i++)
+                logPut(rowIds[i], field.get(rows.get(i)));
+            flush(sync);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        compactIfNeeded();
+    }
+
+    synchronized void removeAll(long[] rowIds, boolean sync) {
+        try {
+            for (long id : rowIds) {
+                if (!keys.containsKey(id))
+                    continue;
+                if (log != null) {
+                    log.writeByte(REMOVE);
+                    log.writeLong(id);
+                    logRecords++;
+                }
+                unapply(id);
+            }
+            flush(sync);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * @return ids of rows where the field equals given key, ascending
+     */
+    synchronized long[] find(Object key) {
+        Set<Long> found = ids.get(key);
+        return found != null ? toArray(Collections.singletonList(found)) : new long[0];
+    }
+
+    /**
+     * @param from lowest key, inclusive; {@code null} for no lower bound
+     * @param to   highest key, inclusive; {@code null} for no upper bound
+     * @return ids of rows where the field is within bounds, ordered by key, then by id
+     */
+    @SuppressWarnings("unchecked")
+    synchronized long[] range(Object from, Object to) {
+        if (type != IndexType.SORTED)
+            throw new IllegalStateException("Index on field " + field.getName() + " doesn't support ranges");
+
+        NavigableMap<Object, Set<Long>> sorted = (NavigableMap<Object, Set<Long>>) ids;
+        if (from != null && to != null && ((Comparable<Object>) from).compareTo(to) > 0)
+            return new long[0];
+        if (from != null)
+            sorted = sorted.tailMap(from, true);
+        if (to != null)
+            sorted = sorted.headMap(to, true);
+        return toArray(sorted.values());
+    }
+
+    /**
+     * Turns value looked up by into a key of the field's type, so that for
+     * example an {@code int} can be used to look up a {@code long} field.
+     */
+    Object toKey(Object value) {
+        if (value == null)
+            throw new IllegalStateException("Null values are not indexed, field: " + field.getName());
+        return field.coerce(value);
+    }
+
+    /**
+     * @return whether field of given row is within given bounds, as taken by {@link #range}
+     */
+    @SuppressWarnings("unchecked")
+    boolean matches(Object row, Object from, Object to) {
+        Object value = field.get(row);
+        if (value == null)
+            return false;
+        if (type == IndexType.HASH)
+            return value.equals(from);
+        Comparable<Object> comparable = (Comparable<Object>) value;
+        return (from == null || comparable.compareTo(from) >= 0) && (to == null || comparable.compareTo(to) <= 0);
+    }
+
+    synchronized void close() {
+        if (log != null) {
+            try {
+                log.writeByte(CLOSE);
+                flush(true);
+            } catch (IOException e) {
+                LOG.warn("Failed to close index " + file, e);
+            }
+        }
+        closeQuietly(log);
+        log = null;
+    }
+
+    private void logPut(long id, Object key) throws IOException {
+        if (keys.containsKey(id) && equal(keys.get(id), key))
+            return;
+        if (log != null) {
+            writePut(log, id, key);
+            logRecords++;
+        }
+        apply(id, key);
+    }
+
+    private void flush(boolean sync) throws IOException {
+        if (log == null)
+            return;
+        log.flush();
+        if (sync)
+            logFile.getFD().sync();
+    }
+
+    private void writePut(DataOutputStream out, long id, Object key) throws IOException {
+        out.writeByte(PUT);
+        out.writeLong(id);
+        out.writeBoolean(key != null);
+        if (key != null) {
+            byte[] bytes = field.getCodec().encode(key).getBytes(BinaryOutput.UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, BinaryOutput.UTF8);
+    }
+
+    private void apply(long id, Object key) {
+        unapply(id);
+        keys.put(id, key);
+        if (key == null)
+            return;
+        Set<Long> rows = ids.get(key);
+        if (rows == null) {
+            rows = new TreeSet<Long>();
+            ids.put(key, rows);
+        }
+        rows.add(id);
+    }
+
+    private void unapply(long id) {
+        if (!keys.containsKey(id))
+            return;
+        Object key = keys.remove(id);
+        if (key == null)
+            return;
+        Set<Long> rows = ids.get(key);
+        rows.remove(id);
+        if (rows.isEmpty())
+            ids.remove(key);
+    }
+
+    private void clear() {
+        ids.clear();
+        keys.clear();
+        logRecords = 0;
+    }
+
+    private boolean needsCompaction() {
+        return logRecords >= MIN_COMPACTION_RECORDS && logRecords > 2 * keys.size();
+    }
+
+    private void compactIfNeeded() {
+        if (needsCompaction())
+            writeSnapshot();
+    }
+
+    /**
+     * Replaces the log with live entries only, written to a temporary file
+     * that is then renamed over it.
+     */
+    private void writeSnapshot() {
+        closeQuietly(log);
+        log = null;
+
+        File snapshot = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(snapshot);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeLong(fingerprint);
+            out.writeByte(type.ordinal());
+            for (Map.Entry<Long, Object> entry : keys.entrySet())
+                writePut(out, entry.getKey(), entry.getValue());
+            out.flush();
+            fos.getFD().sync();
+            out.close();
+            out = null;
+            Files.move(snapshot.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write index " + file, e);
+        } finally {
+            closeQuietly(out);
+        }
+        logRecords = keys.size();
+        openLog();
+    }
+
+    private void openLog() {
+        try {
+            logFile = new FileOutputStream(file, true);
+            log = new DataOutputStream(new BufferedOutputStream(logFile));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open index " + file, e);
+        }
+    }
+
+    private static long[] toArray(Collection<Set<Long>> sets) {
+        int size = 0;
+        for (Set<Long> set : sets)
+            size += set.size();
+        long[] array = new long[size];
+        int i = 0;
+        for (Set<Long> set : sets) {
+            for (Long id : set)
+                array[i++] = id;
+        }
+        return array;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null)
+                closeable.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close index!", e);
+        }
+    }
+}
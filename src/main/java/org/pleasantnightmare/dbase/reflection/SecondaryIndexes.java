@@ -0,0 +1,149 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Secondary indexes of a table, declared through {@link Indexed} and
+ * {@link TableOptions#index(String, IndexType)}. Indexes whose logs are
+ * missing or out of date are rebuilt together, in a single scan of the
+ * table.
+ * <p/>
+ * Shared by all tables opened on the same directory, like the rest of
+ * table state; indexes declared by the first of them apply.
+ * In-memory tables get {@link #inMemory unshared} indexes without logs.
+ */
+final class SecondaryIndexes {
+    private static final Logger LOG = LoggerFactory.getLogger(SecondaryIndexes.class);
+    private static final Map<File, SecondaryIndexes> OPEN_INDEXES = new HashMap<File, SecondaryIndexes>();
+
+    // Null for indexes of in-memory tables
+    private final File directory;
+    private final Map<String, SecondaryIndex> indexes = new LinkedHashMap<String, SecondaryIndex>();
+    private int references;
+
+    private SecondaryIndexes(File directory) {
+        this.directory = directory;
+    }
+
+    static SecondaryIndexes open(File directory, ClassPlan<?> plan, TableOptions options, RowStore store, SchemaCatalog schemas) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_INDEXES) {
+            SecondaryIndexes indexes = OPEN_INDEXES.get(key);
+            if (indexes == null) {
+                indexes = new SecondaryIndexes(key);
+                indexes.load(plan, options, store, schemas);
+                OPEN_INDEXES.put(key, indexes);
+            }
+            indexes.references++;
+            return indexes;
+        }
+    }
+
+    /**
+     * @return indexes built from given store, that aren't persisted
+     */
+    static SecondaryIndexes inMemory(ClassPlan<?> plan, TableOptions options, RowStore store, SchemaCatalog schemas) {
+        SecondaryIndexes indexes = new SecondaryIndexes(null);
+        indexes.load(plan, options, store, schemas);
+        return indexes;
+    }
+
+    private void load(ClassPlan<?> plan, TableOptions options, RowStore store, SchemaCatalog schemas) {
+        Map<String, IndexType> declared = new LinkedHashMap<String, IndexType>();
+        for (FieldPlan field : plan.getFields()) {
+            if (field.getIndex() != null && !declared.containsKey(field.getName()))
+                declared.put(field.getName(), field.getIndex());
+        }
+        declared.putAll(options.getIndexes());
+        if (declared.isEmpty())
+            return;
+
+        for (Map.Entry<String, IndexType> entry : declared.entrySet())
+            indexes.put(entry.getKey(), new SecondaryIndex(directory, plan.getFingerprint(), plan.getFields().get(plan.indexOf(entry.getKey())), entry.getValue()));
+
+        long[] ids = store.ids();
+        List<SecondaryIndex> stale = new ArrayList<SecondaryIndex>();
+        for (SecondaryIndex index : indexes.values()) {
+            if (!index.load(ids))
+                stale.add(index);
+        }
+
+        if (!stale.isEmpty()) {
+            if (directory != null)
+                LOG.info("Rebuilding {} indexes of {}", stale.size(), directory);
+            for (long id : ids) {
+                ByteBuffer row = store.read(id);
+                if (row == null)
+                    continue;
+                Object data = ReflectionDAO.getInstance().deserialize(plan.getType(), row, schemas);
+                for (SecondaryIndex index : stale)
+                    index.rebuild(id, data);
+            }
+        }
+
+        for (SecondaryIndex index : indexes.values())
+            index.open(stale.contains(index));
+    }
+
+    /**
+     * @return index on given field
+     */
+    SecondaryIndex get(String field) {
+        SecondaryIndex index = indexes.get(field);
+        if (index == null)
+            throw new IllegalStateException("No index on field: " + field);
+        return index;
+    }
+
+    /**
+     * @return index on given field, or {@code null} if there is none
+     */
+    SecondaryIndex find(String field) {
+        return indexes.get(field);
+    }
+
+    /**
+     * Indexes given row, once it is written.
+     *
+     * @param sync whether to force index logs to disk
+     */
+    void put(long id, Object row, boolean sync) {
+        for (SecondaryIndex index : indexes.values())
+            index.put(id, row, sync);
+    }
+
+    void putAll(long[] ids, List<?> rows, boolean sync) {
+        for (SecondaryIndex index : indexes.values())
+            index.putAll(ids, rows, sync);
+    }
+
+    /**
+     * Drops given rows from indexes, once they are deleted.
+     */
+    void removeAll(long[] ids, boolean sync) {
+        for (SecondaryIndex index : indexes.values())
+            index.removeAll(ids, sync);
+    }
+
+    void close() {
+        synchronized (OPEN_INDEXES) {
+            if (--references > 0)
+                return;
+            OPEN_INDEXES.remove(directory);
+        }
+        for (SecondaryIndex index : indexes.values())
+            index.close();
+    }
+}
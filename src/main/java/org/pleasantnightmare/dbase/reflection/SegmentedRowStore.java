@@ -0,0 +1,729 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * {@link StorageLayout#SEGMENTED}: rows are records appended to segment
+ * files ({@code .segment-00000001}, ...), located through an in-memory
+ * index of id to record position. The index is rebuilt by scanning the
+ * segments when the store is opened.
+ * <p/>
+ * Every record is {@code type (1) | id (8) | length (4) | crc32 (4) | row}.
+ * Deleting a row appends a tombstone record. An update can append just
+ * the changed fields ({@link BinaryDelta}), which are merged into the row
+ * when it is read; a row carries at most {@link #MAX_PATCHES} of them
+ * before it is written whole again, and compaction writes rows it copies
+ * whole too. Once only a small part of a
+ * full segment is still referenced by the index, live records are copied
+ * to the active segment in the background and the old segment is removed.
+ * <p/>
+ * When memory mapped, rows are read as slices of a read-only mapping of
+ * their segment. Mappings cover a segment as it was when mapped, so the
+ * active segment is remapped once it has doubled past its mapping; rows
+ * in between are read from the file channel.
+ * <p/>
+ * Records are only ever appended, so a crash can at worst leave the last
+ * of them incomplete; {@link #load} drops such a record when its checksum
+ * doesn't match, which rolls the row back to its previous version. When
+ * records are forced to disk is up to {@link SyncPolicy}.
+ * <p/>
+ * Stores are shared by all tables opened on the same directory, and closed
+ * when the last of those tables is closed.
+ */
+final class SegmentedRowStore implements RowStore {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedRowStore.class);
+
+    private static final String SEGMENT_PREFIX = ".segment-";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte PATCH = 3;
+    static final int MAX_PATCHES = 8;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+    // Full segments with less than this part still live get compacted
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final byte[] NO_DATA = new byte[0];
+    // Batches are appended in writes of up to this size
+    private static final int MAX_BATCH_WRITE = 4 * 1024 * 1024;
+
+    private static final Map<File, SegmentedRowStore> OPEN_STORES = new HashMap<File, SegmentedRowStore>();
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "reflection-dao-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File directory;
+    private final long maxSegmentSize;
+    private final boolean memoryMapped;
+    private final SyncPolicy sync;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Location> index = new HashMap<Long, Location>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private boolean compactionScheduled;
+    private int references;
+    private boolean closed;
+    // Records appended since active segment was last forced
+    private volatile boolean unsynced;
+    // Records are put together here before being appended, under the write lock
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(4096);
+    private ScheduledFuture<?> periodicSync;
+
+    private SegmentedRowStore(File directory, TableOptions options) {
+        this.directory = directory;
+        this.maxSegmentSize = options.getMaxSegmentSize();
+        this.memoryMapped = options.isMemoryMapped();
+        this.sync = options.getSync();
+        if (sync == SyncPolicy.PERIODIC) {
+            periodicSync = SyncScheduler.schedule(new Runnable() {
+                public void run() {
+                    syncPending();
+                }
+            }, options.getSyncInterval());
+        }
+    }
+
+    /**
+     * Opens store on given directory, or shares one already open there
+     * (in which case options it was opened with apply).
+     */
+    static SegmentedRowStore open(File directory, TableOptions options) {
+        File key;
+        try {
+            key = directory.getCanonicalFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        synchronized (OPEN_STORES) {
+            SegmentedRowStore store = OPEN_STORES.get(key);
+            if (store == null) {
+                store = new SegmentedRowStore(key, options);
+                store.load();
+                OPEN_STORES.put(key, store);
+            }
+            store.references++;
+            return store;
+        }
+    }
+
+    public ByteBuffer read(long id) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Location location = index.get(id);
+            return location != null ? read(location) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return row stored at given location, with its deltas applied
+     */
+    private ByteBuffer read(Location location) {
+        if (location.previous != null)
+            return BinaryDelta.merge(read(location.previous), readRecord(location));
+        return readRecord(location);
+    }
+
+    private ByteBuffer readRecord(Location location) {
+        Segment segment = segments.get(location.segment);
+        if (memoryMapped) {
+            ByteBuffer row = segment.slice(location.offset + HEADER_SIZE, location.length,
+                    segment != active);
+            if (row != null)
+                return row;
+        }
+
+        ByteBuffer row = ByteBuffer.allocate(location.length);
+        readFully(segment.channel, row, location.offset + HEADER_SIZE);
+        row.flip();
+        return row;
+    }
+
+    public boolean contains(long id) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            return index.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void write(long id, byte[] row, int length) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            put(id, append(PUT, id, row, length));
+            if (sync.syncsWrites())
+                force();
+            scheduleCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void writeAll(long[] ids, byte[][] rows) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            appendAll(PUT, ids, rows);
+            scheduleCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean patch(long id, byte[] delta) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            Location location = index.get(id);
+            if (location == null)
+                return false;
+
+            if (location.patches < MAX_PATCHES) {
+                Location patch = append(PATCH, id, delta, delta.length);
+                addPatch(id, new Location(patch.segment, patch.offset, patch.length, location));
+            } else {
+                byte[] row = toArray(BinaryDelta.merge(read(location), ByteBuffer.wrap(delta)));
+                put(id, append(PUT, id, row, row.length));
+            }
+            if (sync.syncsWrites())
+                force();
+            scheduleCompactionIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean delete(long id) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (!index.containsKey(id))
+                return false;
+            append(DELETE, id, NO_DATA, 0);
+            remove(id);
+            if (sync.syncsWrites())
+                force();
+            scheduleCompactionIfNeeded();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void deleteAll(long[] ids) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            long[] present = new long[ids.length];
+            int count = 0;
+            for (long id : ids) {
+                if (index.containsKey(id))
+                    present[count++] = id;
+            }
+            byte[][] rows = new byte[count][];
+            Arrays.fill(rows, NO_DATA);
+            appendAll(DELETE, Arrays.copyOf(present, count), rows);
+            scheduleCompactionIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long[] ids() {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            long[] ids = new long[index.size()];
+            int i = 0;
+            for (Long id : index.keySet())
+                ids[i++] = id;
+            return ids;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void close() {
+        synchronized (OPEN_STORES) {
+            if (--references > 0)
+                return;
+            OPEN_STORES.remove(directory);
+        }
+        if (periodicSync != null)
+            periodicSync.cancel(false);
+
+        lock.writeLock().lock();
+        try {
+            if (sync != SyncPolicy.NONE && unsynced)
+                force();
+            closed = true;
+            for (Segment segment : segments.values())
+                closeQuietly(segment.channel);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("Table is closed: " + directory);
+    }
+
+    private void load() {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX);
+            }
+        });
+        if (names == null)
+            throw new IllegalStateException("Cannot list table directory: " + directory);
+
+        SortedSet<Integer> numbers = new TreeSet<Integer>();
+        for (String name : names)
+            numbers.add(Integer.valueOf(name.substring(SEGMENT_PREFIX.length())));
+
+        try {
+            for (Integer number : numbers) {
+                Segment segment = openSegment(number);
+                segments.put(number, segment);
+                scan(segment, number.equals(numbers.last()));
+            }
+            active = segments.isEmpty() ? newSegment(1) : segments.lastEntry().getValue();
+        } catch (IOException e) {
+            for (Segment segment : segments.values())
+                closeQuietly(segment.channel);
+            throw new IllegalStateException(e);
+        }
+        LOG.debug("Opened {} rows in {} segments of {}", new Object[]{index.size(), segments.size(), directory});
+    }
+
+    /**
+     * Replays records of a segment into the index. A torn record at the end
+     * of the last segment is what an interrupted append leaves behind, and
+     * is cut off; anywhere else it means the segment is corrupt.
+     */
+    private void scan(Segment segment, boolean last) throws IOException {
+        long size = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            byte type = header.get();
+            long id = header.getLong();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if ((type != PUT && type != DELETE && type != PATCH) || length < 0 || position + HEADER_SIZE + length > size)
+                break;
+
+            if (last) {
+                ByteBuffer row = ByteBuffer.allocate(length);
+                readFully(segment.channel, row, position + HEADER_SIZE);
+                if (crc(type, id, row.array(), length) != crc)
+                    break;
+            }
+
+            if (type == PUT)
+                put(id, new Location(segment.number, position, length));
+            else if (type == DELETE)
+                remove(id);
+            else if (index.containsKey(id))
+                addPatch(id, new Location(segment.number, position, length, index.get(id)));
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            if (!last)
+                throw new IllegalStateException("Corrupt segment " + segment.file + " at offset " + position);
+            LOG.warn("Discarding {} bytes of incomplete record at end of {}", size - position, segment.file);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+    }
+
+    private void put(long id, Location location) {
+        remove(id);
+        index.put(id, location);
+        segments.get(location.segment).liveBytes += HEADER_SIZE + location.length;
+    }
+
+    private void addPatch(long id, Location patch) {
+        index.put(id, patch);
+        segments.get(patch.segment).liveBytes += HEADER_SIZE + patch.length;
+    }
+
+    private void remove(long id) {
+        for (Location previous = index.remove(id); previous != null; previous = previous.previous)
+            segments.get(previous.segment).liveBytes -= HEADER_SIZE + previous.length;
+    }
+
+    private Location append(byte type, long id, byte[] row, int length) {
+        try {
+            if (active.size >= maxSegmentSize)
+                rollSegment();
+
+            if (recordBuffer.capacity() < HEADER_SIZE + length)
+                recordBuffer = ByteBuffer.allocate(Math.max(2 * recordBuffer.capacity(), HEADER_SIZE + length));
+            ByteBuffer record = recordBuffer;
+            record.clear();
+            putRecord(record, type, id, row, length);
+            record.flip();
+
+            long offset = active.size;
+            while (record.hasRemaining())
+                active.channel.write(record, offset + record.position());
+            active.size += HEADER_SIZE + length;
+            unsynced = true;
+            return new Location(active.number, offset, length);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Appends records of a batch with as few writes as possible: one per
+     * segment it lands in, unless it is really big. Index is updated as
+     * records get written, so a failure leaves it matching the segments.
+     */
+    private void appendAll(byte type, long[] ids, byte[][] rows) {
+        try {
+            int i = 0;
+            while (i < ids.length) {
+                if (active.size >= maxSegmentSize)
+                    rollSegment();
+
+                long room = maxSegmentSize - active.size;
+                int end = i;
+                int bytes = 0;
+                do {
+                    bytes += HEADER_SIZE + rows[end].length;
+                    end++;
+                } while (end < ids.length && bytes + HEADER_SIZE + rows[end].length <= Math.min(room, MAX_BATCH_WRITE));
+
+                ByteBuffer records = ByteBuffer.allocate(bytes);
+                int[] offsets = new int[end - i];
+                for (int j = i; j < end; j++) {
+                    offsets[j - i] = records.position();
+                    putRecord(records, type, ids[j], rows[j], rows[j].length);
+                }
+                records.flip();
+
+                long offset = active.size;
+                while (records.hasRemaining())
+                    active.channel.write(records, offset + records.position());
+                active.size += bytes;
+                unsynced = true;
+
+                for (int j = i; j < end; j++) {
+                    if (type == PUT)
+                        put(ids[j], new Location(active.number, offset + offsets[j - i], rows[j].length));
+                    else
+                        remove(ids[j]);
+                }
+                i = end;
+            }
+            if (sync.syncsBatches())
+                force();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts a new active segment. Unless nothing is synced, the full one
+     * is forced first, as it won't be written to again.
+     */
+    private void rollSegment() throws IOException {
+        if (sync != SyncPolicy.NONE)
+            force();
+        active = newSegment(active.number + 1);
+    }
+
+    private void force() {
+        try {
+            unsynced = false;
+            active.channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Forces records appended since last time to disk, for {@link SyncPolicy#PERIODIC}.
+     */
+    private void syncPending() {
+        if (!unsynced)
+            return;
+        lock.readLock().lock();
+        try {
+            if (!closed)
+                force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, byte type, long id, byte[] row, int length) {
+        buffer.put(type).putLong(id).putInt(length).putInt(crc(type, id, row, length)).put(row, 0, length);
+    }
+
+    private static int crc(byte type, long id, byte[] row, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8)
+            crc.update((int) (id >>> shift));
+        crc.update(row, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private Segment newSegment(int number) throws IOException {
+        Segment segment = openSegment(number);
+        segments.put(number, segment);
+        return segment;
+    }
+
+    private Segment openSegment(int number) throws IOException {
+        File file = new File(directory, String.format("%s%08d", SEGMENT_PREFIX, number));
+        return new Segment(number, file, new RandomAccessFile(file, "rw").getChannel());
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled || findCompactionCandidate() == null)
+            return;
+
+        compactionScheduled = true;
+        COMPACTOR.execute(new Runnable() {
+            public void run() {
+                compact();
+            }
+        });
+    }
+
+    /**
+     * @return full segment with the least live data, if it is little enough
+     */
+    private Segment findCompactionCandidate() {
+        Segment candidate = null;
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.liveBytes >= segment.size * COMPACTION_THRESHOLD)
+                continue;
+            if (candidate == null || segment.liveBytes * candidate.size < candidate.liveBytes * segment.size)
+                candidate = segment;
+        }
+        return candidate;
+    }
+
+    private void compact() {
+        try {
+            while (true) {
+                Segment segment;
+                lock.writeLock().lock();
+                try {
+                    segment = closed ? null : findCompactionCandidate();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                if (segment == null)
+                    break;
+                compact(segment);
+            }
+        } catch (RuntimeException e) {
+            LOG.error("Compaction of " + directory + " failed!", e);
+        } catch (IOException e) {
+            LOG.error("Compaction of " + directory + " failed!", e);
+        } finally {
+            lock.writeLock().lock();
+            compactionScheduled = false;
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies records still in the index to the active segment, then removes
+     * the segment. Tombstones are carried over too, for as long as an older
+     * segment might still hold the row they delete. Segment being compacted
+     * is full, so it doesn't change under us; the index does, so each record
+     * is checked and copied under the write lock.
+     */
+    private void compact(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        while (position < segment.size) {
+            header.clear();
+            lock.writeLock().lock();
+            try {
+                if (closed)
+                    return;
+                readFully(segment.channel, header, position);
+                header.flip();
+                byte type = header.get();
+                long id = header.getLong();
+                int length = header.getInt();
+
+                if (type == PUT || type == PATCH) {
+                    Location location = index.get(id);
+                    if (location != null && location.includes(segment.number, position)) {
+                        byte[] row = toArray(read(location));
+                        put(id, append(PUT, id, row, row.length));
+                    }
+                } else if (!index.containsKey(id) && segments.firstKey() < segment.number) {
+                    append(DELETE, id, NO_DATA, 0);
+                }
+                position += HEADER_SIZE + length;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            if (closed)
+                return;
+            // Copies must be on disk before originals go away
+            active.channel.force(false);
+            segments.remove(segment.number);
+            closeQuietly(segment.channel);
+            if (!segment.file.delete())
+                LOG.warn("Failed to delete compacted segment {}", segment.file);
+            LOG.debug("Compacted {}", segment.file);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0)
+                    throw new IllegalStateException("Unexpected end of segment at offset " + position);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close segment!", e);
+        }
+    }
+
+    private static final class Segment {
+        private final int number;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+        private long liveBytes;
+        private volatile MappedByteBuffer mapped;
+
+        private Segment(int number, File file, FileChannel channel) {
+            this.number = number;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Slice of segment mapping. Called under read lock, so segment
+         * size doesn't change meanwhile, but other readers may remap too.
+         * A mapping can't reach past the end of the file, so the active
+         * segment is only remapped once it has doubled since it was last
+         * mapped; rows appended meanwhile are read from the channel.
+         *
+         * @param sealed whether segment is no longer appended to
+         * @return {@code null} if row is to be read from the channel
+         */
+        private ByteBuffer slice(long offset, int length, boolean sealed) {
+            // Past what a single mapping covers
+            if (offset + length > Integer.MAX_VALUE)
+                return null;
+            MappedByteBuffer map = mapped;
+            if (map == null || offset + length > map.capacity()) {
+                synchronized (this) {
+                    map = mapped;
+                    if (map == null || offset + length > map.capacity()) {
+                        if (!sealed && map != null && size < 2L * map.capacity())
+                            return null;
+                        try {
+                            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        mapped = map;
+                    }
+                }
+            }
+
+            ByteBuffer row = map.duplicate();
+            row.position((int) offset);
+            row.limit((int) offset + length);
+            return row.slice();
+        }
+    }
+
+    /**
+     * Where a record is; for deltas, also where the row they apply to is.
+     */
+    private static final class Location {
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final Location previous;
+        private final int patches;
+
+        private Location(int segment, long offset, int length) {
+            this(segment, offset, length, null);
+        }
+
+        private Location(int segment, long offset, int length, Location previous) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.previous = previous;
+            this.patches = previous != null ? previous.patches + 1 : 0;
+        }
+
+        private boolean includes(int segment, long offset) {
+            for (Location location = this; location != null; location = location.previous) {
+                if (location.segment == segment && location.offset == offset)
+                    return true;
+            }
+            return false;
+        }
+    }
+}
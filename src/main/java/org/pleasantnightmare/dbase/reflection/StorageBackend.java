@@ -0,0 +1,177 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where tables keep their rows: in {@link #filesystem(File) directories}
+ * under a root of choice, or {@link #inMemory() in memory}. Backends are
+ * plain objects, as many as needed; {@link ReflectionDAO#instantiateViewOn(Class)}
+ * uses the one set through {@link ReflectionDAO#setBackend(StorageBackend)}.
+ * <p/>
+ * Tables are held weakly; storage of a table that becomes unreachable
+ * without being closed is released in the background.
+ */
+public abstract class StorageBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(StorageBackend.class);
+    // Tables open on each backend, for references to load rows through
+    private static final Map<Object, Map<Class<?>, List<OpenTable>>> OPEN_TABLES = new HashMap<Object, Map<Class<?>, List<OpenTable>>>();
+    private static final ReferenceQueue<Table<?>> UNREACHABLE = new ReferenceQueue<Table<?>>();
+
+    static {
+        Thread releaser = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        ((OpenTable) UNREACHABLE.remove()).release();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        LOG.error("Releasing unclosed table failed!", e);
+                    }
+                }
+            }
+        }, "reflection-dao-releaser");
+        releaser.setDaemon(true);
+        releaser.start();
+    }
+
+    StorageBackend() {
+    }
+
+    /**
+     * @return backend keeping every table in its own directory under given root
+     */
+    public static StorageBackend filesystem(File root) {
+        return new FilesystemBackend(root);
+    }
+
+    /**
+     * @return backend keeping encoded rows in memory, for as long as it is
+     *         reachable; tables opened on it again see rows stored before
+     */
+    public static StorageBackend inMemory() {
+        return new MemoryBackend();
+    }
+
+    public <T extends Identified> Table<T> table(Class<T> dataClass) {
+        return new Table<T>(this, dataClass, new TableOptions());
+    }
+
+    public <T extends Identified> Table<T> table(Class<T> dataClass, TableOptions options) {
+        return new Table<T>(this, dataClass, options);
+    }
+
+    /**
+     * @return what tells rows of this backend from rows of others; backends
+     *         keeping the same rows have equal keys
+     */
+    Object key() {
+        return this;
+    }
+
+    /**
+     * Registers open table, whose storage gets released should it become
+     * unreachable before being closed.
+     */
+    void opened(Class<?> dataClass, Table<?> table, TableStorage storage) {
+        synchronized (OPEN_TABLES) {
+            Map<Class<?>, List<OpenTable>> open = OPEN_TABLES.get(key());
+            if (open == null) {
+                open = new HashMap<Class<?>, List<OpenTable>>();
+                OPEN_TABLES.put(key(), open);
+            }
+            List<OpenTable> tables = open.get(dataClass);
+            if (tables == null) {
+                tables = new ArrayList<OpenTable>(1);
+                open.put(dataClass, tables);
+            }
+            tables.add(new OpenTable(key(), dataClass, table, storage));
+        }
+    }
+
+    void closed(Class<?> dataClass, Table<?> table) {
+        synchronized (OPEN_TABLES) {
+            Map<Class<?>, List<OpenTable>> open = OPEN_TABLES.get(key());
+            List<OpenTable> tables = open != null ? open.get(dataClass) : null;
+            if (tables == null)
+                return;
+            for (OpenTable reference : tables) {
+                if (reference.get() == table) {
+                    // Not to be released again once unreachable
+                    reference.clear();
+                    remove(reference);
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void remove(OpenTable reference) {
+        Map<Class<?>, List<OpenTable>> open = OPEN_TABLES.get(reference.key);
+        List<OpenTable> tables = open != null ? open.get(reference.dataClass) : null;
+        if (tables == null || !tables.remove(reference) || !tables.isEmpty())
+            return;
+        open.remove(reference.dataClass);
+        if (open.isEmpty())
+            OPEN_TABLES.remove(reference.key);
+    }
+
+    /**
+     * @return table of given class open on this backend, or another with
+     *         the same rows; the latest one opened
+     * @throws IllegalStateException if there is none
+     */
+    @SuppressWarnings("unchecked")
+    <T extends Identified> Table<T> find(Class<T> dataClass) {
+        synchronized (OPEN_TABLES) {
+            Map<Class<?>, List<OpenTable>> open = OPEN_TABLES.get(key());
+            List<OpenTable> tables = open != null ? open.get(dataClass) : null;
+            for (int i = tables != null ? tables.size() - 1 : -1; i >= 0; i--) {
+                Table<?> table = tables.get(i).get();
+                if (table != null)
+                    return (Table<T>) table;
+            }
+            throw new IllegalStateException("No table of " + dataClass.getName() + " is open to load referenced rows from");
+        }
+    }
+
+    /**
+     * Opens storage of table with given name.
+     */
+    abstract TableStorage open(String name, ClassPlan<?> plan, TableOptions options);
+
+    /**
+     * Open table, and what to release once it is unreachable; holds
+     * nothing that leads back to the table.
+     */
+    private static final class OpenTable extends WeakReference<Table<?>> {
+        private final Object key;
+        private final Class<?> dataClass;
+        private final TableStorage storage;
+
+        private OpenTable(Object key, Class<?> dataClass, Table<?> table, TableStorage storage) {
+            super(table, UNREACHABLE);
+            this.key = key;
+            this.dataClass = dataClass;
+            this.storage = storage;
+        }
+
+        private void release() {
+            synchronized (OPEN_TABLES) {
+                remove(this);
+            }
+            LOG.warn("Table of {} was not closed, releasing it", dataClass.getName());
+            storage.release();
+        }
+    }
+}
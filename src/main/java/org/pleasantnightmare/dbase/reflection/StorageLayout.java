@@ -0,0 +1,19 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * How a table arranges its rows on disk.
+ */
+public enum StorageLayout {
+    /**
+     * Every row in its own file, named by row id. Simple to inspect,
+     * but costs a file per row and a directory listing per scan.
+     */
+    FILE_PER_ROW,
+    /**
+     * Rows appended to a few large segment files, located through an
+     * in-memory index that is rebuilt when the table is opened. Deleted
+     * and replaced rows are reclaimed by background compaction.
+     * Tables in this layout keep files open until {@link Table#close() closed}.
+     */
+    SEGMENTED
+}
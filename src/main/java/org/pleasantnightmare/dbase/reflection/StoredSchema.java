@@ -0,0 +1,117 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Names and types of persisted fields of a class as it once was, in the
+ * order rows of it list them; identified by {@link ClassPlan#getFingerprint()}.
+ * Kept by {@link SchemaCatalog} as a line of text:
+ * <pre>
+ * fingerprint (hex) class name:type name:type ...
+ * </pre>
+ */
+final class StoredSchema {
+    // Stored the same way, as varints or decimal text
+    private static final Set<String> INTEGRAL = new HashSet<String>(Arrays.asList(
+            "int", "long", "short", "byte", Integer.class.getName(), Long.class.getName(),
+            Short.class.getName(), Byte.class.getName()));
+
+    private final long fingerprint;
+    private final String className;
+    private final String[] names;
+    private final String[] types;
+
+    private StoredSchema(long fingerprint, String className, String[] names, String[] types) {
+        this.fingerprint = fingerprint;
+        this.className = className;
+        this.names = names;
+        this.types = types;
+    }
+
+    static StoredSchema of(ClassPlan<?> plan) {
+        List<FieldPlan> fields = plan.getFields();
+        String[] names = new String[fields.size()];
+        String[] types = new String[fields.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = fields.get(i).getName();
+            types[i] = fields.get(i).getType().getName();
+        }
+        return new StoredSchema(plan.getFingerprint(), plan.getType().getName(), names, types);
+    }
+
+    /**
+     * @return schema written by {@link #toString()}, or {@code null} if line
+     *         isn't one, such as one cut short by a crash
+     */
+    static StoredSchema parse(String line) {
+        String[] parts = line.trim().split(" ");
+        if (parts.length < 2)
+            return null;
+        String[] names = new String[parts.length - 2];
+        String[] types = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            int colon = parts[i + 2].indexOf(':');
+            if (colon <= 0 || colon == parts[i + 2].length() - 1)
+                return null;
+            names[i] = parts[i + 2].substring(0, colon);
+            types[i] = parts[i + 2].substring(colon + 1);
+        }
+        try {
+            return new StoredSchema(Long.parseUnsignedLong(parts[0], 16), parts[1], names, types);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Matches stored fields to fields of given plan by name. A field whose
+     * type changed no longer matches, unless it changed from one integral
+     * type to another (say, from {@code int} to {@code Long}).
+     *
+     * @return for every stored field, position of the plan's field it is
+     *         read into, or {@code -1} if it is to be skipped
+     */
+    int[] bindTo(ClassPlan<?> plan) {
+        Map<String, List<Integer>> positions = new HashMap<String, List<Integer>>();
+        List<FieldPlan> fields = plan.getFields();
+        for (int i = 0; i < fields.size(); i++) {
+            List<Integer> named = positions.get(fields.get(i).getName());
+            if (named == null) {
+                named = new ArrayList<Integer>(1);
+                positions.put(fields.get(i).getName(), named);
+            }
+            named.add(i);
+        }
+
+        int[] targets = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            List<Integer> named = positions.get(names[i]);
+            // Fields hidden by a subclass field of the same name pair up in order
+            Integer target = named != null && !named.isEmpty() ? named.remove(0) : null;
+            targets[i] = target != null && compatible(types[i], fields.get(target).getType()) ? target : -1;
+        }
+        return targets;
+    }
+
+    private static boolean compatible(String stored, Class<?> type) {
+        return stored.equals(type.getName()) || INTEGRAL.contains(stored) && INTEGRAL.contains(type.getName());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder(Long.toHexString(fingerprint)).append(' ').append(className);
+        for (int i = 0; i < names.length; i++)
+            line.append(' ').append(names[i]).append(':').append(types[i]);
+        return line.toString();
+    }
+}
@@ -0,0 +1,553 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.pleasantnightmare.dbase.reflection.XmlFormat.*;
+
+/**
+ * XML rows written straight to the output stream and read field by field
+ * with StAX while parsing, without building a document tree. Writes
+ * byte for byte what the JDOM codec tables used before did, apart from
+ * the schema and type attributes it couldn't write, so existing tables
+ * keep reading.
+ * <p/>
+ * Writing doesn't go through {@code XMLStreamWriter}: it insists on
+ * escaping attributes itself, and loses tabs and line breaks in map keys
+ * that JDOM kept as character references.
+ */
+final class StreamingXmlRowCodec implements RowCodec {
+    private final CodecRegistry codecs;
+    private final XMLInputFactory inputFactory;
+
+    StreamingXmlRowCodec(CodecRegistry codecs) {
+        this.codecs = codecs;
+
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    }
+
+    public void write(ClassPlan<?> plan, Object o, OutputStream outputStream) {
+        BinaryOutput out = BinaryOutput.acquire();
+        try {
+            write(plan, o, out, null);
+            out.writeTo(outputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            out.release();
+        }
+    }
+
+    /**
+     * Appends row to given buffer, as UTF-8.
+     *
+     * @param schemas schemas of the table the row is for, to record those
+     *                of embedded objects in; or {@code null}
+     */
+    void write(ClassPlan<?> plan, Object o, BinaryOutput out, SchemaCatalog schemas) {
+        try {
+            Writer writer = out.writer();
+            writeStart(writer, EL_ROOT, ATTR_SCHEMA, Long.toHexString(plan.getFingerprint()));
+            writeTextElement(writer, EL_CLASS, o.getClass().getName());
+
+            for (FieldPlan field : plan.getFields())
+                writeValue(writer, EL_FIELD, null, null, field.getKind(), field.getCodec(), field.get(o), schemas);
+
+            writeEnd(writer, EL_ROOT);
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes value as content of given element, which optionally has an attribute.
+     *
+     * @param codec codec of the declared type; {@code null} if it has none,
+     *              in which case a scalar value is embedded, or its class
+     *              recorded
+     */
+    private void writeValue(Writer writer, String element, String attribute, String attributeValue,
+                            FieldPlan.Kind kind, ValueCodec<Object> codec, Object value, SchemaCatalog schemas) throws IOException {
+        String valueType = null;
+        if (kind == FieldPlan.Kind.SCALAR && codec == null && value != null) {
+            codec = codecs.find(value.getClass());
+            // Declared type, such as Object, doesn't tell how to read it back
+            if (codec != null)
+                valueType = value.getClass().getName();
+        }
+
+        writer.write('<');
+        writer.write(element);
+        if (attribute != null)
+            writeAttribute(writer, attribute, attributeValue);
+        if (valueType != null)
+            writeAttribute(writer, ATTR_VALUE_TYPE, valueType);
+        writer.write('>');
+        switch (kind) {
+            case LIST:
+                writeCollection(writer, EL_LIST, EL_PACKED_LIST, ATTR_LIST_GENERICTYPE, (List<?>) value, schemas);
+                break;
+            case SET:
+                writeCollection(writer, EL_SET, EL_PACKED_SET, ATTR_SET_GENERICTYPE, (Set<?>) value, schemas);
+                break;
+            case MAP:
+                writeMap(writer, (Map<?, ?>) value, schemas);
+                break;
+            default:
+                if (codec == null && value != null)
+                    writeObject(writer, value, schemas);
+                else
+                    escape(writer, encode(codecs, codec, value), false);
+        }
+        writeEnd(writer, element);
+    }
+
+    private void writeObject(Writer writer, Object value, SchemaCatalog schemas) throws IOException {
+        ClassPlan<Object> plan = codecs.embeddedPlan(value.getClass());
+        // Before any object of the class as it is now gets written
+        if (schemas != null)
+            schemas.register(plan);
+        writer.write('<');
+        writer.write(EL_OBJECT);
+        writeAttribute(writer, ATTR_OBJECT_TYPE, plan.getType().getName());
+        writeAttribute(writer, ATTR_OBJECT_SCHEMA, Long.toHexString(plan.getFingerprint()));
+        writer.write('>');
+        for (FieldPlan field : plan.getFields())
+            writeValue(writer, EL_FIELD, null, null, field.getKind(), field.getCodec(), field.get(value), schemas);
+        writeEnd(writer, EL_OBJECT);
+    }
+
+    private void writeCollection(Writer writer, String element, String packedElement, String typeAttribute,
+                                 Collection<?> collection, SchemaCatalog schemas) throws IOException {
+        if (collection.isEmpty()) {
+            writeEmpty(writer, element, typeAttribute, UNDETERMINED_TYPE);
+            return;
+        }
+
+        Class<?> genericType = collection.iterator().next().getClass();
+        int packed = PackedArrays.typeOf(collection, genericType);
+        if (packed != PackedArrays.NONE) {
+            writeStart(writer, packedElement, ATTR_PACKED_TYPE, genericType.getName());
+            writer.write(PackedArrays.toBase64(collection, packed));
+            writeEnd(writer, packedElement);
+            return;
+        }
+
+        ValueCodec<Object> codec = codecs.find(genericType);
+        writeStart(writer, element, typeAttribute, genericType.getName());
+        for (Object o : collection)
+            writeElement(writer, EL_COLLECTIONDATA, null, null, genericType, codec, o, schemas);
+        writeEnd(writer, element);
+    }
+
+    private void writeMap(Writer writer, Map<?, ?> map, SchemaCatalog schemas) throws IOException {
+        if (map.isEmpty()) {
+            writer.write("<" + EL_MAP + " " + ATTR_MAP_KEYTYPE + "=\"" + UNDETERMINED_TYPE + "\" "
+                    + ATTR_MAP_VALUETYPE + "=\"" + UNDETERMINED_TYPE + "\" />");
+            return;
+        }
+
+        Map.Entry<?, ?> classDeterminingEntry = map.entrySet().iterator().next();
+        Class<?> keyGenericType = classDeterminingEntry.getKey().getClass();
+        Class<?> valueGenericType = classDeterminingEntry.getValue().getClass();
+        ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+        ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+        writer.write('<');
+        writer.write(EL_MAP);
+        writeAttribute(writer, ATTR_MAP_KEYTYPE, keyGenericType.getName());
+        writeAttribute(writer, ATTR_MAP_VALUETYPE, valueGenericType.getName());
+        writer.write('>');
+
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object key = entry.getKey();
+            String keyText = encode(codecs, key.getClass() == keyGenericType ? keyCodec : null, key);
+            writeElement(writer, EL_MAPENTRY, ATTR_MAP_ENTRYKEY, keyText, valueGenericType, valueCodec, entry.getValue(), schemas);
+        }
+        writeEnd(writer, EL_MAP);
+    }
+
+    private void writeElement(Writer writer, String element, String attribute, String attributeValue,
+                              Class<?> genericType, ValueCodec<Object> codec, Object o, SchemaCatalog schemas) throws IOException {
+        Class<?> type = o.getClass();
+        writeValue(writer, element, attribute, attributeValue, FieldPlan.kindOf(type), type == genericType ? codec : null, o, schemas);
+    }
+
+    private static void writeTextElement(Writer writer, String element, String text) throws IOException {
+        writeStart(writer, element, null, null);
+        escape(writer, text, false);
+        writeEnd(writer, element);
+    }
+
+    private static void writeStart(Writer writer, String element, String attribute, String attributeValue) throws IOException {
+        writer.write('<');
+        writer.write(element);
+        if (attribute != null)
+            writeAttribute(writer, attribute, attributeValue);
+        writer.write('>');
+    }
+
+    private static void writeEmpty(Writer writer, String element, String attribute, String attributeValue) throws IOException {
+        writer.write('<');
+        writer.write(element);
+        writeAttribute(writer, attribute, attributeValue);
+        writer.write(" />");
+    }
+
+    private static void writeEnd(Writer writer, String element) throws IOException {
+        writer.write("</");
+        writer.write(element);
+        writer.write('>');
+    }
+
+    private static void writeAttribute(Writer writer, String name, String value) throws IOException {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        escape(writer, value, true);
+        writer.write('"');
+    }
+
+    /**
+     * Escapes the way JDOM's outputter did.
+     */
+    private static void escape(Writer writer, String text, boolean attribute) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String entity;
+            switch (text.charAt(i)) {
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '\r':
+                    entity = "&#xD;";
+                    break;
+                case '"':
+                    entity = attribute ? "&quot;" : null;
+                    break;
+                case '\n':
+                    // Line breaks in text were written as JDOM's line separator
+                    entity = attribute ? "&#xA;" : "\r\n";
+                    break;
+                case '\t':
+                    entity = attribute ? "&#x9;" : null;
+                    break;
+                default:
+                    entity = null;
+            }
+
+            if (entity != null) {
+                writer.write(text, start, i - start);
+                writer.write(entity);
+                start = i + 1;
+            }
+        }
+        writer.write(text, start, text.length() - start);
+    }
+
+    public <T> T read(ClassPlan<T> plan, InputStream inputStream) {
+        return read(plan, inputStream, null);
+    }
+
+    /**
+     * @param schemas schemas rows of the class were written in before, to
+     *                read rows of those by field name; or {@code null}
+     */
+    <T> T read(ClassPlan<T> plan, InputStream inputStream, SchemaCatalog schemas) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(inputStream);
+            int[] targets = start(reader, plan, schemas);
+
+            T object = plan.newInstance();
+            readInto(reader, plan, object, targets, schemas);
+            return object;
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    public void readFields(ClassPlan<?> plan, InputStream inputStream, Projection projection, Object[] values) {
+        readFields(plan, inputStream, projection, values, null);
+    }
+
+    void readFields(ClassPlan<?> plan, InputStream inputStream, Projection projection, Object[] values, SchemaCatalog schemas) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(inputStream);
+            int[] targets = start(reader, plan, schemas);
+
+            List<FieldPlan> fields = plan.getFields();
+            // Wanted fields of older schemas may be anywhere in the row, or not in it
+            if (targets != null)
+                projection.clear(fields, values);
+            for (int i = 0, count = targets != null ? targets.length : projection.getLast() + 1; i < count; i++) {
+                if (!nextChild(reader, EL_FIELD))
+                    throw new IllegalStateException("Deserialization error: stored object has fewer fields than class '" + plan.getType().getName() + "'");
+                int target = targets != null ? targets[i] : i;
+                if (target >= 0 && projection.includes(target)) {
+                    FieldPlan field = fields.get(target);
+                    values[target] = readValue(reader, field.getKind(), field.getType(), field.getCodec(), schemas);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Reads field elements of row or embedded object into given object.
+     *
+     * @param targets {@code null} to read fields in plan order, otherwise
+     *                where fields of an older schema go
+     */
+    private <T> void readInto(XMLStreamReader reader, ClassPlan<T> plan, T object, int[] targets, SchemaCatalog schemas)
+            throws XMLStreamException, ClassNotFoundException {
+        List<FieldPlan> fields = plan.getFields();
+        for (int i = 0, count = targets != null ? targets.length : fields.size(); i < count; i++) {
+            if (!nextChild(reader, EL_FIELD))
+                throw new IllegalStateException("Deserialization error: stored object has fewer fields than class '" + plan.getType().getName() + "'");
+            int target = targets != null ? targets[i] : i;
+            if (target < 0) {
+                skipElement(reader);
+                continue;
+            }
+            FieldPlan field = fields.get(target);
+            field.set(object, readValue(reader, field.getKind(), field.getType(), field.getCodec(), schemas));
+        }
+    }
+
+    /**
+     * @return schema fingerprint of row, in hex; {@code null} if it was
+     *         written before schemas were recorded
+     */
+    String schemaOf(InputStream inputStream) {
+        XMLStreamReader reader = null;
+        try {
+            reader = inputFactory.createXMLStreamReader(inputStream);
+            reader.nextTag();
+            reader.require(XMLStreamConstants.START_ELEMENT, null, EL_ROOT);
+            return reader.getAttributeValue(null, ATTR_SCHEMA);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(reader);
+        }
+    }
+
+    /**
+     * Reads row up to its first field.
+     *
+     * @return {@code null} to read fields in plan order, otherwise where
+     *         fields of the row's older schema go, see {@link SchemaCatalog#binding}
+     */
+    private static int[] start(XMLStreamReader reader, ClassPlan<?> plan, SchemaCatalog schemas) throws XMLStreamException {
+        reader.nextTag();
+        reader.require(XMLStreamConstants.START_ELEMENT, null, EL_ROOT);
+        String schema = reader.getAttributeValue(null, ATTR_SCHEMA);
+        if (!nextChild(reader, EL_CLASS))
+            throw new IllegalStateException("Deserialization error: stored object has no class");
+        checkStoredClass(plan.getType(), reader.getElementText());
+
+        // Rows written before schemas were recorded, or of schemas not known
+        // here, are read as they always were
+        if (schema == null || schemas == null)
+            return null;
+        long fingerprint;
+        try {
+            fingerprint = Long.parseUnsignedLong(schema, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return fingerprint != plan.getFingerprint() ? schemas.binding(fingerprint, plan) : null;
+    }
+
+    /**
+     * Moves to start of next child element with given name, skipping
+     * any other elements in between.
+     *
+     * @return false if parent element ended first
+     */
+    private static boolean nextChild(XMLStreamReader reader, String name) throws XMLStreamException {
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (name.equals(reader.getLocalName()))
+                return true;
+            skipElement(reader);
+        }
+        return false;
+    }
+
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    /**
+     * Reads value of element reader is positioned on, leaving reader
+     * on its end.
+     */
+    private Object readValue(XMLStreamReader reader, FieldPlan.Kind kind, Class<?> type, ValueCodec<Object> codec, SchemaCatalog schemas)
+            throws XMLStreamException, ClassNotFoundException {
+        Object value;
+        switch (kind) {
+            case LIST:
+                value = readCollection(reader, EL_LIST, EL_PACKED_LIST, ATTR_LIST_GENERICTYPE, false, schemas);
+                break;
+            case SET:
+                value = readCollection(reader, EL_SET, EL_PACKED_SET, ATTR_SET_GENERICTYPE, true, schemas);
+                break;
+            case MAP:
+                value = readMap(reader, schemas);
+                break;
+            default:
+                String valueType = reader.getAttributeValue(null, ATTR_VALUE_TYPE);
+                if (valueType != null) {
+                    type = Class.forName(valueType);
+                    codec = codecs.find(type);
+                }
+                if (codec == null && codecs.find(type) == null)
+                    return readObject(reader, schemas);
+                return decode(codecs, codec, type, reader.getElementText());
+        }
+
+        while (reader.nextTag() != XMLStreamConstants.END_ELEMENT)
+            skipElement(reader);
+        return value;
+    }
+
+    private Collection<Object> readCollection(XMLStreamReader reader, String element, String packedElement,
+                                              String typeAttribute, boolean set, SchemaCatalog schemas)
+            throws XMLStreamException, ClassNotFoundException {
+        boolean found = false;
+        while (!found && reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            found = element.equals(reader.getLocalName()) || packedElement.equals(reader.getLocalName());
+            if (!found)
+                skipElement(reader);
+        }
+        if (!found)
+            throw new IllegalStateException("Deserialization error: missing '" + element + "' element");
+        if (packedElement.equals(reader.getLocalName())) {
+            int type = PackedArrays.typeOf(Class.forName(reader.getAttributeValue(null, ATTR_PACKED_TYPE)));
+            if (type == PackedArrays.NONE)
+                throw new IllegalStateException("Deserialization error: packed elements of unknown type");
+            ByteBuffer block = PackedArrays.fromBase64(reader.getElementText());
+            return PackedArrays.getAll(block, type, PackedArrays.length(type, block.remaining()), set);
+        }
+
+        String genericTypeString = reader.getAttributeValue(null, typeAttribute);
+        if (UNDETERMINED_TYPE.equals(genericTypeString)) {
+            skipElement(reader);
+            return set ? new HashSet<Object>() : new LinkedList<Object>();
+        }
+
+        Class<?> genericType = Class.forName(genericTypeString);
+        Collection<Object> returnable = set ? new HashSet<Object>() : new ArrayList<Object>();
+        FieldPlan.Kind kind = FieldPlan.kindOf(genericType);
+        ValueCodec<Object> codec = codecs.find(genericType);
+        while (nextChild(reader, EL_COLLECTIONDATA))
+            returnable.add(readValue(reader, kind, genericType, codec, schemas));
+        return returnable;
+    }
+
+    /**
+     * Reads embedded object held by element reader is positioned on,
+     * leaving reader on its end. Objects embedded before their schema was
+     * recorded are read by position.
+     *
+     * @return the object, or {@code null} if element holds none
+     */
+    private Object readObject(XMLStreamReader reader, SchemaCatalog schemas) throws XMLStreamException, ClassNotFoundException {
+        int event;
+        do {
+            event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return null;
+        } while (event != XMLStreamConstants.START_ELEMENT);
+        reader.require(XMLStreamConstants.START_ELEMENT, null, EL_OBJECT);
+
+        ClassPlan<Object> plan = codecs.embeddedPlan(Class.forName(reader.getAttributeValue(null, ATTR_OBJECT_TYPE)));
+        String schema = reader.getAttributeValue(null, ATTR_OBJECT_SCHEMA);
+        int[] targets = null;
+        if (schema != null) {
+            long fingerprint = Long.parseUnsignedLong(schema, 16);
+            if (fingerprint != plan.getFingerprint()) {
+                targets = schemas != null ? schemas.binding(fingerprint, plan) : null;
+                if (targets == null)
+                    throw new IllegalStateException("Deserialization error: stored object doesn't match schema of class '" + plan.getType().getName() + "'");
+            }
+        }
+        Object object = plan.newInstance();
+        readInto(reader, plan, object, targets, schemas);
+        // Past the end of the object, then of its element
+        for (int i = 0; i < 2; i++) {
+            while (reader.nextTag() != XMLStreamConstants.END_ELEMENT)
+                skipElement(reader);
+        }
+        return object;
+    }
+
+    private Map<?, ?> readMap(XMLStreamReader reader, SchemaCatalog schemas) throws XMLStreamException, ClassNotFoundException {
+        if (!nextChild(reader, EL_MAP))
+            throw new IllegalStateException("Deserialization error: missing '" + EL_MAP + "' element");
+
+        String keyGenericTypeString = reader.getAttributeValue(null, ATTR_MAP_KEYTYPE);
+        if (UNDETERMINED_TYPE.equals(keyGenericTypeString)) {
+            skipElement(reader);
+            return new HashMap<Object, Object>();
+        }
+
+        Class<?> keyGenericType = Class.forName(keyGenericTypeString);
+        Class<?> valueGenericType = Class.forName(reader.getAttributeValue(null, ATTR_MAP_VALUETYPE));
+        FieldPlan.Kind valueKind = FieldPlan.kindOf(valueGenericType);
+        ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+        ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+
+        Map<Object, Object> returnable = new HashMap<Object, Object>();
+        while (nextChild(reader, EL_MAPENTRY)) {
+            Object key = decode(codecs, keyCodec, keyGenericType, reader.getAttributeValue(null, ATTR_MAP_ENTRYKEY));
+            Object value = readValue(reader, valueKind, valueGenericType, valueCodec, schemas);
+            returnable.put(key, value);
+        }
+        return returnable;
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader == null)
+            return;
+        try {
+            reader.close();
+        } catch (XMLStreamException e) {
+            // Underlying stream is closed by whoever opened it
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * When a table forces written rows to disk. Whatever the policy, rows are
+ * replaced atomically as far as a crash of the JVM goes: it leaves either
+ * the old or the new version of a row, never a torn one. Policy decides
+ * how recent writes a crash of the machine can lose, and, in
+ * {@link StorageLayout#FILE_PER_ROW} tables, which rows it can leave
+ * empty or torn: those written since they were last forced to disk,
+ * unless forced before being renamed into place (every write under
+ * {@link #ALWAYS}, batches under {@link #BATCH}). Segmented tables check
+ * records against their checksum and roll such rows back.
+ */
+public enum SyncPolicy {
+    /**
+     * Never; written rows reach the disk whenever the operating system
+     * gets to it, as they always did.
+     */
+    NONE,
+    /**
+     * Every write, delete and batch returns only once it is on disk.
+     * Safest, and slowest by far.
+     */
+    ALWAYS,
+    /**
+     * {@link Table#insertAll}, {@link Table#updateAll} and {@link Table#deleteAll}
+     * return only once all of their changes are on disk, paying for one
+     * sync per few thousand rows rather than one per row. A batch is not
+     * atomic: after a crash during the call, any part of it may be stored.
+     * Single-row operations are not synced.
+     */
+    BATCH,
+    /**
+     * Changes are forced to disk in the background, at most
+     * {@link TableOptions#syncInterval(long)} after they were made.
+     */
+    PERIODIC;
+
+    boolean syncsWrites() {
+        return this == ALWAYS;
+    }
+
+    boolean syncsBatches() {
+        return this == ALWAYS || this == BATCH;
+    }
+}
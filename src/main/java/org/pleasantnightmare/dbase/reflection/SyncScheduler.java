@@ -0,0 +1,43 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link SyncPolicy#PERIODIC} syncs of all tables on one daemon thread.
+ */
+final class SyncScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(SyncScheduler.class);
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "reflection-dao-sync");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * @return handle to cancel the sync with
+     */
+    static ScheduledFuture<?> schedule(final Runnable sync, long intervalMillis) {
+        return SYNCER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sync.run();
+                } catch (RuntimeException e) {
+                    // Thrown out of here, it would cancel the schedule
+                    LOG.error("Periodic sync failed!", e);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+}
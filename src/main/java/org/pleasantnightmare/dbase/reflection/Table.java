@@ -6,99 +6,521 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * An illusion of dbase table, that works with filesystem.
  * Terminology similarity with rmdbs is intentional, as it
  * might ease the understanding of reflection DAO.
+ * <p/>
+ * Rows are kept by a {@link StorageBackend}, on disk unless told otherwise.
+ * How rows are laid out on disk is up to {@link TableOptions#layout(StorageLayout)}.
+ * <p/>
+ * Tables are thread-safe, including tables opened on the same directory.
+ * Single-row operations lock their row (see {@link RowLocks}): reads of
+ * a row run alongside each other, while a write of it, such as
+ * {@link #update}'s check and replace, excludes everything else on it.
+ * Batch operations lock all of their rows for the whole batch. Scans,
+ * streams and queries don't lock; they see each row either before or after
+ * any write of it, as rows are replaced atomically.
+ * <p/>
+ * Inserts, updates and deletes are numbered as {@link Change changes},
+ * which can be read back through {@link #changesSince(long)} or followed
+ * through {@link #subscribe(ChangeListener, long, boolean)}, instead of
+ * scanning the table for them.
  *
  * @author ivicaz
  */
-public class Table<T extends Identified> {
+public class Table<T extends Identified> implements Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(Table.class);
-    private File relativeTableDirectory;
-    private File root;
+    // Rows of batch operations are serialized and written this many at a time
+    private static final int BATCH_SIZE = 4096;
     private Class<T> dataClass;
+    private TableOptions options;
+    private StorageBackend backend;
+    private TableStorage storage;
+    private RowStore store;
+    private IdAllocator ids;
+    private RowCache<T> cache;
+    private SecondaryIndexes indexes;
+    private RowLocks locks;
+    private WriteQueue<T> writes;
+    private RowSnapshots snapshots;
+    private ChangeLog changes;
+    private Executor executor;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    // Null when not measured
+    private TableMetrics metrics;
+    private final AtomicLong skippedWrites = new AtomicLong();
+    private final AtomicLong deltaWrites = new AtomicLong();
+    private final AtomicLong migratedRows = new AtomicLong();
+    // Null unless migrating in background
+    private CompletableFuture<Void> migration;
+    private volatile boolean closing;
 
     public Table(File root, Class<T> dataClass) {
-        this.root = root;
+        this(root, dataClass, new TableOptions());
+    }
+
+    public Table(File root, Class<T> dataClass, TableOptions options) {
+        this(StorageBackend.filesystem(root), dataClass, options);
+    }
+
+    public Table(StorageBackend backend, Class<T> dataClass) {
+        this(backend, dataClass, new TableOptions());
+    }
+
+    /**
+     * Opens table of given class kept by given backend; its name is the
+     * simple name of the class, in lower case.
+     */
+    public Table(StorageBackend backend, Class<T> dataClass, TableOptions options) {
         this.dataClass = dataClass;
-        updateTableDir();
+        this.options = options;
+        this.backend = backend;
+        storage = backend.open(dataClass.getSimpleName().toLowerCase(), ReflectionDAO.getInstance().planFor(dataClass), options);
+        store = storage.store;
+        ids = storage.ids;
+        indexes = storage.indexes;
+        locks = storage.locks;
+        snapshots = storage.snapshots;
+        changes = storage.changes;
+        metrics = options.getMetrics();
+        if (options.getCacheSize() > 0 || options.getCacheBytes() > 0)
+            cache = new RowCache<T>(options.getCacheSize(), options.getCacheBytes());
+        executor = options.getExecutor() != null ? options.getExecutor() : IoExecutors.shared();
+        writes = new WriteQueue<T>(this, ReflectionDAO.getInstance().planFor(dataClass), executor);
+        backend.opened(dataClass, this, storage);
+        if (options.isMigrateSchemas()) {
+            migration = CompletableFuture.runAsync(new Runnable() {
+                public void run() {
+                    try {
+                        migrate();
+                    } catch (RuntimeException e) {
+                        LOG.error("Migrating rows of " + Table.this.dataClass.getName() + " failed", e);
+                    }
+                }
+            }, executor);
+        }
     }
 
+    /**
+     * @return all rows, ordered by id; see {@link #stream()} for tables
+     *         too large to hold in memory at once
+     */
     public List<T> all() {
+        long start = now();
         List<T> data = new LinkedList<T>();
-        File[] files = relativeTableDirectory.listFiles();
-        for (File file : files) {
-            if (file.getName().startsWith("."))
-                continue;
-            T object = deserializeObject(file);
-            data.add(object);
+        try {
+            CloseableIterator<T> rows = iterator();
+            while (rows.hasNext())
+                data.add(rows.next());
+
+            return data;
+        } finally {
+            measured(TableMetrics.Operation.ALL, data.size(), start);
+        }
+    }
+
+    /**
+     * Same as {@link #all()}, but reads and decodes rows on several threads.
+     * Rows are still ordered by id.
+     */
+    public List<T> all(ParallelismOptions parallelism) {
+        long start = now();
+        long[] ids = sortedIds();
+        Object[] rows = new Object[ids.length];
+        ScanTask scan = new ScanTask(ids, rows, 0, ids.length, parallelism.getChunkSize());
+
+        if (parallelism.getPool() != null) {
+            parallelism.getPool().invoke(scan);
+        } else if (parallelism.getThreads() > 0) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism.getThreads());
+            try {
+                pool.invoke(scan);
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            ForkJoinPool.commonPool().invoke(scan);
         }
 
+        List<T> data = new ArrayList<T>(rows.length);
+        for (Object row : rows) {
+            if (row != null)
+                data.add(dataClass.cast(row));
+        }
+        measured(TableMetrics.Operation.ALL, data.size(), start);
         return data;
     }
 
-    private void updateTableDir() {
-        relativeTableDirectory = new File(root, dataClass.getSimpleName().toLowerCase());
-        File maxNumberFile = new File(relativeTableDirectory, ".maxNumber");
+    /**
+     * @return parallel stream of all rows, which splits ids between threads
+     *         of the fork-join pool it runs on; encounter order is by id
+     */
+    public Stream<T> parallelStream() {
+        return StreamSupport.stream(new RowSpliterator(sortedIds()), true);
+    }
+
+    /**
+     * @return iterator over all rows ordered by id, each read and decoded
+     *         only once iteration gets to it
+     */
+    public CloseableIterator<T> iterator() {
+        return new RowIterator(sortedIds(), 0);
+    }
+
+    /**
+     * @return stream of all rows ordered by id, each read and decoded only
+     *         once the stream gets to it, so a {@link Stream#limit(long) limit}
+     *         leaves the rest of the table unread
+     */
+    public Stream<T> stream() {
+        return stream(0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #stream()}, but starting after the first {@code skip}
+     * rows, which unlike with {@link Stream#skip(long)} are not read at all.
+     */
+    public Stream<T> stream(long skip, long limit) {
+        final RowIterator rows = new RowIterator(sortedIds(), skip);
+        Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(rows, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).limit(limit).onClose(new Runnable() {
+            public void run() {
+                rows.close();
+            }
+        });
+    }
+
+    long[] sortedIds() {
+        long[] ids = store.ids();
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    /**
+     * Releases files held open by this table, once queued async writes
+     * are done. Tables are not usable once closed.
+     */
+    public void close() {
+        closing = true;
+        if (migration != null)
+            migration.join();
+        writes.drain();
+        for (Subscription subscription : subscriptions)
+            unsubscribe(subscription.listener);
+        backend.closed(dataClass, this);
+        storage.release();
+    }
+
+    /**
+     * @return row with given id, or {@code null} if there is none
+     */
+    public T selectById(long id) {
+        long start = now();
+        Lock lock = locks.read(id);
+        lock.lock();
         try {
-            if (!relativeTableDirectory.exists()) {
-                relativeTableDirectory.mkdirs();
-                maxNumberFile.createNewFile();
+            return read(id);
+        } finally {
+            lock.unlock();
+            measured(TableMetrics.Operation.SELECT, 1, start);
+        }
+    }
+
+    private T read(long id) {
+        if (cache == null) {
+            ByteBuffer row = readRemembered(id);
+            return row != null ? deserializeObject(row) : null;
+        }
+
+        T cached = cache.get(id);
+        if (metrics != null)
+            metrics.cacheLookup(cached != null);
+        if (cached != null)
+            return handOut(cached);
+
+        long stamp = cache.stamp();
+        ByteBuffer row = readRemembered(id);
+        if (row == null)
+            return null;
+        int weight = row.remaining();
+        T data = deserializeObject(row);
+        cache.put(id, data, weight, stamp);
+        return handOut(data);
+    }
+
+    /**
+     * Reads row, taking its snapshot for {@link #update} to compare against.
+     */
+    private ByteBuffer readRemembered(long id) {
+        ByteBuffer row = readRow(id);
+        if (row != null && snapshots != null)
+            snapshots.put(id, RowSnapshots.hash(row));
+        return row;
+    }
+
+    private T handOut(T cached) {
+        return options.isCacheCopies() ? ReflectionDAO.getInstance().planFor(dataClass).copy(cached) : cached;
+    }
+
+    /**
+     * @return row cache counters; all zero if caching is not enabled
+     *         through {@link TableOptions}
+     */
+    public CacheStats getCacheStats() {
+        return cache != null ? cache.stats() : new CacheStats(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @return number of updates that found the row unchanged and wrote
+     *         nothing, see {@link TableOptions#trackedRows(int)}
+     */
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+
+    /**
+     * @return number of updates that wrote only the fields that changed
+     */
+    public long getDeltaWrites() {
+        return deltaWrites.get();
+    }
+
+    /**
+     * Loads rows of this table given references point to, those not loaded
+     * yet, in id order; each row is read once, however many references
+     * point to it. References to rows that don't exist stay unloaded.
+     */
+    public void resolve(Collection<? extends Ref<T>> refs) {
+        Map<Long, List<Ref<T>>> pending = new TreeMap<Long, List<Ref<T>>>();
+        for (Ref<T> ref : refs) {
+            if (ref == null || ref.isLoaded())
+                continue;
+            List<Ref<T>> same = pending.get(ref.getId());
+            if (same == null) {
+                same = new ArrayList<Ref<T>>(1);
+                pending.put(ref.getId(), same);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            same.add(ref);
         }
 
+        for (Map.Entry<Long, List<Ref<T>>> entry : pending.entrySet()) {
+            T row = selectById(entry.getKey());
+            if (row == null)
+                continue;
+            for (Ref<T> ref : entry.getValue())
+                ref.load(row);
+        }
     }
 
     /**
-     * This stuff simulates an auto-increment number from a proper DB.
-     * Yes, I am aware of the sanity point cost to reading this code.
+     * Rewrites rows written in older schemas of this table's class, that
+     * is, before the class gained, lost or reordered fields, in its current
+     * schema. Each row is locked while it is rewritten; stops early if the
+     * table gets closed.
      *
-     * @return new unused number
-     */
-    private long getNextIndex() throws IOException {
-        File maxNumberFile = new File(relativeTableDirectory, ".maxNumber");
-        RandomAccessFile maxNumberRAFile;
-        maxNumberRAFile = new RandomAccessFile(maxNumberFile, "rw");
-        FileChannel maxNumberChannel = maxNumberRAFile.getChannel();
-        FileLock lock = maxNumberChannel.lock();
-        ByteBuffer numberBuffer = ByteBuffer.allocate(Long.SIZE);
-        maxNumberChannel.read(numberBuffer);
-        long maxNumber = numberBuffer.getLong(0);
-        long nextIndex = maxNumber + 1;
-        numberBuffer.putLong(0, nextIndex);
-        numberBuffer.position(0);
-        int bytesWritten = maxNumberChannel.write(numberBuffer, 0);
-        lock.release();
-        maxNumberChannel.close();
-        return nextIndex;
+     * @return number of rows rewritten
+     * @see TableOptions#migrateSchemas(boolean)
+     */
+    public long migrate() {
+        ClassPlan<T> plan = ReflectionDAO.getInstance().planFor(dataClass);
+        long migrated = 0;
+        for (long id : sortedIds()) {
+            if (closing)
+                break;
+            if (migrateRow(plan, id))
+                migrated++;
+        }
+        return migrated;
     }
 
-    public T selectById(long id) {
-        File file = getRow(id);
-        return deserializeObject(file);
+    private boolean migrateRow(ClassPlan<T> plan, long id) {
+        Lock lock = locks.write(id);
+        lock.lock();
+        try {
+            ByteBuffer row = readRow(id);
+            if (row == null || ReflectionDAO.getInstance().isCurrent(plan, row))
+                return false;
+            saveRow(id, deserializeObject(row));
+            migratedRows.incrementAndGet();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of rows rewritten in the current schema of the class,
+     *         by {@link #migrate()} or in background
+     */
+    public long getMigratedRows() {
+        return migratedRows.get();
+    }
+
+    /**
+     * @return sequence of the latest change of this table's rows, to pass
+     *         to {@link #changesSince(long)} later
+     */
+    public long getChangeSequence() {
+        return changes.getSequence();
+    }
+
+    /**
+     * @return inserts, updates and deletes of rows since the change with
+     *         given sequence, in the order they were made
+     * @throws IllegalStateException if some of them are no longer kept,
+     *                               see {@link TableOptions#changeRetention(long)};
+     *                               the table has to be scanned again
+     */
+    public List<Change> changesSince(long sequence) {
+        return changes.since(sequence);
+    }
+
+    /**
+     * Same as {@link #subscribe(ChangeListener, long, boolean)}, with rows,
+     * for changes from now on.
+     */
+    public void subscribe(ChangeListener<? super T> listener) {
+        Subscription subscription = new Subscription(listener, true);
+        changes.subscribe(subscription);
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Hands listener changes since the one with given sequence, then every
+     * change from now on, made through any table on the same rows, until
+     * unsubscribed or this table is closed.
+     *
+     * @param withRows whether to read changed rows for the listener
+     * @throws IllegalStateException if some of the changes asked for are
+     *                               no longer kept, as in {@link #changesSince(long)}
+     */
+    public void subscribe(ChangeListener<? super T> listener, long sequence, boolean withRows) {
+        Subscription subscription = new Subscription(listener, withRows);
+        changes.subscribe(subscription, sequence);
+        subscriptions.add(subscription);
+    }
+
+    /**
+     * Stops handing changes to given listener; changes being delivered
+     * to it may still arrive.
+     */
+    public void unsubscribe(ChangeListener<? super T> listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) {
+                subscription.cancelled = true;
+                changes.unsubscribe(subscription);
+                subscriptions.remove(subscription);
+            }
+        }
     }
 
     public boolean contains(long id) {
-        File file = getRow(id);
-        return file != null;
+        return store.contains(id);
+    }
+
+    /**
+     * Starts a query for rows where given field compares to value as stated.
+     */
+    public Query<T> where(String field, Operator operator, Object value) {
+        return new Query<T>(this, ReflectionDAO.getInstance().planFor(dataClass)).where(field, operator, value);
+    }
+
+    /**
+     * Starts a query for all rows, with only given fields set.
+     */
+    public Query<T> select(String... fields) {
+        return new Query<T>(this, ReflectionDAO.getInstance().planFor(dataClass)).select(fields);
+    }
+
+    ByteBuffer readRow(long id) {
+        if (metrics == null)
+            return store.read(id);
+
+        long start = System.nanoTime();
+        ByteBuffer row = store.read(id);
+        metrics.read(row != null ? 1 : 0, row != null ? row.remaining() : 0, System.nanoTime() - start);
+        return row;
+    }
+
+    SecondaryIndex indexOn(String field) {
+        return indexes.find(field);
+    }
+
+    /**
+     * Looks rows up through secondary index on given field, see {@link Indexed}.
+     *
+     * @param value value of the field, not {@code null}
+     * @return rows where the field equals given value, ordered by id
+     */
+    public List<T> findBy(String field, Object value) {
+        SecondaryIndex index = indexes.get(field);
+        Object key = index.toKey(value);
+        return selectIndexed(index, index.find(key), key, key);
+    }
+
+    /**
+     * Looks rows up through {@link IndexType#SORTED sorted} index on given field.
+     *
+     * @param from lowest value, inclusive; {@code null} for no lower bound
+     * @param to   highest value, inclusive; {@code null} for no upper bound
+     * @return rows where the field is within bounds, ordered by the field, then by id
+     */
+    public List<T> range(String field, Object from, Object to) {
+        SecondaryIndex index = indexes.get(field);
+        Object lower = from != null ? index.toKey(from) : null;
+        Object upper = to != null ? index.toKey(to) : null;
+        return selectIndexed(index, index.range(lower, upper), lower, upper);
+    }
+
+    private List<T> selectIndexed(SecondaryIndex index, long[] rowIds, Object from, Object to) {
+        List<T> data = new ArrayList<T>(rowIds.length);
+        for (long id : rowIds) {
+            // Index may be ahead of rows after a crash, see SecondaryIndex
+            T row = selectById(id);
+            if (row != null && index.matches(row, from, to))
+                data.add(row);
+        }
+        return data;
     }
 
     public void update(long id, T data) {
-        if (!contains(id))
-            throw new IllegalStateException("No row with ID: " + id);
+        long start = now();
+        Lock lock = locks.write(id);
+        lock.lock();
+        try {
+            if (!contains(id))
+                throw new IllegalStateException("No row with ID: " + id);
 
-        File file = getRow(id);
-        if (!file.delete())
-            throw new IllegalStateException("Failed to delete row: " + id);
-        saveFileAs(id, data);
+            updateRow(id, data);
+        } finally {
+            lock.unlock();
+            measured(TableMetrics.Operation.UPDATE, 1, start);
+        }
     }
 
     public void insert(T data) {
@@ -106,79 +528,515 @@ public class Table<T extends Identified> {
         // autoincrements: it doesn't care if there are any 'free'
         // ID's in the middle, it just returns one ID higher than
         // highest ID stored.
+        insertRow(reserveIds(1), data);
+    }
+
+    void insertRow(long id, T data) {
+        long start = now();
+        Lock lock = locks.write(id);
+        lock.lock();
         try {
-            long nextId = getNextIndex();
-            data.setId(nextId);
-            saveFileAs(nextId, data);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (contains(id))
+                throw new IllegalStateException("Row already exists, ID: " + id);
+            data.setId(id);
+            saveRow(id, data);
+            changes.append(Change.Type.INSERT, id, options.getSync().syncsWrites());
+        } finally {
+            lock.unlock();
+            measured(TableMetrics.Operation.INSERT, 1, start);
         }
     }
 
-    public void delete(T data) {
-        if (data.isPersisted()) {
-            deleteFileAs(data.getId());
+    /**
+     * Inserts all given objects, numbered in iteration order. Ids are
+     * reserved for the whole batch at once, rows are serialized in
+     * parallel and written in large batches; see {@link SyncPolicy#BATCH}
+     * for durability.
+     */
+    public void insertAll(Collection<? extends T> data) {
+        List<T> rows = new ArrayList<T>(data);
+        if (rows.isEmpty())
+            return;
+
+        long start = now();
+        long firstId = reserveIds(rows.size());
+        long[] rowIds = new long[rows.size()];
+        for (int i = 0; i < rowIds.length; i++)
+            rowIds[i] = firstId + i;
+
+        boolean[] stripes = locks.lockAll(rowIds);
+        try {
+            for (long id : rowIds) {
+                if (contains(id))
+                    throw new IllegalStateException("Row already exists, ID: " + id);
+            }
+            for (int i = 0; i < rowIds.length; i++)
+                rows.get(i).setId(rowIds[i]);
+            saveRows(rowIds, rows, Change.Type.INSERT);
+        } finally {
+            locks.unlockAll(stripes);
+            measured(TableMetrics.Operation.INSERT, rowIds.length, start);
         }
     }
 
-    private void deleteFileAs(long id) {
-        File row = getRow(id);
-        if (row != null) {
-            row.delete();
+    /**
+     * Updates rows of all given objects, which must all be stored already.
+     * Nothing is written if any of them isn't.
+     */
+    public void updateAll(Collection<? extends T> data) {
+        long start = now();
+        List<T> rows = new ArrayList<T>(data);
+        long[] rowIds = new long[rows.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            T row = rows.get(i);
+            if (!row.isPersisted())
+                throw new IllegalStateException("No row with ID: null");
+            rowIds[i] = row.getId();
+        }
+
+        boolean[] stripes = locks.lockAll(rowIds);
+        try {
+            for (long id : rowIds) {
+                if (!contains(id))
+                    throw new IllegalStateException("No row with ID: " + id);
+            }
+            saveRows(rowIds, rows, Change.Type.UPDATE);
+        } finally {
+            locks.unlockAll(stripes);
+            measured(TableMetrics.Operation.UPDATE, rowIds.length, start);
         }
     }
 
-    private void saveFileAs(long id, T data) {
-        if (contains(id))
-            throw new IllegalStateException("Row already exists, ID: " + id);
+    public void deleteAll(Collection<? extends T> data) {
+        long start = now();
+        long[] rowIds = new long[data.size()];
+        int count = 0;
+        for (T row : data) {
+            if (row.isPersisted())
+                rowIds[count++] = row.getId();
+        }
 
-        File row = new File(relativeTableDirectory, String.valueOf(id));
-        serializeObject(data, row);
+        for (int from = 0; from < count; from += BATCH_SIZE) {
+            long[] batch = Arrays.copyOfRange(rowIds, from, Math.min(from + BATCH_SIZE, count));
+            boolean[] stripes = locks.lockAll(batch);
+            try {
+                long[] deleted = new long[batch.length];
+                int deletedCount = 0;
+                for (long id : batch) {
+                    if (contains(id))
+                        deleted[deletedCount++] = id;
+                }
+                store.deleteAll(batch);
+                indexes.removeAll(batch, options.getSync().syncsBatches());
+                for (long id : batch)
+                    forget(id);
+                changes.append(Change.Type.DELETE, deleted, deletedCount, options.getSync().syncsBatches());
+            } finally {
+                locks.unlockAll(stripes);
+            }
+        }
+        measured(TableMetrics.Operation.DELETE, count, start);
     }
 
-    private File getRow(final long id) {
-        File potentialRowFile = new File(relativeTableDirectory, Long.toString(id));
+    public void delete(T data) {
+        if (data.isPersisted())
+            deleteRow(data.getId());
+    }
 
-        if (potentialRowFile.exists()) {
-            return potentialRowFile;
+    void deleteRow(long id) {
+        long start = now();
+        Lock lock = locks.write(id);
+        lock.lock();
+        try {
+            boolean existed = contains(id);
+            store.delete(id);
+            indexes.removeAll(new long[]{id}, options.getSync().syncsWrites());
+            forget(id);
+            if (existed)
+                changes.append(Change.Type.DELETE, id, options.getSync().syncsWrites());
+        } finally {
+            lock.unlock();
+            measured(TableMetrics.Operation.DELETE, 1, start);
         }
+    }
+
+    /**
+     * Same as {@link #selectById}, on the executor of async operations
+     * (see {@link TableOptions#executor}). Sees async writes of the row
+     * queued before it.
+     */
+    public CompletableFuture<T> selectByIdAsync(long id) {
+        return writes.select(id);
+    }
+
+    /**
+     * Same as {@link #insert}, on the executor of async operations. The
+     * id is assigned right away; what gets stored is the object as it was
+     * when this was called.
+     *
+     * @return future of the inserted object
+     */
+    public CompletableFuture<T> insertAsync(final T data) {
+        long id = reserveIds(1);
+        data.setId(id);
+        return writes.insert(id, data).thenApply(new Function<Void, T>() {
+            public T apply(Void ignored) {
+                return data;
+            }
+        });
+    }
 
-        return null;
+    /**
+     * Same as {@link #update}, on the executor of async operations. If an
+     * earlier async write of the row hasn't started yet, this one takes
+     * its place and both complete together.
+     */
+    public CompletableFuture<Void> updateAsync(long id, T data) {
+        return writes.update(id, data);
     }
 
-    private void serializeObject(T data, File row) {
-        FileOutputStream fos = null;
+    /**
+     * Same as {@link #delete}, on the executor of async operations;
+     * supersedes async writes of the row that haven't started yet.
+     */
+    public CompletableFuture<Void> deleteAsync(T data) {
+        if (!data.isPersisted())
+            return CompletableFuture.completedFuture(null);
+        return writes.delete(data.getId());
+    }
+
+    private void saveRow(long id, T data) {
+        BinaryOutput row = encode(data);
         try {
-            fos = new FileOutputStream(row);
-            if (!data.isPersisted())
-                data.setId(Long.parseLong(row.getName()));
-            ReflectionDAO.getInstance().serialize(data, fos);
-        } catch (FileNotFoundException e) {
-            throw new IllegalStateException(e);
+            writeRow(id, row);
+            indexes.put(id, data, options.getSync().syncsWrites());
+            if (snapshots != null)
+                snapshots.put(id, RowSnapshots.hash(ByteBuffer.wrap(row.array(), 0, row.size())));
         } finally {
+            row.release();
+        }
+        invalidate(id);
+    }
+
+    /**
+     * Writes row only if it changed since it was last read or written, and
+     * if only a few of its fields did, only those, where the store allows.
+     */
+    private void updateRow(long id, T data) {
+        if (snapshots == null) {
+            saveRow(id, data);
+            changes.append(Change.Type.UPDATE, id, options.getSync().syncsWrites());
+            return;
+        }
+
+        BinaryOutput row = encode(data);
+        try {
+            long[] hashes = RowSnapshots.hash(ByteBuffer.wrap(row.array(), 0, row.size()));
+            long[] stored = snapshots.get(id);
+            if (stored != null && Arrays.equals(stored, hashes)) {
+                skippedWrites.incrementAndGet();
+                return;
+            }
+
+            byte[] delta = stored != null ? BinaryDelta.of(row.array(), row.size(), stored, hashes) : null;
             try {
-                if (fos != null)
-                    fos.close();
-            } catch (IOException e) {
-                LOG.warn("Failed to close serialization stream!", e);
+                if (delta != null && patchRow(id, delta))
+                    deltaWrites.incrementAndGet();
+                else
+                    writeRow(id, row);
+                indexes.put(id, data, options.getSync().syncsWrites());
+            } catch (RuntimeException e) {
+                snapshots.forget(id);
+                throw e;
             }
+            snapshots.put(id, hashes);
+        } finally {
+            row.release();
+        }
+        invalidate(id);
+        changes.append(Change.Type.UPDATE, id, options.getSync().syncsWrites());
+    }
+
+    /**
+     * @return row in this thread's buffer, to be {@link BinaryOutput#release() released}
+     */
+    private BinaryOutput encode(T data) {
+        long start = now();
+        BinaryOutput row = BinaryOutput.acquire();
+        try {
+            ReflectionDAO.getInstance().serialize(data, row, options.getFormat(), storage.schemas);
+        } catch (RuntimeException e) {
+            row.release();
+            throw e;
+        }
+        if (metrics != null)
+            metrics.encoded(1, System.nanoTime() - start);
+        return row;
+    }
+
+    private void writeRow(long id, BinaryOutput row) {
+        long start = now();
+        store.write(id, row.array(), row.size());
+        if (metrics != null)
+            metrics.written(1, row.size(), System.nanoTime() - start);
+    }
+
+    private boolean patchRow(long id, byte[] delta) {
+        long start = now();
+        boolean patched = store.patch(id, delta);
+        if (metrics != null && patched)
+            metrics.written(1, delta.length, System.nanoTime() - start);
+        return patched;
+    }
+
+    private void saveRows(long[] rowIds, List<T> rows, Change.Type change) {
+        for (int from = 0; from < rowIds.length; from += BATCH_SIZE) {
+            int to = Math.min(from + BATCH_SIZE, rowIds.length);
+            long[] batch = Arrays.copyOfRange(rowIds, from, to);
+            long start = now();
+            byte[][] encoded = BatchEncoder.encode(rows.subList(from, to), options.getFormat(), storage.schemas);
+            if (metrics != null)
+                metrics.encoded(batch.length, System.nanoTime() - start);
+            start = now();
+            store.writeAll(batch, encoded);
+            if (metrics != null) {
+                long bytes = 0;
+                for (byte[] row : encoded)
+                    bytes += row.length;
+                metrics.written(batch.length, bytes, System.nanoTime() - start);
+            }
+            indexes.putAll(batch, rows.subList(from, to), options.getSync().syncsBatches());
+            for (long id : batch)
+                forget(id);
+            changes.append(change, batch, batch.length, options.getSync().syncsBatches());
+        }
+    }
+
+    private long reserveIds(int count) {
+        long start = now();
+        long firstId = ids.reserve(count);
+        if (metrics != null)
+            metrics.allocated(count, System.nanoTime() - start);
+        return firstId;
+    }
+
+    private void invalidate(long id) {
+        if (cache != null)
+            cache.invalidate(id);
+    }
+
+    private void forget(long id) {
+        invalidate(id);
+        if (snapshots != null)
+            snapshots.forget(id);
+    }
+
+    T deserializeObject(ByteBuffer row) {
+        long start = now();
+        T data;
+        // References in the row load from this table's backend
+        StorageBackend previous = Ref.reading(backend);
+        try {
+            data = ReflectionDAO.getInstance().deserialize(dataClass, row, storage.schemas);
+        } finally {
+            Ref.reading(previous);
         }
+        if (metrics != null)
+            metrics.decoded(1, System.nanoTime() - start);
+        return data;
     }
 
-    private T deserializeObject(File file) {
-        FileInputStream fis = null;
+    /**
+     * Reads some fields of given row, see {@link RowCodec#readFields}.
+     */
+    void readFields(ByteBuffer row, Projection projection, Object[] values) {
+        StorageBackend previous = Ref.reading(backend);
         try {
-            fis = new FileInputStream(file);
-            return ReflectionDAO.getInstance().deserialize(dataClass, fis);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+            ReflectionDAO.getInstance().readFields(ReflectionDAO.getInstance().planFor(dataClass), row, projection, values, storage.schemas);
         } finally {
-            try {
-                if (fis != null)
-                    fis.close();
-            } catch (IOException e) {
-                LOG.warn("Failed to close deserialization stream!", e);
+            Ref.reading(previous);
+        }
+    }
+
+    private long now() {
+        return metrics != null ? System.nanoTime() : 0;
+    }
+
+    private void measured(TableMetrics.Operation operation, int rows, long start) {
+        if (metrics != null)
+            metrics.operation(operation, rows, System.nanoTime() - start);
+    }
+
+    /**
+     * Changes queued for a listener, delivered in order on the executor
+     * of async operations, one run at a time.
+     */
+    private final class Subscription implements ChangeLog.Subscriber, Runnable {
+        private final ChangeListener<? super T> listener;
+        private final boolean withRows;
+        private final ConcurrentLinkedQueue<Change> queued = new ConcurrentLinkedQueue<Change>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private Subscription(ChangeListener<? super T> listener, boolean withRows) {
+            this.listener = listener;
+            this.withRows = withRows;
+        }
+
+        public void offer(Change change) {
+            queued.add(change);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        }
+
+        public void run() {
+            Change change;
+            while (!cancelled && (change = queued.poll()) != null) {
+                try {
+                    T row = withRows && change.getType() != Change.Type.DELETE ? selectById(change.getId()) : null;
+                    listener.changed(change, row);
+                } catch (RuntimeException e) {
+                    LOG.error("Listener of " + dataClass.getName() + " failed on change " + change, e);
+                }
+            }
+            scheduled.set(false);
+            // Changes queued after the loop ended but before it was unscheduled
+            if (!cancelled && !queued.isEmpty())
+                schedule();
+        }
+    }
+
+    /**
+     * Reads and decodes rows of a range of ids into matching slots of an
+     * array, forking halves of the range until it is small enough.
+     */
+    private final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] ids;
+        private final Object[] rows;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        private ScanTask(long[] ids, Object[] rows, int from, int to, int chunkSize) {
+            this.ids = ids;
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                for (int i = from; i < to; i++) {
+                    ByteBuffer row = readRow(ids[i]);
+                    if (row != null)
+                        rows[i] = deserializeObject(row);
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new ScanTask(ids, rows, from, middle, chunkSize), new ScanTask(ids, rows, middle, to, chunkSize));
+        }
+    }
+
+    /**
+     * Reads rows of a range of ids as it is traversed; splits by halving
+     * the range.
+     */
+    private final class RowSpliterator implements Spliterator<T> {
+        private static final int MIN_SPLIT = 64;
+
+        private final long[] ids;
+        private int position;
+        private final int end;
+
+        private RowSpliterator(long[] ids) {
+            this(ids, 0, ids.length);
+        }
+
+        private RowSpliterator(long[] ids, int position, int end) {
+            this.ids = ids;
+            this.position = position;
+            this.end = end;
+        }
+
+        public boolean tryAdvance(Consumer<? super T> action) {
+            while (position < end) {
+                ByteBuffer row = readRow(ids[position++]);
+                if (row != null) {
+                    action.accept(deserializeObject(row));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Spliterator<T> trySplit() {
+            int remaining = end - position;
+            if (remaining < 2 * MIN_SPLIT)
+                return null;
+            int middle = position + remaining / 2;
+            RowSpliterator prefix = new RowSpliterator(ids, position, middle);
+            position = middle;
+            return prefix;
+        }
+
+        public long estimateSize() {
+            return end - position;
+        }
+
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    /**
+     * Reads rows of given ids as it goes, passing over rows deleted since
+     * ids were listed.
+     */
+    private final class RowIterator implements CloseableIterator<T> {
+        private final long[] ids;
+        private int position;
+        private T next;
+        private boolean closed;
+
+        private RowIterator(long[] ids, long skip) {
+            this.ids = ids;
+            this.position = (int) Math.min(skip, ids.length);
+        }
+
+        public boolean hasNext() {
+            while (next == null && !closed && position < ids.length) {
+                ByteBuffer row = readRow(ids[position++]);
+                if (row != null)
+                    next = deserializeObject(row);
             }
+            return next != null;
+        }
+
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            T row = next;
+            next = null;
+            return row;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            closed = true;
+            next = null;
         }
     }
 }
@@ -0,0 +1,73 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Receives measurements of a {@link Table}, set through
+ * {@link TableOptions#metrics(TableMetrics)}; {@link MetricsRecorder} is
+ * a ready one. Tables without metrics measure nothing, not even time.
+ * <p/>
+ * Methods are called on the threads doing the work, so they must be
+ * thread-safe and quick. Times are in nanoseconds. Give every table its
+ * own instance, as calls don't say which table they come from.
+ */
+public interface TableMetrics {
+    enum Operation {
+        /**
+         * {@link Table#insert}, {@link Table#insertAll} and async inserts
+         */
+        INSERT,
+        /**
+         * {@link Table#selectById}, including lookups through indexes
+         */
+        SELECT,
+        /**
+         * {@link Table#update}, {@link Table#updateAll} and async updates
+         */
+        UPDATE,
+        /**
+         * {@link Table#delete}, {@link Table#deleteAll} and async deletes
+         */
+        DELETE,
+        /**
+         * {@link Table#all()} and {@link Table#all(ParallelismOptions)}
+         */
+        ALL
+    }
+
+    /**
+     * Operation completed, successfully or not.
+     *
+     * @param rows rows it was called with, or found by it
+     */
+    void operation(Operation operation, int rows, long nanos);
+
+    /**
+     * Rows were read from storage, taking given time.
+     */
+    void read(int rows, long bytes, long nanos);
+
+    /**
+     * Rows were written to storage, in whole or as deltas, taking given time.
+     */
+    void written(int rows, long bytes, long nanos);
+
+    /**
+     * Rows were serialized, taking given time.
+     */
+    void encoded(int rows, long nanos);
+
+    /**
+     * Rows were deserialized, taking given time.
+     */
+    void decoded(int rows, long nanos);
+
+    /**
+     * Ids were allocated, taking given time; it is spent waiting for the
+     * {@code .maxNumber} lease, which is written and locked every so many ids.
+     */
+    void allocated(int ids, long nanos);
+
+    /**
+     * Row cache was looked up, see {@link TableOptions#cacheSize(int)}.
+     */
+    void cacheLookup(boolean hit);
+}
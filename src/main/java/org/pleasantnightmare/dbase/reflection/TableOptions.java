@@ -0,0 +1,253 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Per-table settings, passed to {@link ReflectionDAO#instantiateViewOn(Class, TableOptions)}.
+ * Defaults match how tables always behaved.
+ */
+public class TableOptions {
+    private RowFormat format = RowFormat.XML;
+    private StorageLayout layout = StorageLayout.FILE_PER_ROW;
+    private long maxSegmentSize = 64L * 1024 * 1024;
+    private boolean memoryMapped;
+    private int cacheSize;
+    private long cacheBytes;
+    private boolean cacheCopies = true;
+    private SyncPolicy sync = SyncPolicy.NONE;
+    private long syncInterval = 1000;
+    private Executor executor;
+    private int trackedRows;
+    private TableMetrics metrics;
+    private boolean migrateSchemas;
+    private long changeRetention;
+    private final Map<String, IndexType> indexes = new LinkedHashMap<String, IndexType>();
+
+    public RowFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Format new and updated rows are written in.
+     */
+    public TableOptions format(RowFormat format) {
+        this.format = format;
+        return this;
+    }
+
+    public StorageLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * How rows are arranged on disk. Layout of a table can't be changed
+     * once it holds rows.
+     */
+    public TableOptions layout(StorageLayout layout) {
+        this.layout = layout;
+        return this;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * Size after which {@link StorageLayout#SEGMENTED} tables start a new
+     * segment file; at most {@link Integer#MAX_VALUE}, so that a segment
+     * can be memory mapped whole.
+     */
+    public TableOptions maxSegmentSize(long maxSegmentSize) {
+        if (maxSegmentSize <= 0 || maxSegmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Segment size out of range: " + maxSegmentSize);
+        this.maxSegmentSize = maxSegmentSize;
+        return this;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Read rows through memory mapped files instead of reading them into
+     * heap buffers. Pays off for read-heavy tables whose data fits into
+     * page cache; mostly useful with {@link StorageLayout#SEGMENTED}, where
+     * a segment is mapped once rather than every row file on every read.
+     */
+    public TableOptions memoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Keep up to given number of recently selected rows decoded in memory.
+     * {@code 0}, the default, caches nothing unless {@link #cacheBytes(long)} is set.
+     */
+    public TableOptions cacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public long getCacheBytes() {
+        return cacheBytes;
+    }
+
+    /**
+     * Keep recently selected rows decoded in memory, up to given total of
+     * their stored size. Can be combined with {@link #cacheSize(int)}.
+     */
+    public TableOptions cacheBytes(long cacheBytes) {
+        this.cacheBytes = cacheBytes;
+        return this;
+    }
+
+    public boolean isCacheCopies() {
+        return cacheCopies;
+    }
+
+    /**
+     * Whether cached rows are handed out as copies, the default. Without
+     * copies every caller gets the same instance, which is faster but must
+     * then be treated as read-only.
+     */
+    public TableOptions cacheCopies(boolean cacheCopies) {
+        this.cacheCopies = cacheCopies;
+        return this;
+    }
+
+    public SyncPolicy getSync() {
+        return sync;
+    }
+
+    /**
+     * When written rows are forced to disk, see {@link SyncPolicy}.
+     */
+    public TableOptions sync(SyncPolicy sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    /**
+     * Milliseconds between background syncs of {@link SyncPolicy#PERIODIC} tables.
+     */
+    public TableOptions syncInterval(long syncInterval) {
+        this.syncInterval = syncInterval;
+        return this;
+    }
+
+    /**
+     * @return executor of async operations; {@code null} for the shared I/O pool
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Executor {@link Table#insertAsync}, {@link Table#updateAsync} and
+     * the like run on. By default they share a pool of daemon threads.
+     */
+    public TableOptions executor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Runs async operations on virtual threads, one per operation.
+     *
+     * @throws IllegalStateException if JVM is older than 21
+     */
+    public TableOptions virtualThreads() {
+        return executor(IoExecutors.virtualThreads());
+    }
+
+    public int getTrackedRows() {
+        return trackedRows;
+    }
+
+    /**
+     * Number of recently used rows whose stored contents are remembered
+     * (as hashes), so that updates leaving them unchanged write nothing,
+     * and, in binary {@link StorageLayout#SEGMENTED segmented} tables,
+     * updates changing a few fields write only those. Contents are
+     * compared by 64 bit hash, so an update colliding with what is stored
+     * would be lost; off ({@code 0}) unless set.
+     */
+    public TableOptions trackedRows(int trackedRows) {
+        this.trackedRows = trackedRows;
+        return this;
+    }
+
+    /**
+     * @return receiver of measurements; {@code null}, the default, for none
+     */
+    public TableMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Reports operation latencies, I/O, serialization time and the like
+     * to given metrics, such as a {@link MetricsRecorder}.
+     */
+    public TableOptions metrics(TableMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public boolean isMigrateSchemas() {
+        return migrateSchemas;
+    }
+
+    /**
+     * Once the table is opened, rewrites rows written in older schemas of
+     * its class (see {@link Table#migrate()}) on the executor of async
+     * operations. Such rows are readable either way, only a little slower.
+     */
+    public TableOptions migrateSchemas(boolean migrateSchemas) {
+        this.migrateSchemas = migrateSchemas;
+        return this;
+    }
+
+    public long getChangeRetention() {
+        return changeRetention;
+    }
+
+    /**
+     * Number of latest changes of rows kept in {@code .changes} of the
+     * table, for {@link Table#changesSince(long)} and subscribers catching
+     * up. Once a table keeps changes, it keeps them with the last retention
+     * set, whatever tables opened on it later are told. {@code 0}, the
+     * default, keeps none, so changes only reach current subscribers;
+     * their numbering still carries on across opens.
+     */
+    public TableOptions changeRetention(long changeRetention) {
+        this.changeRetention = changeRetention;
+        return this;
+    }
+
+    /**
+     * @return indexes declared through {@link #index(String, IndexType)}, by field name
+     */
+    public Map<String, IndexType> getIndexes() {
+        return Collections.unmodifiableMap(indexes);
+    }
+
+    /**
+     * Keeps a secondary index on given field, same as annotating it with
+     * {@link Indexed}. Declared here, it overrides the annotation.
+     */
+    public TableOptions index(String field, IndexType type) {
+        indexes.put(field, type);
+        return this;
+    }
+}
@@ -0,0 +1,48 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * State of a table opened by a {@link StorageBackend}: its rows and what
+ * goes with them. Parts may be shared with other tables opened on the
+ * same data.
+ */
+final class TableStorage {
+    final RowStore store;
+    final IdAllocator ids;
+    final SecondaryIndexes indexes;
+    final RowLocks locks;
+    final SchemaCatalog schemas;
+    // Null when dirty tracking is off
+    final RowSnapshots snapshots;
+    final ChangeLog changes;
+    // Parts of in-memory tables live as long as their backend
+    private final boolean releasable;
+
+    TableStorage(RowStore store, IdAllocator ids, SecondaryIndexes indexes, RowLocks locks, SchemaCatalog schemas, RowSnapshots snapshots,
+                 ChangeLog changes, boolean releasable) {
+        this.store = store;
+        this.ids = ids;
+        this.indexes = indexes;
+        this.locks = locks;
+        this.schemas = schemas;
+        this.snapshots = snapshots;
+        this.changes = changes;
+        this.releasable = releasable;
+    }
+
+    /**
+     * Releases this table's hold on shared parts, closing those no other
+     * table holds any more.
+     */
+    void release() {
+        if (!releasable)
+            return;
+        if (snapshots != null)
+            snapshots.close();
+        changes.close();
+        locks.close();
+        schemas.close();
+        indexes.close();
+        ids.close();
+        store.close();
+    }
+}
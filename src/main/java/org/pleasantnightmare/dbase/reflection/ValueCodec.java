@@ -0,0 +1,16 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Converts single field value to and from its stored text form.
+ * <p/>
+ * Codecs are shared between all tables and threads, so implementations
+ * must be stateless (or at least thread-safe). Nulls are handled by
+ * reflection DAO itself and never reach a codec.
+ *
+ * @see ReflectionDAO#registerCodec(Class, ValueCodec)
+ */
+public interface ValueCodec<T> {
+    String encode(T value);
+
+    T decode(String text);
+}
@@ -0,0 +1,219 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.pleasantnightmare.dbase.Identified;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Async operations of a table, run on its executor. Operations on the
+ * same row run one after another, in the order they were queued; those on
+ * different rows run in parallel.
+ * <p/>
+ * Writes waiting for their turn are coalesced: an update or delete of a
+ * row that still has a write queued replaces that write's data instead of
+ * queueing another, so a burst of updates to a row costs one disk write.
+ * All of the coalesced operations complete once that write is done.
+ */
+final class WriteQueue<T extends Identified> {
+    private enum Kind {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final Table<T> table;
+    private final ClassPlan<T> plan;
+    private final Executor executor;
+    // Last operation queued on each row; guarded by this
+    private final Map<Long, Write> tails = new HashMap<Long, Write>();
+
+    WriteQueue(Table<T> table, ClassPlan<T> plan, Executor executor) {
+        this.table = table;
+        this.plan = plan;
+        this.executor = executor;
+    }
+
+    CompletableFuture<Void> insert(long id, T data) {
+        return queue(id, Kind.INSERT, plan.copy(data));
+    }
+
+    CompletableFuture<Void> update(long id, T data) {
+        return queue(id, Kind.UPDATE, plan.copy(data));
+    }
+
+    CompletableFuture<Void> delete(long id) {
+        return queue(id, Kind.DELETE, null);
+    }
+
+    /**
+     * Reads row once writes queued on it before are done.
+     */
+    CompletableFuture<T> select(final long id) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        Task read = new Task() {
+            public void run() {
+                try {
+                    result.complete(table.selectById(id));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            void rejected(RejectedExecutionException e) {
+                result.completeExceptionally(e);
+            }
+        };
+
+        Write tail;
+        synchronized (this) {
+            tail = tails.get(id);
+        }
+        if (tail == null)
+            execute(read);
+        else
+            runAfter(tail.done, read);
+        return result;
+    }
+
+    /**
+     * Waits for all queued operations to finish.
+     */
+    void drain() {
+        List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+        synchronized (this) {
+            for (Write write : tails.values())
+                pending.add(write.done);
+        }
+        for (CompletableFuture<Void> done : pending) {
+            try {
+                done.join();
+            } catch (RuntimeException e) {
+                // Reported to whoever queued the write
+            }
+        }
+    }
+
+    private CompletableFuture<Void> queue(long id, Kind kind, T data) {
+        Write write;
+        Write previous;
+        synchronized (this) {
+            previous = tails.get(id);
+            if (previous != null && !previous.started && previous.kind != Kind.DELETE) {
+                // Insert stays an insert when its data gets updated
+                if (kind == Kind.DELETE)
+                    previous.kind = Kind.DELETE;
+                previous.data = data;
+                return handOut(previous.done);
+            }
+            write = new Write(id, kind, data);
+            tails.put(id, write);
+        }
+
+        if (previous == null)
+            execute(write);
+        else
+            runAfter(previous.done, write);
+        return handOut(write.done);
+    }
+
+    private void runAfter(CompletableFuture<Void> previous, final Task next) {
+        previous.whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void ignored, Throwable failure) {
+                execute(next);
+            }
+        });
+    }
+
+    private void execute(Task task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.rejected(e);
+        }
+    }
+
+    /**
+     * @return future completing with given one, which callers can't
+     *         complete themselves, as it may be shared by coalesced writes
+     */
+    private static CompletableFuture<Void> handOut(CompletableFuture<Void> done) {
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+        done.whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void ignored, Throwable failure) {
+                if (failure != null)
+                    result.completeExceptionally(failure);
+                else
+                    result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Operation that fails, rather than getting lost, when executor
+     * refuses to run it.
+     */
+    private abstract static class Task implements Runnable {
+        abstract void rejected(RejectedExecutionException e);
+    }
+
+    private final class Write extends Task {
+        private final long id;
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        // Guarded by queue, until started
+        private Kind kind;
+        private T data;
+        private boolean started;
+
+        private Write(long id, Kind kind, T data) {
+            this.id = id;
+            this.kind = kind;
+            this.data = data;
+        }
+
+        public void run() {
+            Kind kind;
+            T data;
+            synchronized (WriteQueue.this) {
+                started = true;
+                kind = this.kind;
+                data = this.data;
+            }
+
+            try {
+                if (kind == Kind.INSERT)
+                    table.insertRow(id, data);
+                else if (kind == Kind.UPDATE)
+                    table.update(id, data);
+                else
+                    table.deleteRow(id);
+                done.complete(null);
+            } catch (Throwable e) {
+                done.completeExceptionally(e);
+            } finally {
+                release();
+            }
+        }
+
+        void rejected(RejectedExecutionException e) {
+            // Coalescing into a write that will never run would lose data
+            synchronized (WriteQueue.this) {
+                started = true;
+            }
+            release();
+            done.completeExceptionally(e);
+        }
+
+        private void release() {
+            synchronized (WriteQueue.this) {
+                if (tails.get(id) == this)
+                    tails.remove(id);
+            }
+        }
+    }
+}
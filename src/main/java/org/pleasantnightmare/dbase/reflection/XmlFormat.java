@@ -0,0 +1,74 @@
+package org.pleasantnightmare.dbase.reflection;
+
+/**
+ * Element names and value conventions of XML rows, shared by XML codecs.
+ * <pre>
+ * &lt;reflection-dao schema="8c3f..."&gt;
+ *   &lt;class&gt;com.example.Data&lt;/class&gt;
+ *   &lt;field&gt;42&lt;/field&gt;
+ *   &lt;field&gt;&lt;list type="java.lang.String"&gt;&lt;data&gt;a&lt;/data&gt;&lt;/list&gt;&lt;/field&gt;
+ *   &lt;field&gt;&lt;packed-list type="java.lang.Long"&gt;AAAAAAAAAAE=&lt;/packed-list&gt;&lt;/field&gt;
+ *   &lt;field&gt;AAAAAQAAAAI=&lt;/field&gt;
+ *   &lt;field&gt;&lt;map key-type="..." value-type="..."&gt;&lt;entry key="k"&gt;v&lt;/entry&gt;&lt;/map&gt;&lt;/field&gt;
+ *   &lt;field&gt;&lt;object type="com.example.Address" schema="41d0..."&gt;&lt;field&gt;...&lt;/field&gt;&lt;/object&gt;&lt;/field&gt;
+ *   &lt;field type="java.lang.Integer"&gt;7&lt;/field&gt;
+ * &lt;/reflection-dao&gt;
+ * </pre>
+ * Fields, including those of objects embedded for lack of a codec, come
+ * in {@link ClassPlan} order; schema is the class's
+ * {@link ClassPlan#getFingerprint() fingerprint} in hex, missing from rows
+ * and objects written before it was recorded. Values whose declared type
+ * has no codec, such as {@code Object}, while their class has one, carry
+ * that class as type. Numeric primitive arrays, and lists and
+ * sets of numbers of one type, are base64 text of their
+ * {@link PackedArrays packed block}.
+ */
+final class XmlFormat {
+    static final String EL_ROOT = "reflection-dao";
+    static final String ATTR_SCHEMA = "schema";
+    static final String EL_FIELD = "field";
+    static final String EL_CLASS = "class";
+    static final String EL_LIST = "list";
+    static final String ATTR_LIST_GENERICTYPE = "type";
+    static final String EL_SET = "set";
+    static final String ATTR_SET_GENERICTYPE = "type";
+    static final String EL_PACKED_LIST = "packed-list";
+    static final String EL_PACKED_SET = "packed-set";
+    static final String ATTR_PACKED_TYPE = "type";
+    static final String UNDETERMINED_TYPE = "NULL";
+    static final String EL_COLLECTIONDATA = "data";
+    static final String EL_OBJECT = "object";
+    static final String ATTR_OBJECT_TYPE = "type";
+    static final String ATTR_OBJECT_SCHEMA = "schema";
+    static final String ATTR_VALUE_TYPE = "type";
+    static final String EL_MAP = "map";
+    static final String EL_MAPENTRY = "entry";
+    static final String ATTR_MAP_ENTRYKEY = "key";
+    static final String ATTR_MAP_VALUETYPE = "value-type";
+    static final String ATTR_MAP_KEYTYPE = "key-type";
+    static final String NULL_VALUE = "null";
+
+    private XmlFormat() {
+    }
+
+    static Object decode(CodecRegistry codecs, ValueCodec<Object> codec, Class<?> type, String text) {
+        if (NULL_VALUE.equals(text))
+            return null;
+        if (codec == null)
+            codec = codecs.require(type);
+        return codec.decode(text);
+    }
+
+    static String encode(CodecRegistry codecs, ValueCodec<Object> codec, Object o) {
+        if (o == null)
+            return NULL_VALUE;
+        if (codec == null)
+            codec = codecs.require(o.getClass());
+        return codec.encode(o);
+    }
+
+    static void checkStoredClass(Class<?> dataClass, String clazz) {
+        if (!dataClass.getName().equals(clazz))
+            throw new IllegalStateException("Deserialization error: trying to deserialize class '" + dataClass.getName() + "' from stored object class ' " + clazz + "'");
+    }
+}
@@ -0,0 +1,181 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Async operations behave like blocking ones, run in order per row, and
+ * queued writes of a row are coalesced.
+ */
+public class AsyncTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Table<AsyncData> view = new Table<AsyncData>(root, AsyncData.class);
+        AsyncData data = new AsyncData(1);
+        AsyncData inserted = view.insertAsync(data).get();
+        assertSame(data, inserted);
+        assertTrue(data.isPersisted());
+
+        data.number = 2;
+        CompletableFuture<Void> update = view.updateAsync(data.getId(), data);
+        // Queued after the update, so it sees it
+        assertEquals(2, view.selectByIdAsync(data.getId()).get().number);
+        update.get();
+
+        view.deleteAsync(data).get();
+        assertNull(view.selectByIdAsync(data.getId()).get());
+        view.close();
+    }
+
+    @Test
+    public void failuresCompleteFutures() throws Exception {
+        Table<AsyncData> view = new Table<AsyncData>(root, AsyncData.class);
+        try {
+            view.updateAsync(42, new AsyncData(1)).get();
+            fail("Updated row that was never inserted");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IllegalStateException);
+        }
+        view.close();
+    }
+
+    @Test
+    public void queuedWritesAreCoalesced() throws Exception {
+        ManualExecutor executor = new ManualExecutor();
+        Table<AsyncData> view = new Table<AsyncData>(root, AsyncData.class, new TableOptions().executor(executor));
+        AsyncData data = new AsyncData(0);
+        CompletableFuture<AsyncData> insert = view.insertAsync(data);
+        List<CompletableFuture<Void>> updates = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 1; i <= 10; i++) {
+            data.number = i;
+            updates.add(view.updateAsync(data.getId(), data));
+        }
+        data.number = 11;
+
+        assertEquals(1, executor.runAll());
+        assertTrue(insert.isDone());
+        for (CompletableFuture<Void> update : updates)
+            assertTrue(update.isDone());
+        assertEquals(10, view.selectById(data.getId()).number);
+
+        view.updateAsync(data.getId(), data);
+        CompletableFuture<Void> delete = view.deleteAsync(data);
+        assertEquals(1, executor.runAll());
+        assertTrue(delete.isDone());
+        assertNull(view.selectById(data.getId()));
+        view.close();
+    }
+
+    @Test
+    public void rejectedWritesFailWithoutBlockingClose() throws Exception {
+        Executor rejecting = new Executor() {
+            public void execute(Runnable task) {
+                throw new RejectedExecutionException("Shut down");
+            }
+        };
+        Table<AsyncData> view = new Table<AsyncData>(root, AsyncData.class, new TableOptions().executor(rejecting));
+        AsyncData data = new AsyncData(1);
+        CompletableFuture<AsyncData> insert = view.insertAsync(data);
+        try {
+            insert.get();
+            fail("Rejected insert succeeded");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+        try {
+            view.selectByIdAsync(data.getId()).get();
+            fail("Rejected select succeeded");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof RejectedExecutionException);
+        }
+        // Drains queued writes, of which there must be none left
+        view.close();
+    }
+
+    @Test
+    public void virtualThreadsWhereAvailable() throws Exception {
+        TableOptions options;
+        try {
+            options = new TableOptions().virtualThreads();
+        } catch (IllegalStateException olderJvm) {
+            return;
+        }
+        Table<AsyncData> view = new Table<AsyncData>(root, AsyncData.class, options);
+        AsyncData data = view.insertAsync(new AsyncData(1)).get();
+        assertEquals(1, view.selectByIdAsync(data.getId()).get().number);
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    /**
+     * Runs tasks only when told to, so they can pile up first.
+     */
+    private static class ManualExecutor implements Executor {
+        private final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        public synchronized void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        /**
+         * @return number of tasks run
+         */
+        private int runAll() {
+            int count = 0;
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    if (tasks.isEmpty())
+                        return count;
+                    task = tasks.remove(0);
+                }
+                task.run();
+                count++;
+            }
+        }
+    }
+
+    private static class AsyncData extends DefaultIdentified {
+        private int number;
+
+        private AsyncData() {
+        }
+
+        private AsyncData(int number) {
+            this.number = number;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batch operations behave like the same single-row operations, in both layouts.
+ */
+public class BatchTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void batchesInBothLayouts() {
+        for (StorageLayout layout : StorageLayout.values()) {
+            TableOptions options = new TableOptions().layout(layout).format(RowFormat.BINARY)
+                    .maxSegmentSize(16 * 1024);
+            Table<BatchData> view = new Table<BatchData>(new File(root, layout.name()), BatchData.class, options);
+            List<BatchData> rows = new ArrayList<BatchData>();
+            for (int i = 0; i < 5000; i++)
+                rows.add(new BatchData(i));
+
+            view.insertAll(rows);
+            for (int i = 1; i < rows.size(); i++)
+                assertEquals(rows.get(0).getId() + i, rows.get(i).getId());
+            assertEquals(5000, view.all().size());
+            assertEquals(4999, view.selectById(rows.get(4999).getId()).number);
+
+            for (BatchData row : rows)
+                row.number = -row.number;
+            view.updateAll(rows);
+            assertEquals(-4999, view.selectById(rows.get(4999).getId()).number);
+
+            view.deleteAll(rows.subList(0, 4000));
+            assertEquals(1000, view.all().size());
+            assertFalse(view.contains(rows.get(0).getId()));
+            view.close();
+
+            view = new Table<BatchData>(new File(root, layout.name()), BatchData.class, options);
+            assertEquals(1000, view.all().size());
+            assertEquals(-4000, view.selectById(rows.get(4000).getId()).number);
+            view.close();
+        }
+    }
+
+    @Test
+    public void syncedBatchesInBothLayouts() {
+        for (StorageLayout layout : StorageLayout.values()) {
+            TableOptions options = new TableOptions().layout(layout).sync(SyncPolicy.BATCH);
+            Table<BatchData> view = new Table<BatchData>(new File(root, layout.name()), BatchData.class, options);
+            List<BatchData> rows = Arrays.asList(new BatchData(1), new BatchData(2), new BatchData(3));
+            view.insertAll(rows);
+            view.updateAll(rows);
+            view.deleteAll(rows.subList(0, 1));
+            assertEquals(2, view.all().size());
+            view.close();
+        }
+    }
+
+    @Test
+    public void updateAllWritesNothingWhenARowIsMissing() {
+        Table<BatchData> view = new Table<BatchData>(root, BatchData.class);
+        BatchData stored = new BatchData(1);
+        view.insert(stored);
+
+        stored.number = 2;
+        try {
+            view.updateAll(Arrays.asList(stored, new BatchData(3)));
+            fail("Updated row that was never inserted");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, view.selectById(stored.getId()).number);
+        view.close();
+    }
+
+    @Test
+    public void emptyBatches() {
+        Table<BatchData> view = new Table<BatchData>(root, BatchData.class);
+        view.insertAll(Collections.<BatchData>emptyList());
+        view.updateAll(Collections.<BatchData>emptyList());
+        view.deleteAll(Collections.<BatchData>emptyList());
+        assertTrue(view.all().isEmpty());
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class BatchData extends DefaultIdentified {
+        private int number;
+        private String name;
+
+        private BatchData() {
+        }
+
+        private BatchData(int number) {
+            this.number = number;
+            this.name = "Row " + number;
+        }
+    }
+}
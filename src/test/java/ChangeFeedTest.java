@@ -0,0 +1,167 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Inserts, updates and deletes are numbered, kept for a while and handed
+ * to subscribers, so readers can follow a table without scanning it.
+ */
+public class ChangeFeedTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void changesAreNumberedInOrder() {
+        for (StorageBackend backend : Arrays.asList(StorageBackend.filesystem(root), StorageBackend.inMemory())) {
+            Table<Data> view = backend.table(Data.class, new TableOptions().changeRetention(100).trackedRows(100));
+            Data first = new Data("first");
+            view.insert(first);
+            Data second = new Data("second");
+            Data third = new Data("third");
+            view.insertAll(Arrays.asList(second, third));
+            long inserted = view.getChangeSequence();
+            first.name = "changed";
+            view.update(first.getId(), first);
+            // Unchanged rows, when tracked, and missing rows make no changes
+            view.update(first.getId(), first);
+            view.deleteAll(Arrays.asList(second, third));
+            view.delete(second);
+
+            assertEquals(6, view.getChangeSequence());
+            List<Change> changes = view.changesSince(0);
+            assertEquals(6, changes.size());
+            assertChange(changes.get(0), 1, Change.Type.INSERT, first.getId());
+            assertChange(changes.get(2), 3, Change.Type.INSERT, third.getId());
+            assertChange(changes.get(3), 4, Change.Type.UPDATE, first.getId());
+            assertChange(changes.get(5), 6, Change.Type.DELETE, third.getId());
+            assertEquals(changes.subList(3, 6).toString(), view.changesSince(inserted).toString());
+            assertTrue(view.changesSince(6).isEmpty());
+            view.close();
+        }
+    }
+
+    @Test
+    public void latestChangesAreKeptAcrossOpens() {
+        Table<Data> view = new Table<Data>(root, Data.class, new TableOptions().changeRetention(10));
+        for (int i = 0; i < 25; i++)
+            view.insert(new Data("row" + i));
+        view.close();
+
+        // Retention stays as the log was last opened with
+        view = new Table<Data>(root, Data.class);
+        assertEquals(25, view.getChangeSequence());
+        assertEquals(10, view.changesSince(15).size());
+        try {
+            view.changesSince(5);
+            fail("Changes were dropped");
+        } catch (IllegalStateException expected) {
+        }
+        view.insert(new Data("after"));
+        assertEquals(26, view.changesSince(25).get(0).getSequence());
+        view.close();
+    }
+
+    @Test
+    public void changesAreNotKeptByDefault() {
+        Table<Data> view = new Table<Data>(root, Data.class);
+        view.insert(new Data("row"));
+        assertEquals(1, view.getChangeSequence());
+        assertTrue(view.changesSince(1).isEmpty());
+        try {
+            view.changesSince(0);
+            fail("No changes are kept");
+        } catch (IllegalStateException expected) {
+        }
+        view.close();
+
+        // Sequences saved before stay valid
+        view = new Table<Data>(root, Data.class);
+        assertEquals(1, view.getChangeSequence());
+        assertTrue(view.changesSince(1).isEmpty());
+        view.insert(new Data("after"));
+        assertEquals(2, view.getChangeSequence());
+        view.close();
+    }
+
+    @Test
+    public void subscribersCatchUpThenFollow() throws Exception {
+        TableOptions options = new TableOptions().changeRetention(100);
+        Table<Data> view = new Table<Data>(root, Data.class, options);
+        Table<Data> other = new Table<Data>(root, Data.class, options);
+        Data first = new Data("first");
+        view.insert(first);
+
+        final BlockingQueue<Object[]> delivered = new LinkedBlockingQueue<Object[]>();
+        ChangeListener<Data> listener = new ChangeListener<Data>() {
+            public void changed(Change change, Data row) {
+                delivered.add(new Object[]{change, row});
+            }
+        };
+        view.subscribe(listener, 0, true);
+        Data second = new Data("second");
+        other.insert(second);
+        other.delete(first);
+
+        Object[] change = delivered.poll(10, TimeUnit.SECONDS);
+        assertChange((Change) change[0], 1, Change.Type.INSERT, first.getId());
+        change = delivered.poll(10, TimeUnit.SECONDS);
+        assertChange((Change) change[0], 2, Change.Type.INSERT, second.getId());
+        assertEquals("second", ((Data) change[1]).name);
+        change = delivered.poll(10, TimeUnit.SECONDS);
+        assertChange((Change) change[0], 3, Change.Type.DELETE, first.getId());
+        assertNull(change[1]);
+
+        view.unsubscribe(listener);
+        other.insert(new Data("unseen"));
+        assertNull(delivered.poll(200, TimeUnit.MILLISECONDS));
+        other.close();
+        view.close();
+    }
+
+    private static void assertChange(Change change, long sequence, Change.Type type, long id) {
+        assertEquals(sequence, change.getSequence());
+        assertEquals(type, change.getType());
+        assertEquals(id, change.getId());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class Data extends DefaultIdentified {
+        private String name;
+
+        private Data() {
+        }
+
+        private Data(String name) {
+            this.name = name;
+        }
+    }
+}
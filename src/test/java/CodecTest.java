@@ -0,0 +1,152 @@
+import org.junit.Test;
+import org.pleasantnightmare.dbase.reflection.ReflectionDAO;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+import org.pleasantnightmare.dbase.reflection.ValueCodec;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips field values through the codecs.
+ */
+public class CodecTest {
+    @Test
+    public void scalarsAndCollectionsRoundTrip() {
+        CodecTestData data = new CodecTestData();
+        data.i = 42;
+        data.l = Long.MIN_VALUE;
+        data.d = 0.1;
+        data.b = true;
+        data.boxed = null;
+        data.c = 'x';
+        data.name = "le name";
+        data.mood = Mood.GRUMPY;
+        data.color = new Color(1, 2, 3);
+        data.numbers = new Integer[]{1, null, 3};
+        data.list = new ArrayList<Object>(Arrays.asList(1L, 2L, 3L));
+        data.set = new HashSet<Object>(Arrays.asList("a", "b"));
+        data.map = new HashMap<Object, Object>();
+        data.map.put(Mood.HAPPY, 1.5);
+
+        CodecTestData loaded = roundTrip(data);
+        assertEquals(42, loaded.i);
+        assertEquals(Long.MIN_VALUE, loaded.l);
+        assertEquals(0.1, loaded.d, 0);
+        assertTrue(loaded.b);
+        assertNull(loaded.boxed);
+        assertEquals('x', loaded.c);
+        assertEquals("le name", loaded.name);
+        assertEquals(Mood.GRUMPY, loaded.mood);
+        assertEquals(new Color(1, 2, 3), loaded.color);
+        assertArrayEquals(new Integer[]{1, null, 3}, loaded.numbers);
+        assertEquals(data.list, loaded.list);
+        assertEquals(data.set, loaded.set);
+        assertEquals(data.map, loaded.map);
+    }
+
+    @Test
+    public void readsBooleansWrittenByPropertyEditors() {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<reflection-dao><class>"
+                + BooleanData.class.getName() + "</class><field>True</field><field>false</field></reflection-dao>";
+        BooleanData loaded = ReflectionDAO.getInstance().deserialize(BooleanData.class, new ByteArrayInputStream(xml.getBytes()));
+        assertTrue(loaded.first);
+        assertFalse(loaded.second);
+    }
+
+    @Test
+    public void customCodec() {
+        ReflectionDAO.getInstance().registerCodec(Point.class, new ValueCodec<Point>() {
+            public String encode(Point value) {
+                return value.x + ";" + value.y;
+            }
+
+            public Point decode(String text) {
+                String[] xy = text.split(";");
+                return new Point(Integer.parseInt(xy[0]), Integer.parseInt(xy[1]));
+            }
+        });
+
+        PointData data = new PointData();
+        data.point = new Point(3, 4);
+        PointData loaded = roundTrip(data);
+        assertEquals(3, loaded.point.x);
+        assertEquals(4, loaded.point.y);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T roundTrip(T data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReflectionDAO.getInstance().serialize(data, out);
+        return ReflectionDAO.getInstance().deserialize((Class<T>) data.getClass(), new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private enum Mood {
+        HAPPY, GRUMPY {
+            @Override public String toString() {
+                return "grr";
+            }
+        }
+    }
+
+    @Test
+    public void jdkClassesAreNotEmbedded() {
+        DateData field = new DateData();
+        field.when = new Date(0);
+        DateData listed = new DateData();
+        listed.dates = new ArrayList<Object>(Arrays.asList(new Date(0)));
+        for (RowFormat format : RowFormat.values()) {
+            for (DateData data : Arrays.asList(field, listed)) {
+                try {
+                    ReflectionDAO.getInstance().serialize(data, new ByteArrayOutputStream(), format);
+                    fail(format + " row with a Date was written");
+                } catch (IllegalStateException e) {
+                    assertEquals("Don't know how to convert class: " + Date.class, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class CodecTestData {
+        private int i;
+        private long l;
+        private double d;
+        private boolean b;
+        private Boolean boxed;
+        private char c;
+        private String name;
+        private Mood mood;
+        private Color color;
+        private Integer[] numbers;
+        private List<Object> list;
+        private Set<Object> set;
+        private Map<Object, Object> map;
+    }
+
+    private static class DateData {
+        private Object when;
+        private List<Object> dates;
+    }
+
+    private static class BooleanData {
+        private boolean first;
+        private Boolean second;
+    }
+
+    private static class Point {
+        private final int x;
+        private final int y;
+
+        private Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class PointData {
+        private Point point;
+    }
+}
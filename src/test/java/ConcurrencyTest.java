@@ -0,0 +1,149 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.StorageLayout;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Threads hammering one table always see rows as some thread wrote them,
+ * and updates racing deletes never bring rows back.
+ */
+public class ConcurrencyTest {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 2000;
+    private static final int ROWS = 100;
+
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void mixedLoadInBothLayouts() throws Exception {
+        for (StorageLayout layout : StorageLayout.values()) {
+            TableOptions options = new TableOptions().layout(layout).cacheSize(ROWS / 2);
+            final Table<Counter> view = new Table<Counter>(new File(root, layout.name()), Counter.class, options);
+            final long[] rowIds = new long[ROWS];
+            for (int i = 0; i < ROWS; i++) {
+                Counter counter = new Counter(i);
+                view.insert(counter);
+                rowIds[i] = counter.getId();
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            final AtomicLong updates = new AtomicLong();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < THREADS; t++) {
+                final Random random = new Random(t);
+                threads.add(new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            start.await();
+                            for (int i = 0; i < OPERATIONS; i++) {
+                                long id = rowIds[random.nextInt(ROWS)];
+                                if (random.nextInt(4) == 0) {
+                                    view.update(id, new Counter(random.nextLong()));
+                                    updates.incrementAndGet();
+                                } else {
+                                    Counter counter = view.selectById(id);
+                                    assertEquals("Torn row", counter.value, -counter.negated);
+                                }
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }));
+            }
+
+            long started = System.nanoTime();
+            for (Thread thread : threads)
+                thread.start();
+            start.countDown();
+            for (Thread thread : threads)
+                thread.join();
+            long elapsed = System.nanoTime() - started;
+
+            if (failure.get() != null)
+                throw new AssertionError(failure.get());
+            assertEquals(ROWS, view.all().size());
+            for (Counter counter : view.all())
+                assertEquals(counter.value, -counter.negated);
+            System.out.println(layout + ": " + THREADS + " threads, "
+                    + (THREADS * OPERATIONS * 1000000000L / elapsed) + " operations/s, " + updates.get() + " of them updates");
+            view.close();
+        }
+    }
+
+    @Test
+    public void updateRacingDeleteDoesNotResurrectRow() throws Exception {
+        final Table<Counter> view = new Table<Counter>(root, Counter.class);
+        for (int i = 0; i < 200; i++) {
+            final Counter counter = new Counter(i);
+            view.insert(counter);
+
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread updater = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        view.update(counter.getId(), counter);
+                    } catch (IllegalStateException deleted) {
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            updater.start();
+            start.countDown();
+            view.delete(counter);
+            updater.join();
+
+            assertFalse("Row came back, ID: " + counter.getId(), view.contains(counter.getId()));
+        }
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class Counter extends DefaultIdentified {
+        private long value;
+        private long negated;
+
+        private Counter() {
+        }
+
+        private Counter(long value) {
+            this.value = value;
+            this.negated = -value;
+        }
+    }
+}
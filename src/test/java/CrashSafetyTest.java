@@ -0,0 +1,140 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rows survive reopening under every sync policy, and writes a crash left
+ * incomplete are rolled back.
+ */
+public class CrashSafetyTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void incompleteWriteIsRolledBack() throws Exception {
+        Table<CrashData> view = new Table<CrashData>(root, CrashData.class);
+        CrashData stored = new CrashData(1);
+        view.insert(stored);
+        view.close();
+
+        File table = new File(root, "crashdata");
+        File leftover = new File(table, "." + stored.getId() + "-0-1.tmp");
+        FileOutputStream out = new FileOutputStream(leftover);
+        out.write("<torn".getBytes("UTF-8"));
+        out.close();
+
+        view = new Table<CrashData>(root, CrashData.class);
+        assertFalse(leftover.exists());
+        assertEquals(1, view.all().size());
+        assertEquals(1, view.selectById(stored.getId()).number);
+        view.close();
+    }
+
+    @Test
+    public void writesOfLockedTableAreLeftAlone() throws Exception {
+        Table<CrashData> view = new Table<CrashData>(root, CrashData.class);
+        view.insert(new CrashData(1));
+        view.close();
+
+        // As if another process had the table open, in the middle of a write
+        File table = new File(root, "crashdata");
+        File inFlight = new File(table, ".2-0-1.tmp");
+        new FileOutputStream(inFlight).close();
+        RandomAccessFile maxNumber = new RandomAccessFile(new File(table, ".maxNumber"), "rw");
+        FileLock lock = maxNumber.getChannel().lock();
+        try {
+            new Table<CrashData>(root, CrashData.class);
+            fail("Opened a locked table");
+        } catch (IllegalStateException e) {
+            assertTrue(inFlight.exists());
+        } finally {
+            lock.release();
+            maxNumber.close();
+        }
+    }
+
+    @Test
+    public void updateReplacesWholeRow() {
+        Table<CrashData> view = new Table<CrashData>(root, CrashData.class);
+        CrashData stored = new CrashData(1);
+        stored.name = "A much longer name than the one it gets replaced with";
+        view.insert(stored);
+
+        stored.name = "Short";
+        view.update(stored.getId(), stored);
+        view.close();
+
+        view = new Table<CrashData>(root, CrashData.class);
+        assertEquals("Short", view.selectById(stored.getId()).name);
+        view.close();
+
+        String[] names = new File(root, "crashdata").list();
+        for (String name : names)
+            assertFalse(name, name.endsWith(".tmp"));
+    }
+
+    @Test
+    public void rowsSurviveUnderEveryPolicy() {
+        for (StorageLayout layout : StorageLayout.values()) {
+            for (SyncPolicy sync : SyncPolicy.values()) {
+                File directory = new File(root, layout.name() + "-" + sync.name());
+                TableOptions options = new TableOptions().layout(layout).sync(sync).syncInterval(10);
+                Table<CrashData> view = new Table<CrashData>(directory, CrashData.class, options);
+                CrashData single = new CrashData(1);
+                view.insert(single);
+                List<CrashData> batch = Arrays.asList(new CrashData(2), new CrashData(3));
+                view.insertAll(batch);
+                view.delete(batch.get(0));
+                view.close();
+
+                view = new Table<CrashData>(directory, CrashData.class, options);
+                assertEquals(layout + " " + sync, 2, view.all().size());
+                assertEquals(3, view.selectById(batch.get(1).getId()).number);
+                view.close();
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class CrashData extends DefaultIdentified {
+        private int number;
+        private String name;
+
+        private CrashData() {
+        }
+
+        private CrashData(int number) {
+            this.number = number;
+            this.name = "Row " + number;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+import org.pleasantnightmare.dbase.reflection.StorageLayout;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Updates that change nothing write nothing, and updates of a few fields
+ * write only those, without losing anything across reopening and compaction.
+ */
+public class DirtyTrackingTest {
+    private static final String PAYLOAD = new String(new char[200]).replace('\0', 'x');
+
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void unchangedRowsAreNotRewritten() {
+        for (StorageLayout layout : StorageLayout.values()) {
+            Table<DirtyData> view = new Table<DirtyData>(new File(root, layout.name()), DirtyData.class, new TableOptions().layout(layout).trackedRows(100));
+            DirtyData data = new DirtyData(1);
+            view.insert(data);
+            view.update(data.getId(), data);
+            assertEquals(1, view.getSkippedWrites());
+
+            DirtyData read = view.selectById(data.getId());
+            view.update(read.getId(), read);
+            assertEquals(2, view.getSkippedWrites());
+
+            read.counter = 2;
+            view.update(read.getId(), read);
+            assertEquals(2, view.getSkippedWrites());
+            assertEquals(2, view.selectById(data.getId()).counter);
+            view.close();
+        }
+    }
+
+    @Test
+    public void changedFieldsAreWrittenAsDeltas() {
+        Table<DirtyData> view = open(1024 * 1024);
+        DirtyData data = new DirtyData(0);
+        view.insert(data);
+        for (int i = 1; i <= 20; i++) {
+            data.counter = i;
+            view.update(data.getId(), data);
+            assertEquals(i, view.selectById(data.getId()).counter);
+        }
+        assertEquals(20, view.getDeltaWrites());
+        assertEquals(PAYLOAD, view.selectById(data.getId()).payload);
+        view.close();
+
+        view = open(1024 * 1024);
+        DirtyData read = view.selectById(data.getId());
+        assertEquals(20, read.counter);
+        assertEquals(PAYLOAD, read.payload);
+        view.close();
+    }
+
+    @Test
+    public void deltasSurviveCompaction() throws Exception {
+        Table<DirtyData> view = open(2048);
+        List<DirtyData> rows = new ArrayList<DirtyData>();
+        for (int i = 0; i < 5; i++) {
+            DirtyData data = new DirtyData(0);
+            view.insert(data);
+            rows.add(data);
+        }
+        for (int round = 1; round <= 50; round++) {
+            for (DirtyData data : rows) {
+                data.counter = round;
+                view.update(data.getId(), data);
+            }
+        }
+        assertTrue(view.getDeltaWrites() > 0);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (segments().length > 4 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        for (DirtyData data : rows)
+            assertEquals(50, view.selectById(data.getId()).counter);
+        view.close();
+
+        view = open(2048);
+        for (DirtyData data : rows) {
+            DirtyData read = view.selectById(data.getId());
+            assertEquals(50, read.counter);
+            assertEquals(PAYLOAD, read.payload);
+        }
+        view.close();
+    }
+
+    @Test
+    public void writesThroughOtherTablesAreSeen() {
+        Table<DirtyData> first = open(1024 * 1024);
+        Table<DirtyData> second = open(1024 * 1024);
+        DirtyData data = new DirtyData(1);
+        first.insert(data);
+
+        DirtyData changed = second.selectById(data.getId());
+        changed.counter = 2;
+        second.update(changed.getId(), changed);
+
+        // Same as what first wrote, but no longer what is stored
+        first.update(data.getId(), data);
+        assertEquals(0, first.getSkippedWrites());
+        assertEquals(1, second.selectById(data.getId()).counter);
+        first.close();
+        second.close();
+    }
+
+    private Table<DirtyData> open(long maxSegmentSize) {
+        TableOptions options = new TableOptions().layout(StorageLayout.SEGMENTED).format(RowFormat.BINARY).maxSegmentSize(maxSegmentSize)
+                .trackedRows(100);
+        return new Table<DirtyData>(root, DirtyData.class, options);
+    }
+
+    private File[] segments() {
+        return new File(root, "dirtydata").listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(".segment-");
+            }
+        });
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class DirtyData extends DefaultIdentified {
+        private int counter;
+        private String payload;
+
+        private DirtyData() {
+        }
+
+        private DirtyData(int counter) {
+            this.counter = counter;
+            this.payload = PAYLOAD;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.Table;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ids keep increasing across reopening, concurrent inserts and tables
+ * sharing a directory.
+ */
+public class IdAllocationTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void idsAreNotReusedAfterReopening() {
+        Table<IdData> view = new Table<IdData>(root, IdData.class);
+        IdData first = new IdData();
+        IdData second = new IdData();
+        view.insert(first);
+        view.insert(second);
+        assertEquals(first.getId() + 1, second.getId());
+        view.delete(second);
+        view.close();
+
+        view = new Table<IdData>(root, IdData.class);
+        IdData third = new IdData();
+        view.insert(third);
+        assertTrue(third.getId() > second.getId());
+        view.close();
+    }
+
+    @Test
+    public void continuesAfterLegacyMaxNumber() throws Exception {
+        new Table<IdData>(root, IdData.class).close();
+        RandomAccessFile maxNumber = new RandomAccessFile(new File(new File(root, "iddata"), ".maxNumber"), "rw");
+        maxNumber.writeLong(41);
+        maxNumber.close();
+
+        Table<IdData> view = new Table<IdData>(root, IdData.class);
+        IdData data = new IdData();
+        view.insert(data);
+        assertEquals(42, data.getId());
+        view.close();
+    }
+
+    @Test
+    public void tablesOnSameDirectoryShareNumbering() {
+        Table<IdData> first = new Table<IdData>(root, IdData.class);
+        Table<IdData> second = new Table<IdData>(root, IdData.class);
+        IdData a = new IdData();
+        IdData b = new IdData();
+        first.insert(a);
+        second.insert(b);
+        assertFalse(a.getId() == b.getId());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void concurrentInsertsGetDistinctIds() throws Exception {
+        final Table<IdData> view = new Table<IdData>(root, IdData.class);
+        final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+        final int threads = 4;
+        final int perThread = 600;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            IdData data = new IdData();
+                            view.insert(data);
+                            ids.add(data.getId());
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+
+        assertEquals(threads * perThread, ids.size());
+        assertEquals(threads * perThread, view.all().size());
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class IdData extends DefaultIdentified {
+        private String name = "id";
+    }
+}
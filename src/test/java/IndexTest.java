@@ -0,0 +1,187 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.IndexType;
+import org.pleasantnightmare.dbase.reflection.Indexed;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Secondary indexes follow writes, survive reopening and are rebuilt when
+ * they fall behind.
+ */
+public class IndexTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void lookupsFollowWrites() {
+        Table<IndexedData> view = open();
+        IndexedData a = new IndexedData("a", 10);
+        IndexedData b = new IndexedData("b", 20);
+        IndexedData c = new IndexedData("a", 30);
+        view.insert(a);
+        view.insert(b);
+        view.insert(c);
+
+        assertEquals(numbers(10, 30), numbersOf(view.findBy("name", "a")));
+        assertEquals(numbers(20, 30), numbersOf(view.range("number", 15, null)));
+        assertEquals(numbers(10, 20), numbersOf(view.range("number", 10, 20)));
+
+        a.name = "b";
+        view.update(a.getId(), a);
+        view.delete(c);
+        assertTrue(view.findBy("name", "a").isEmpty());
+        assertEquals(2, view.findBy("name", "b").size());
+        assertEquals(numbers(10, 20), numbersOf(view.range("number", null, null)));
+        view.close();
+    }
+
+    @Test
+    public void survivesReopening() {
+        Table<IndexedData> view = open();
+        List<IndexedData> rows = new ArrayList<IndexedData>();
+        for (int i = 0; i < 100; i++)
+            rows.add(new IndexedData("row " + (i % 10), i));
+        view.insertAll(rows);
+        view.deleteAll(rows.subList(0, 50));
+        view.close();
+
+        assertTrue(new File(new File(root, "indexeddata"), ".index-name").exists());
+        view = open();
+        assertEquals(numbers(53, 63, 73, 83, 93), numbersOf(view.findBy("name", "row 3")));
+        assertEquals(numbers(98, 99), numbersOf(view.range("number", 98L, 1000L)));
+        view.close();
+    }
+
+    @Test
+    public void rebuiltWhenMissingOrOutOfDate() throws Exception {
+        File index = new File(new File(root, "indexeddata"), ".index-name");
+        Table<IndexedData> view = open();
+        view.insert(new IndexedData("early", 1));
+        view.close();
+
+        index.delete();
+        view = open();
+        assertEquals(numbers(1), numbersOf(view.findBy("name", "early")));
+        view.close();
+
+        byte[] outdated = Files.readAllBytes(index.toPath());
+        view = open();
+        view.insert(new IndexedData("late", 2));
+        view.close();
+        Files.write(index.toPath(), outdated);
+
+        view = open();
+        assertEquals(numbers(2), numbersOf(view.findBy("name", "late")));
+        view.close();
+    }
+
+    @Test
+    public void rebuiltWhenNotClosed() throws Exception {
+        File index = new File(new File(root, "indexeddata"), ".index-name");
+        Table<IndexedData> view = open();
+        IndexedData data = new IndexedData("old", 1);
+        view.insert(data);
+        view.close();
+        byte[] beforeUpdate = Files.readAllBytes(index.toPath());
+
+        view = open();
+        data.name = "new";
+        view.update(data.getId(), data);
+        view.close();
+        // Crashed after the row was written, before its entry was logged
+        Files.write(index.toPath(), Arrays.copyOf(beforeUpdate, beforeUpdate.length - 1));
+
+        view = open();
+        assertEquals(numbers(1), numbersOf(view.findBy("name", "new")));
+        assertTrue(view.findBy("name", "old").isEmpty());
+        view.close();
+    }
+
+    @Test
+    public void logIsCompacted() {
+        Table<IndexedData> view = open();
+        IndexedData data = new IndexedData("v", 0);
+        view.insert(data);
+        for (int i = 1; i <= 5000; i++) {
+            data.number = i;
+            view.update(data.getId(), data);
+        }
+        assertEquals(numbers(5000), numbersOf(view.range("number", 4000, null)));
+        assertTrue(new File(new File(root, "indexeddata"), ".index-number").length() < 64 * 1024);
+        view.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void lookupWithoutIndex() {
+        Table<IndexedData> view = open();
+        try {
+            view.findBy("unindexed", "x");
+        } finally {
+            view.close();
+        }
+    }
+
+    private Table<IndexedData> open() {
+        return new Table<IndexedData>(root, IndexedData.class);
+    }
+
+    private static List<Long> numbers(long... numbers) {
+        List<Long> list = new ArrayList<Long>();
+        for (long number : numbers)
+            list.add(number);
+        return list;
+    }
+
+    private static List<Long> numbersOf(List<IndexedData> rows) {
+        List<Long> list = new ArrayList<Long>();
+        for (IndexedData row : rows)
+            list.add(row.number);
+        return list;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class IndexedData extends DefaultIdentified {
+        @Indexed
+        private String name;
+        @Indexed(IndexType.SORTED)
+        private long number;
+        private String unindexed;
+
+        private IndexedData() {
+        }
+
+        private IndexedData(String name, long number) {
+            this.name = name;
+            this.number = number;
+        }
+    }
+}
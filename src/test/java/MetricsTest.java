@@ -0,0 +1,95 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tables report what they do to their metrics.
+ */
+public class MetricsTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void operationsAndIo() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        Table<MetricsData> view = new Table<MetricsData>(root, MetricsData.class, new TableOptions().metrics(metrics));
+        MetricsData first = new MetricsData("first");
+        view.insert(first);
+        view.insertAll(Arrays.asList(new MetricsData("second"), new MetricsData("third")));
+        first.name = "changed";
+        view.update(first.getId(), first);
+        assertEquals("changed", view.selectById(first.getId()).name);
+        assertEquals(3, view.all().size());
+        view.delete(first);
+        view.close();
+
+        assertEquals(2, metrics.getLatency(TableMetrics.Operation.INSERT).getCount());
+        assertEquals(3, metrics.getRows(TableMetrics.Operation.INSERT));
+        assertEquals(1, metrics.getLatency(TableMetrics.Operation.UPDATE).getCount());
+        assertEquals(1, metrics.getLatency(TableMetrics.Operation.SELECT).getCount());
+        assertEquals(3, metrics.getRows(TableMetrics.Operation.ALL));
+        assertEquals(1, metrics.getLatency(TableMetrics.Operation.DELETE).getCount());
+        assertTrue(metrics.getLatency(TableMetrics.Operation.ALL).getPercentileNanos(0.5) > 0);
+
+        assertEquals(4, metrics.getRowsWritten());
+        assertEquals(4, metrics.getRowsRead());
+        assertTrue(metrics.getBytesWritten() > 0);
+        assertTrue(metrics.getBytesRead() > 0);
+        assertTrue(metrics.getEncodeNanos() > 0);
+        assertTrue(metrics.getDecodeNanos() > 0);
+        assertEquals(2, metrics.getAllocations().getCount());
+    }
+
+    @Test
+    public void cacheLookups() {
+        MetricsRecorder metrics = new MetricsRecorder();
+        Table<MetricsData> view = new Table<MetricsData>(root, MetricsData.class, new TableOptions().cacheSize(10).metrics(metrics));
+        MetricsData data = new MetricsData("cached");
+        view.insert(data);
+        for (int i = 0; i < 4; i++)
+            view.selectById(data.getId());
+        view.close();
+
+        assertEquals(3, metrics.getCacheHits());
+        assertEquals(1, metrics.getCacheMisses());
+        assertEquals(0.75, metrics.getCacheHitRatio(), 0);
+        assertEquals(1, metrics.getRowsRead());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class MetricsData extends DefaultIdentified {
+        private String name;
+
+        private MetricsData() {
+        }
+
+        private MetricsData(String name) {
+            this.name = name;
+        }
+    }
+}
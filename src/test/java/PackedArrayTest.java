@@ -0,0 +1,134 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Numeric arrays, and lists and sets of numbers, are stored as packed
+ * blocks of raw values rather than element by element.
+ */
+public class PackedArrayTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void packedFieldsRoundTripInEveryFormat() {
+        for (RowFormat format : RowFormat.values()) {
+            TableOptions options = new TableOptions().format(format);
+            Table<Series> view = new Table<Series>(new File(root, format.name()), Series.class, options);
+            Series series = Series.sample(1000);
+            view.insert(series);
+            Series empty = new Series();
+            empty.ints = new int[0];
+            view.insert(empty);
+            view.close();
+
+            view = new Table<Series>(new File(root, format.name()), Series.class, options);
+            Series read = view.selectById(series.getId());
+            assertArrayEquals(series.bytes, read.bytes);
+            assertArrayEquals(series.shorts, read.shorts);
+            assertArrayEquals(series.ints, read.ints);
+            assertArrayEquals(series.longs, read.longs);
+            assertArrayEquals(series.floats, read.floats, 0f);
+            assertArrayEquals(series.doubles, read.doubles, 0d);
+            assertEquals(series.samples, read.samples);
+            assertEquals(series.flags, read.flags);
+
+            Series readEmpty = view.selectById(empty.getId());
+            assertEquals(0, readEmpty.ints.length);
+            assertNull(readEmpty.longs);
+            assertTrue(readEmpty.samples.isEmpty());
+            view.close();
+        }
+    }
+
+    @Test
+    public void packedRowsAreSmaller() {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY);
+        Table<Series> view = new Table<Series>(root, Series.class, options);
+        Series series = new Series();
+        series.doubles = new double[10000];
+        for (int i = 0; i < series.doubles.length; i++)
+            series.doubles[i] = Math.sin(i);
+        view.insert(series);
+        view.close();
+
+        long length = 0;
+        for (File row : new File(root, "series").listFiles()) {
+            if (!row.getName().startsWith("."))
+                length += row.length();
+        }
+        assertTrue("Row of " + length + " bytes", length < 8 * 10000 + 1024);
+    }
+
+    @Test
+    public void packedFieldsAreQueried() {
+        Table<Series> view = new Table<Series>(root, Series.class, new TableOptions().format(RowFormat.BINARY));
+        Series series = Series.sample(10);
+        view.insert(series);
+        view.insert(new Series());
+        Series selected = view.select("longs").where("name", Operator.EQ, "sample").list().get(0);
+        assertArrayEquals(series.longs, selected.longs);
+        assertNull(selected.ints);
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class Series extends DefaultIdentified {
+        private String name;
+        private byte[] bytes;
+        private short[] shorts;
+        private int[] ints;
+        private long[] longs;
+        private float[] floats;
+        private double[] doubles;
+        private List<Long> samples = new ArrayList<Long>();
+        private Set<Integer> flags = new HashSet<Integer>();
+
+        private static Series sample(int size) {
+            Series series = new Series();
+            series.name = "sample";
+            series.bytes = new byte[size];
+            series.shorts = new short[size];
+            series.ints = new int[size];
+            series.longs = new long[size];
+            series.floats = new float[size];
+            series.doubles = new double[size];
+            for (int i = 0; i < size; i++) {
+                series.bytes[i] = (byte) i;
+                series.shorts[i] = (short) -i;
+                series.ints[i] = i * 31;
+                series.longs[i] = Long.MAX_VALUE - i;
+                series.floats[i] = i / 3f;
+                series.doubles[i] = -i / 7d;
+                series.samples.add((long) i << 33);
+                series.flags.add(i % 7);
+            }
+            return series;
+        }
+    }
+}
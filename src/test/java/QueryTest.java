@@ -0,0 +1,142 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries check conditions on stored rows, instantiating only matches.
+ */
+public class QueryTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void onlyMatchingRowsAreInstantiated() {
+        for (RowFormat format : RowFormat.values()) {
+            Table<QueryData> view = fill(new TableOptions().format(format), format.name());
+            QueryData.instances = 0;
+            List<QueryData> found = view.where("number", Operator.GE, 7).list();
+            assertEquals(3, found.size());
+            assertEquals(3, QueryData.instances);
+            assertEquals(Arrays.asList("row 7", "row 8", "row 9"), namesOf(found));
+            assertEquals(Arrays.asList("7", "8", "9"), found.get(0).tags.subList(7, 10));
+
+            QueryData.instances = 0;
+            assertEquals(5, view.where("number", Operator.LT, 5L).count());
+            assertEquals(0, QueryData.instances);
+            view.close();
+        }
+    }
+
+    @Test
+    public void selectedFieldsOnly() {
+        for (RowFormat format : RowFormat.values()) {
+            Table<QueryData> view = fill(new TableOptions().format(format), format.name());
+            List<QueryData> found = view.select("name").where("number", Operator.EQ, 4).list();
+            assertEquals(1, found.size());
+            QueryData row = found.get(0);
+            assertEquals("row 4", row.name);
+            assertEquals(0, row.number);
+            assertNull(row.tags);
+            assertEquals(row.getId(), view.where("name", Operator.EQ, "row 4").list().get(0).getId());
+            assertEquals(10, view.select("number").list().size());
+            view.close();
+        }
+    }
+
+    @Test
+    public void conditionsCombine() {
+        Table<QueryData> view = fill(new TableOptions(), "combined");
+        QueryData unnamed = new QueryData(100);
+        unnamed.name = null;
+        view.insert(unnamed);
+
+        assertEquals(Arrays.asList("row 3", "row 4"),
+                namesOf(view.where("number", Operator.GT, 2).where("number", Operator.LE, 4).list()));
+        assertEquals(10, view.where("name", Operator.NE, null).count());
+        assertEquals(100, view.where("name", Operator.EQ, null).list().get(0).number);
+        view.close();
+    }
+
+    @Test
+    public void indexedConditions() {
+        Table<QueryData> view = fill(new TableOptions().index("number", IndexType.SORTED), "indexed");
+        assertEquals(Arrays.asList("row 0", "row 1", "row 2"), namesOf(view.where("number", Operator.LT, 3).list()));
+        assertEquals(Arrays.asList("row 5"), namesOf(view.where("number", Operator.EQ, 5).list()));
+        assertEquals(2, view.where("number", Operator.GT, 7).count());
+        view.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void collectionsCannotBeCompared() {
+        Table<QueryData> view = fill(new TableOptions(), "collections");
+        try {
+            view.where("tags", Operator.EQ, null);
+        } finally {
+            view.close();
+        }
+    }
+
+    private Table<QueryData> fill(TableOptions options, String directory) {
+        Table<QueryData> view = new Table<QueryData>(new File(root, directory), QueryData.class, options);
+        List<QueryData> rows = new ArrayList<QueryData>();
+        for (int i = 0; i < 10; i++)
+            rows.add(new QueryData(i));
+        view.insertAll(rows);
+        return view;
+    }
+
+    private static List<String> namesOf(List<QueryData> rows) {
+        List<String> names = new ArrayList<String>();
+        for (QueryData row : rows)
+            names.add(row.name);
+        return names;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class QueryData extends DefaultIdentified {
+        private static int instances;
+
+        private String name;
+        private long number;
+        private List<String> tags;
+
+        private QueryData() {
+            instances++;
+        }
+
+        private QueryData(int number) {
+            this.name = "row " + number;
+            this.number = number;
+            this.tags = new ArrayList<String>();
+            for (int i = 0; i < 100; i++)
+                tags.add(Integer.toString(i));
+        }
+    }
+}
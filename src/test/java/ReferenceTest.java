@@ -0,0 +1,190 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Objects of classes without codecs are stored inside their rows, while
+ * rows of other tables are stored as references, loaded only when asked for.
+ */
+public class ReferenceTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void embeddedObjectsAreStoredInline() {
+        for (RowFormat format : RowFormat.values()) {
+            TableOptions options = new TableOptions().format(format).cacheSize(10);
+            Table<Customer> customers = new Table<Customer>(new File(root, format.name()), Customer.class, options);
+            Customer customer = new Customer("first", new Address("Main", new Location(45, 16)));
+            customer.previous.add(new Address("Old", null));
+            customers.insert(customer);
+            customers.insert(new Customer("second", null));
+            customers.close();
+
+            customers = new Table<Customer>(new File(root, format.name()), Customer.class, options);
+            Customer read = customers.selectById(customer.getId());
+            assertEquals("Main", read.address.street);
+            assertEquals(16, read.address.location.longitude);
+            assertEquals("Old", read.previous.get(0).street);
+            assertNull(read.previous.get(0).location);
+            read.address.street = "changed";
+            assertEquals("Main", customers.selectById(customer.getId()).address.street);
+            assertNull(customers.where("name", Operator.EQ, "second").list().get(0).address);
+            customers.close();
+        }
+    }
+
+    @Test
+    public void referencesAreLoadedOnFirstUse() {
+        StorageBackend backend = StorageBackend.inMemory();
+        Table<Customer> customers = backend.table(Customer.class);
+        Table<Order> orders = backend.table(Order.class, new TableOptions().format(RowFormat.BINARY));
+        Customer customer = new Customer("buyer", null);
+        customers.insert(customer);
+        Order order = new Order(Ref.to(customer), 10);
+        orders.insert(order);
+
+        Order read = orders.selectById(order.getId());
+        assertFalse(read.customer.isLoaded());
+        assertEquals(customer.getId(), read.customer.getId());
+        assertEquals("buyer", read.customer.get().name);
+        assertTrue(read.customer.isLoaded());
+        assertEquals(1, orders.where("customer", Operator.EQ, Ref.of(Customer.class, customer.getId())).count());
+
+        customers.close();
+        try {
+            orders.selectById(order.getId()).customer.get();
+            fail("Referenced table is closed");
+        } catch (IllegalStateException expected) {
+        }
+        orders.close();
+    }
+
+    @Test
+    public void resolvedRowsAreReadOnce() {
+        Table<Customer> customers = new Table<Customer>(root, Customer.class);
+        Table<Order> orders = new Table<Order>(root, Order.class);
+        Customer first = new Customer("first", null);
+        Customer second = new Customer("second", null);
+        customers.insertAll(Arrays.asList(first, second));
+        List<Order> stored = new ArrayList<Order>();
+        for (int i = 0; i < 6; i++)
+            stored.add(new Order(Ref.to(i % 2 == 0 ? first : second), i));
+        orders.insertAll(stored);
+        Order dangling = new Order(Ref.of(Customer.class, 1000), 0);
+        orders.insert(dangling);
+
+        List<Ref<Customer>> refs = new ArrayList<Ref<Customer>>();
+        for (Order order : orders.all())
+            refs.add(order.customer);
+        customers.resolve(refs);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(refs.get(i).isLoaded());
+            assertSame(refs.get(i % 2).get(), refs.get(i).get());
+        }
+        assertEquals("second", refs.get(1).get().name);
+        assertFalse(refs.get(6).isLoaded());
+        assertNull(refs.get(6).get());
+        orders.close();
+        customers.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rowsOfOtherTablesAreNotEmbedded() {
+        Table<Embedding> view = new Table<Embedding>(root, Embedding.class);
+        try {
+            Customer customer = new Customer("embedded", null);
+            customer.setId(1);
+            Embedding embedding = new Embedding();
+            embedding.customer = customer;
+            view.insert(embedding);
+        } finally {
+            view.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class Location {
+        private int latitude;
+        private int longitude;
+
+        private Location() {
+        }
+
+        private Location(int latitude, int longitude) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+        }
+    }
+
+    private static class Address {
+        private String street;
+        private Location location;
+
+        private Address() {
+        }
+
+        private Address(String street, Location location) {
+            this.street = street;
+            this.location = location;
+        }
+    }
+
+    private static class Customer extends DefaultIdentified {
+        private String name;
+        private Address address;
+        private List<Address> previous = new ArrayList<Address>();
+
+        private Customer() {
+        }
+
+        private Customer(String name, Address address) {
+            this.name = name;
+            this.address = address;
+        }
+    }
+
+    private static class Order extends DefaultIdentified {
+        private Ref<Customer> customer;
+        private int amount;
+
+        private Order() {
+        }
+
+        private Order(Ref<Customer> customer, int amount) {
+            this.customer = customer;
+            this.amount = amount;
+        }
+    }
+
+    private static class Embedding extends DefaultIdentified {
+        private Customer customer;
+    }
+}
@@ -0,0 +1,136 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.CacheStats;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cached rows are isolated from callers, dropped on writes and bounded.
+ */
+public class RowCacheTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void hitsReturnCopies() {
+        Table<CachedData> view = new Table<CachedData>(root, CachedData.class, new TableOptions().cacheSize(10));
+        CachedData data = new CachedData("cached");
+        view.insert(data);
+
+        CachedData first = view.selectById(data.getId());
+        first.name = "scribbled over";
+        first.tags.add("scribbled");
+        CachedData second = view.selectById(data.getId());
+        assertNotSame(first, second);
+        assertEquals("cached", second.name);
+        assertEquals(1, second.tags.size());
+
+        CacheStats stats = view.getCacheStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getMisses());
+        view.close();
+    }
+
+    @Test
+    public void sharedInstancesWithoutCopies() {
+        Table<CachedData> view = new Table<CachedData>(root, CachedData.class, new TableOptions().cacheSize(10).cacheCopies(false));
+        CachedData data = new CachedData("shared");
+        view.insert(data);
+        assertSame(view.selectById(data.getId()), view.selectById(data.getId()));
+        view.close();
+    }
+
+    @Test
+    public void writesInvalidate() {
+        Table<CachedData> view = new Table<CachedData>(root, CachedData.class, new TableOptions().cacheSize(10));
+        CachedData data = new CachedData("v1");
+        view.insert(data);
+        view.selectById(data.getId());
+
+        data.name = "v2";
+        view.update(data.getId(), data);
+        assertEquals("v2", view.selectById(data.getId()).name);
+
+        view.delete(data);
+        assertNull(view.selectById(data.getId()));
+        assertEquals(0, view.getCacheStats().getRows());
+        view.close();
+    }
+
+    @Test
+    public void leastRecentlyUsedRowsAreEvicted() {
+        Table<CachedData> view = new Table<CachedData>(root, CachedData.class, new TableOptions().cacheSize(2));
+        CachedData a = new CachedData("a");
+        CachedData b = new CachedData("b");
+        CachedData c = new CachedData("c");
+        view.insert(a);
+        view.insert(b);
+        view.insert(c);
+
+        view.selectById(a.getId());
+        view.selectById(b.getId());
+        view.selectById(a.getId());
+        view.selectById(c.getId());
+        view.selectById(a.getId());
+
+        CacheStats stats = view.getCacheStats();
+        assertEquals(2, stats.getHits());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getRows());
+        view.close();
+    }
+
+    @Test
+    public void boundedByStoredSize() {
+        Table<CachedData> view = new Table<CachedData>(root, CachedData.class, new TableOptions().cacheBytes(1));
+        CachedData data = new CachedData("too big");
+        view.insert(data);
+        view.selectById(data.getId());
+        view.selectById(data.getId());
+
+        CacheStats stats = view.getCacheStats();
+        assertEquals(0, stats.getHits());
+        assertEquals(0, stats.getRows());
+        view.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class CachedData extends DefaultIdentified {
+        private String name;
+        private List<String> tags = new ArrayList<String>();
+
+        private CachedData() {
+        }
+
+        private CachedData(String name) {
+            this.name = name;
+            tags.add(name);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.ReflectionDAO;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.awt.Color;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Binary rows round trip, and live side by side with XML ones.
+ */
+public class RowFormatTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void binaryRoundTrip() {
+        FormatTestData data = FormatTestData.sample();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReflectionDAO.getInstance().serialize(data, out, RowFormat.BINARY);
+
+        FormatTestData loaded = ReflectionDAO.getInstance().deserialize(FormatTestData.class, new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(data, loaded);
+    }
+
+    @Test
+    public void binaryIsSmaller() {
+        FormatTestData data = FormatTestData.sample();
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        ReflectionDAO.getInstance().serialize(data, xml, RowFormat.XML);
+        ReflectionDAO.getInstance().serialize(data, binary, RowFormat.BINARY);
+        assertTrue(binary.size() < xml.size());
+    }
+
+    @Test
+    public void mixedFormatsInOneTable() {
+        Table<FormatTestData> xmlView = new Table<FormatTestData>(root, FormatTestData.class);
+        Table<FormatTestData> binaryView = new Table<FormatTestData>(root, FormatTestData.class, new TableOptions().format(RowFormat.BINARY));
+
+        FormatTestData first = FormatTestData.sample();
+        FormatTestData second = FormatTestData.sample();
+        second.name = "second";
+        xmlView.insert(first);
+        binaryView.insert(second);
+
+        assertEquals(2, xmlView.all().size());
+        assertEquals(first, binaryView.selectById(first.getId()));
+        assertEquals(second, xmlView.selectById(second.getId()));
+    }
+
+    @Test
+    public void valuesOfUntypedFieldsKeepTheirClass() {
+        for (RowFormat format : RowFormat.values()) {
+            Table<UntypedData> view = new Table<UntypedData>(new File(root, format.name()), UntypedData.class,
+                    new TableOptions().format(format));
+            UntypedData data = new UntypedData();
+            data.anything = 42;
+            data.number = 7L;
+            data.text = "text";
+            data.color = Color.RED;
+            view.insert(data);
+
+            UntypedData read = view.selectById(data.getId());
+            assertEquals(format.name(), 42, read.anything);
+            assertEquals(7L, read.number);
+            assertEquals("text", read.text);
+            assertEquals(Color.RED, read.color);
+            view.close();
+        }
+    }
+
+    @Test
+    public void corruptCollectionSizeIsRejected() throws Exception {
+        ListData data = new ListData();
+        data.names = new ArrayList<String>(Arrays.asList("name"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ReflectionDAO.getInstance().serialize(data, out, RowFormat.BINARY);
+
+        // Count precedes length and name of element class
+        byte[] row = out.toByteArray();
+        byte[] elementClass = String.class.getName().getBytes("UTF-8");
+        int count = indexOf(row, elementClass) - 2;
+        assertEquals(1, row[count]);
+        ByteArrayOutputStream corrupt = new ByteArrayOutputStream();
+        corrupt.write(row, 0, count);
+        corrupt.write(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01});
+        corrupt.write(row, count + 1, row.length - count - 1);
+
+        try {
+            ReflectionDAO.getInstance().deserialize(ListData.class, new ByteArrayInputStream(corrupt.toByteArray()));
+            fail("Read collection larger than its row");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().endsWith("elements past end of row"));
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++)
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part))
+                return i;
+        throw new AssertionError("Not found");
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class ListData extends DefaultIdentified {
+        private List<String> names;
+    }
+
+    private static class UntypedData extends DefaultIdentified {
+        private Object anything;
+        private Number number;
+        private CharSequence text;
+        private Object color;
+    }
+
+    private static class FormatTestData extends DefaultIdentified {
+        private int number;
+        private long big;
+        private short small;
+        private double ratio;
+        private float fraction;
+        private boolean state;
+        private char letter;
+        private String name;
+        private String nothing;
+        private RowFormat format;
+        private Color color;
+        private List<Integer> numbers;
+        private Set<String> tags;
+        private Map<String, Double> weights;
+
+        static FormatTestData sample() {
+            FormatTestData data = new FormatTestData();
+            data.number = -42;
+            data.big = Long.MAX_VALUE;
+            data.small = Short.MIN_VALUE;
+            data.ratio = Math.PI;
+            data.fraction = -0.5f;
+            data.state = true;
+            data.letter = '\u0161';
+            data.name = "le name \u010d";
+            data.format = RowFormat.BINARY;
+            data.color = Color.ORANGE;
+            data.numbers = new ArrayList<Integer>(Arrays.asList(1, 300, -70000));
+            data.tags = new HashSet<String>(Arrays.asList("a", "b"));
+            data.weights = new HashMap<String, Double>();
+            data.weights.put("w", 0.25);
+            return data;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FormatTestData)) return false;
+            FormatTestData that = (FormatTestData) o;
+            return number == that.number && big == that.big && small == that.small && ratio == that.ratio
+                    && fraction == that.fraction && state == that.state && letter == that.letter
+                    && name.equals(that.name) && nothing == that.nothing && format == that.format
+                    && color.equals(that.color) && numbers.equals(that.numbers) && tags.equals(that.tags)
+                    && weights.equals(that.weights);
+        }
+
+        @Override
+        public int hashCode() {
+            return number;
+        }
+    }
+}
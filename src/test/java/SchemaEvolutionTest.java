@@ -0,0 +1,235 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rows written before their class gained, lost or reordered fields are
+ * read by field name, and can be rewritten in the class's current shape.
+ * Both versions of the class are named {@code Data}, so they share a table.
+ */
+public class SchemaEvolutionTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void binaryRowsOfOlderSchemaAreReadByName() {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY).layout(StorageLayout.SEGMENTED);
+        insertOld(options, 3);
+
+        Table<Current.Data> view = new Table<Current.Data>(root, Current.Data.class, options);
+        assertRead(view.all());
+        assertEquals(1, view.where("name", Operator.EQ, "row1").count());
+        Current.Data selected = view.select("tags", "count").where("count", Operator.EQ, 2L).list().get(0);
+        assertEquals(2L, selected.count);
+        assertNull(selected.tags);
+        view.close();
+    }
+
+    @Test
+    public void xmlRowsOfOlderSchemaAreReadByName() throws Exception {
+        TableOptions options = new TableOptions().format(RowFormat.XML);
+        insertOld(options, 3);
+        renameStoredClass();
+
+        Table<Current.Data> view = new Table<Current.Data>(root, Current.Data.class, options);
+        assertRead(view.all());
+        Current.Data selected = view.select("name").where("count", Operator.GT, 1L).list().get(0);
+        assertEquals("row2", selected.name);
+        view.close();
+    }
+
+    @Test
+    public void migrationRewritesOlderRows() {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY).layout(StorageLayout.SEGMENTED);
+        insertOld(options, 5);
+
+        Table<Current.Data> view = new Table<Current.Data>(root, Current.Data.class, options);
+        Current.Data added = new Current.Data();
+        added.name = "added";
+        view.insert(added);
+        assertEquals(5, view.migrate());
+        assertEquals(0, view.migrate());
+        assertEquals(5, view.getMigratedRows());
+        List<Current.Data> rows = view.all();
+        assertRead(rows.subList(0, 5));
+        assertEquals("added", rows.get(5).name);
+        view.close();
+    }
+
+    @Test
+    public void migrationRunsInBackground() throws Exception {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY);
+        insertOld(options, 5);
+
+        Table<Current.Data> view = new Table<Current.Data>(root, Current.Data.class, new TableOptions().format(RowFormat.BINARY).migrateSchemas(true));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (view.getMigratedRows() < 5 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        view.close();
+        view = new Table<Current.Data>(root, Current.Data.class, options);
+        assertEquals(0, view.migrate());
+        assertRead(view.all());
+        view.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unknownSchemasAreNotGuessed() {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY);
+        insertOld(options, 1);
+        assertTrue(new File(new File(root, "data"), ".schemas").delete());
+
+        Table<Current.Data> view = new Table<Current.Data>(root, Current.Data.class, options);
+        try {
+            view.all();
+        } finally {
+            view.close();
+        }
+    }
+
+    @Test
+    public void embeddedObjectsOfOlderSchemaAreReadByName() throws Exception {
+        for (RowFormat format : RowFormat.values()) {
+            File directory = new File(root, format.name());
+            TableOptions options = new TableOptions().format(format);
+            Table<Earlier.Box> old = new Table<Earlier.Box>(directory, Earlier.Box.class, options);
+            Earlier.Box box = new Earlier.Box();
+            box.part = new Earlier.Part("part", 3);
+            box.parts = new ArrayList<Earlier.Part>(Arrays.asList(new Earlier.Part("listed", 4)));
+            old.insert(box);
+            old.close();
+            // As if the classes were changed in place
+            for (File file : new File(directory, "box").listFiles())
+                replace(file, "$Earlier$", "$Current$");
+
+            Table<Current.Box> view = new Table<Current.Box>(directory, Current.Box.class, options);
+            Current.Box read = view.selectById(box.getId());
+            assertEquals(format.name(), "part", read.part.label);
+            assertEquals(3L, read.part.size);
+            assertEquals("new", read.part.added);
+            assertEquals("listed", read.parts.get(0).label);
+            assertEquals(4L, read.parts.get(0).size);
+            view.close();
+        }
+    }
+
+    private static void replace(File file, String from, String to) throws Exception {
+        // Byte for byte, names being ASCII
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+        Files.write(file.toPath(), content.replace(from, to).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private void insertOld(TableOptions options, int count) {
+        Table<Earlier.Data> view = new Table<Earlier.Data>(root, Earlier.Data.class, options);
+        List<Earlier.Data> rows = new ArrayList<Earlier.Data>();
+        for (int i = 0; i < count; i++)
+            rows.add(new Earlier.Data("row" + i, i));
+        view.insertAll(rows);
+        view.close();
+    }
+
+    private void renameStoredClass() throws Exception {
+        for (File row : new File(root, "data").listFiles()) {
+            if (row.getName().startsWith("."))
+                continue;
+            String xml = new String(Files.readAllBytes(row.toPath()), StandardCharsets.UTF_8);
+            Files.write(row.toPath(), xml.replace(Earlier.Data.class.getName(), Current.Data.class.getName()).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void assertRead(List<Current.Data> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            Current.Data row = rows.get(i);
+            assertEquals("row" + i, row.name);
+            assertEquals(i, row.count);
+            assertEquals(Arrays.asList("new"), row.tags);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class Earlier {
+        private static class Data extends DefaultIdentified {
+            private String name;
+            private String removed;
+            private int count;
+
+            private Data() {
+            }
+
+            private Data(String name, int count) {
+                this.name = name;
+                this.removed = "gone";
+                this.count = count;
+            }
+        }
+
+        private static class Box extends DefaultIdentified {
+            private Part part;
+            private List<Part> parts;
+        }
+
+        private static class Part {
+            private String label;
+            private String removed;
+            private int size;
+
+            private Part() {
+            }
+
+            private Part(String label, int size) {
+                this.label = label;
+                this.removed = "gone";
+                this.size = size;
+            }
+        }
+    }
+
+    private static class Current {
+        // Reordered, one field dropped, one added and one widened
+        private static class Data extends DefaultIdentified {
+            private long count;
+            private List<String> tags = new ArrayList<String>(Arrays.asList("new"));
+            private String name;
+        }
+
+        private static class Box extends DefaultIdentified {
+            private Part part;
+            private List<Part> parts;
+        }
+
+        // Same changes as to Data
+        private static class Part {
+            private long size;
+            private String added = "new";
+            private String label;
+        }
+    }
+}
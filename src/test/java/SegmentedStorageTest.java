@@ -0,0 +1,152 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+import org.pleasantnightmare.dbase.reflection.StorageLayout;
+import org.pleasantnightmare.dbase.reflection.Table;
+import org.pleasantnightmare.dbase.reflection.TableOptions;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segmented layout keeps working across reopening, torn writes and compaction.
+ */
+public class SegmentedStorageTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void crudSurvivesReopening() {
+        Table<SegmentData> view = open(1024 * 1024);
+        SegmentData first = new SegmentData("first");
+        SegmentData second = new SegmentData("second");
+        view.insert(first);
+        view.insert(second);
+        second.name = "second, updated";
+        view.update(second.getId(), second);
+        view.delete(first);
+        view.close();
+
+        view = open(1024 * 1024);
+        assertEquals(1, view.all().size());
+        assertFalse(view.contains(first.getId()));
+        assertNull(view.selectById(first.getId()));
+        assertEquals("second, updated", view.selectById(second.getId()).name);
+        view.close();
+    }
+
+    @Test
+    public void tornWriteIsDiscarded() throws Exception {
+        Table<SegmentData> view = open(1024 * 1024);
+        SegmentData data = new SegmentData("kept");
+        view.insert(data);
+        view.close();
+
+        File segment = segments()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(file.length());
+        file.write(new byte[]{1, 0, 0, 0});
+        file.close();
+
+        view = open(1024 * 1024);
+        assertEquals(1, view.all().size());
+        assertEquals("kept", view.selectById(data.getId()).name);
+        view.close();
+    }
+
+    @Test
+    public void deadRecordsAreCompactedAway() throws Exception {
+        Table<SegmentData> view = open(512);
+        SegmentData data = new SegmentData("v0");
+        view.insert(data);
+        for (int i = 1; i <= 100; i++) {
+            data.name = "v" + i;
+            view.update(data.getId(), data);
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (segments().length > 3 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(segments().length <= 3);
+        assertEquals("v100", view.selectById(data.getId()).name);
+        view.close();
+
+        view = open(512);
+        assertEquals(1, view.all().size());
+        assertEquals("v100", view.selectById(data.getId()).name);
+        view.close();
+    }
+
+    @Test
+    public void mappedReadsSeeGrowingSegment() {
+        TableOptions options = new TableOptions().layout(StorageLayout.SEGMENTED).memoryMapped(true);
+        Table<SegmentData> view = new Table<SegmentData>(root, SegmentData.class, options);
+        for (int i = 0; i < 100; i++) {
+            SegmentData data = new SegmentData("row " + i);
+            view.insert(data);
+            assertEquals("row " + i, view.selectById(data.getId()).name);
+        }
+        assertEquals(100, view.all().size());
+        view.close();
+    }
+
+    @Test
+    public void segmentSizeMustBeMappable() {
+        for (long size : new long[]{0, -1, Integer.MAX_VALUE + 1L}) {
+            try {
+                new TableOptions().maxSegmentSize(size);
+                fail("Accepted segment size " + size);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        new TableOptions().maxSegmentSize(Integer.MAX_VALUE);
+    }
+
+    private Table<SegmentData> open(long maxSegmentSize) {
+        TableOptions options = new TableOptions().layout(StorageLayout.SEGMENTED).format(RowFormat.BINARY).maxSegmentSize(maxSegmentSize);
+        return new Table<SegmentData>(root, SegmentData.class, options);
+    }
+
+    private File[] segments() {
+        return new File(root, "segmentdata").listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(".segment-");
+            }
+        });
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class SegmentData extends DefaultIdentified {
+        private String name;
+
+        private SegmentData() {
+        }
+
+        private SegmentData(String name) {
+            this.name = name;
+        }
+    }
+}
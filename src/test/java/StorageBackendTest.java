@@ -0,0 +1,124 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tables behave the same whichever backend keeps them, and in-memory
+ * tables keep their rows for as long as their backend lives.
+ */
+public class StorageBackendTest {
+    private File root;
+
+    @Before
+    public void createRoot() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    @Test
+    public void sameBehaviourOnEveryBackend() {
+        for (StorageBackend backend : Arrays.asList(StorageBackend.filesystem(root), StorageBackend.inMemory())) {
+            TableOptions options = new TableOptions().format(RowFormat.BINARY).index("name", IndexType.HASH);
+            Table<BackendData> view = backend.table(BackendData.class, options);
+            BackendData first = new BackendData("first");
+            view.insert(first);
+            view.insertAll(Arrays.asList(new BackendData("second"), new BackendData("third")));
+            first.name = "updated";
+            view.update(first.getId(), first);
+            assertEquals("updated", view.selectById(first.getId()).name);
+            assertEquals(1, view.findBy("name", "second").size());
+            assertEquals(1, view.where("name", Operator.EQ, "third").count());
+            view.close();
+
+            view = backend.table(BackendData.class, options);
+            assertEquals(3, view.all().size());
+            assertEquals(1, view.findBy("name", "updated").size());
+            BackendData fourth = new BackendData("fourth");
+            view.insert(fourth);
+            assertTrue(fourth.getId() > first.getId() + 2);
+            view.delete(fourth);
+            assertEquals(3, view.all().size());
+            view.close();
+        }
+    }
+
+    @Test
+    public void inMemoryBackendsAreIndependent() {
+        StorageBackend backend = StorageBackend.inMemory();
+        Table<BackendData> view = backend.table(BackendData.class);
+        view.insert(new BackendData("kept"));
+        view.close();
+
+        Table<BackendData> other = StorageBackend.inMemory().table(BackendData.class);
+        assertTrue(other.all().isEmpty());
+        other.close();
+        assertEquals(1, backend.table(BackendData.class).all().size());
+        assertEquals(0, root.list().length);
+    }
+
+    @Test
+    public void unclosedTablesAreReleased() throws Exception {
+        insertWithoutClosing(StorageBackend.filesystem(root));
+
+        RandomAccessFile maxNumber = new RandomAccessFile(new File(root, "backenddata/.maxNumber"), "rw");
+        try {
+            for (int attempt = 0; ; attempt++) {
+                System.gc();
+                Thread.sleep(10);
+                try {
+                    FileLock lock = maxNumber.getChannel().tryLock();
+                    assertNotNull(lock);
+                    lock.release();
+                    break;
+                } catch (OverlappingFileLockException e) {
+                    if (attempt == 500)
+                        fail("Unclosed table was not released");
+                }
+            }
+        } finally {
+            maxNumber.close();
+        }
+        Table<BackendData> view = new Table<BackendData>(root, BackendData.class);
+        assertEquals(1, view.all().size());
+        view.close();
+    }
+
+    private static void insertWithoutClosing(StorageBackend backend) {
+        backend.table(BackendData.class).insert(new BackendData("unclosed"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class BackendData extends DefaultIdentified {
+        private String name;
+
+        private BackendData() {
+        }
+
+        private BackendData(String name) {
+            this.name = name;
+        }
+    }
+}
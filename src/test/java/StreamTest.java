@@ -0,0 +1,133 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.CloseableIterator;
+import org.pleasantnightmare.dbase.reflection.ParallelismOptions;
+import org.pleasantnightmare.dbase.reflection.Table;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rows are streamed in id order and read only as far as the stream gets;
+ * parallel scans keep the same order.
+ */
+public class StreamTest {
+    private File root;
+    private Table<StreamData> view;
+    private List<StreamData> rows;
+
+    @Before
+    public void createTable() throws Exception {
+        root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        root.mkdirs();
+
+        view = new Table<StreamData>(root, StreamData.class);
+        rows = new ArrayList<StreamData>();
+        for (int i = 0; i < 20; i++)
+            rows.add(new StreamData(i));
+        view.insertAll(rows);
+    }
+
+    @After
+    public void deleteRoot() {
+        view.close();
+        delete(root);
+    }
+
+    @Test
+    public void streamsInIdOrder() {
+        List<StreamData> streamed = view.stream().collect(Collectors.<StreamData>toList());
+        assertEquals(20, streamed.size());
+        for (int i = 0; i < streamed.size(); i++)
+            assertEquals(i, streamed.get(i).getNumber());
+    }
+
+    @Test
+    public void limitLeavesRestUnread() throws Exception {
+        corrupt(rows.get(10));
+        Stream<StreamData> stream = view.stream();
+        assertEquals(5, stream.limit(5).count());
+        stream.close();
+
+        try {
+            view.all();
+            fail("Corrupt row was not read");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void skippedRowsAreNotRead() throws Exception {
+        corrupt(rows.get(0));
+        List<StreamData> page = view.stream(5, 3).collect(Collectors.<StreamData>toList());
+        assertEquals(3, page.size());
+        assertEquals(5, page.get(0).getNumber());
+    }
+
+    @Test
+    public void iteratorSkipsDeletedRows() {
+        CloseableIterator<StreamData> iterator = view.iterator();
+        assertEquals(0, iterator.next().getNumber());
+        view.delete(rows.get(1));
+        assertEquals(2, iterator.next().getNumber());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void parallelScansKeepIdOrder() {
+        List<StreamData> more = new ArrayList<StreamData>();
+        for (int i = 20; i < 1000; i++)
+            more.add(new StreamData(i));
+        view.insertAll(more);
+        view.delete(rows.get(3));
+
+        List<StreamData> scanned = view.all(new ParallelismOptions().threads(4).chunkSize(16));
+        List<StreamData> streamed = view.parallelStream().collect(Collectors.<StreamData>toList());
+        assertEquals(999, scanned.size());
+        assertEquals(999, streamed.size());
+        for (int i = 0; i < scanned.size(); i++) {
+            int expected = i < 3 ? i : i + 1;
+            assertEquals(expected, scanned.get(i).getNumber());
+            assertEquals(expected, streamed.get(i).getNumber());
+        }
+    }
+
+    private void corrupt(StreamData row) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(new File(root, "streamdata"), Long.toString(row.getId())));
+        out.write("not a row".getBytes("UTF-8"));
+        out.close();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    private static class StreamData extends DefaultIdentified {
+        private int number;
+
+        private StreamData() {
+        }
+
+        private StreamData(int number) {
+            this.number = number;
+        }
+
+        int getNumber() {
+            return number;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pooled buffers write the same bytes the JDK would, and aren't handed
+ * out twice at once.
+ */
+public class BinaryOutputTest {
+    private static final String[] TEXTS = {"", "plain", "čćžšđ", "€ uro", "😀 pair", "lone \uD83D high",
+            "lone \uDE00 low", "ends high \uD83D"};
+
+    @Test
+    public void stringsAsGetBytes() {
+        for (String text : TEXTS) {
+            BinaryOutput out = new BinaryOutput(4);
+            out.writeString(text);
+            BinaryOutput expected = new BinaryOutput();
+            byte[] bytes = text.getBytes(BinaryOutput.UTF8);
+            expected.writeVarLong(bytes.length);
+            expected.writeBytes(bytes, 0, bytes.length);
+            assertArrayEquals(text, Arrays.copyOf(expected.array(), expected.size()), Arrays.copyOf(out.array(), out.size()));
+        }
+    }
+
+    @Test
+    public void writerAsOutputStreamWriter() throws Exception {
+        for (String text : TEXTS) {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            Writer jdk = new OutputStreamWriter(expected, BinaryOutput.UTF8);
+            BinaryOutput out = new BinaryOutput(4);
+            Writer writer = out.writer();
+            // Char by char, so pairs are split between writes
+            for (int i = 0; i < text.length(); i++) {
+                jdk.write(text, i, 1);
+                writer.write(text, i, 1);
+            }
+            jdk.write(text);
+            writer.write(text);
+            jdk.flush();
+            writer.flush();
+            assertArrayEquals(text, expected.toByteArray(), Arrays.copyOf(out.array(), out.size()));
+        }
+    }
+
+    @Test
+    public void insertedLengthAsWrittenAhead() {
+        for (int length : new int[]{0, 1, 127, 128, 20000}) {
+            byte[] content = new byte[length];
+            Arrays.fill(content, (byte) 7);
+            BinaryOutput expected = new BinaryOutput();
+            expected.writeByte(1);
+            expected.writeVarLong(length);
+            expected.writeBytes(content, 0, length);
+
+            BinaryOutput out = new BinaryOutput(8);
+            out.writeByte(1);
+            out.writeBytes(content, 0, length);
+            out.insertLength(1);
+            assertArrayEquals(Arrays.copyOf(expected.array(), expected.size()), Arrays.copyOf(out.array(), out.size()));
+        }
+    }
+
+    @Test
+    public void nestedAcquireGetsOwnBuffer() {
+        BinaryOutput first = BinaryOutput.acquire();
+        BinaryOutput nested = BinaryOutput.acquire();
+        assertNotSame(first, nested);
+        nested.release();
+        first.release();
+        BinaryOutput again = BinaryOutput.acquire();
+        assertSame(first, again);
+        assertEquals(0, again.size());
+        again.release();
+    }
+}
@@ -0,0 +1,309 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.XMLOutputter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.pleasantnightmare.dbase.reflection.XmlFormat.*;
+
+/**
+ * XML rows built as a whole JDOM tree before being written, and parsed
+ * into one before any field is read, as tables used to. Kept only as the
+ * reference {@link StreamingXmlRowCodec} is checked against; both read
+ * and write the very same documents.
+ */
+final class JdomRowCodec implements RowCodec {
+    private final CodecRegistry codecs;
+
+    JdomRowCodec(CodecRegistry codecs) {
+        this.codecs = codecs;
+    }
+
+    public void write(ClassPlan<?> plan, Object o, OutputStream outputStream) {
+        Element root = new Element(EL_ROOT);
+        root.setAttribute(ATTR_SCHEMA, Long.toHexString(plan.getFingerprint()));
+        setupClass(o, root);
+        setupFields(plan, o, root);
+        output(outputStream, root);
+    }
+
+    private void output(OutputStream outputStream, Element root) {
+        XMLOutputter output = new XMLOutputter();
+        try {
+            output.output(root, outputStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void setupFields(ClassPlan<?> plan, Object persistingObject, Element root) {
+        for (FieldPlan field : plan.getFields()) {
+            Element fieldElement = new Element(EL_FIELD);
+            persistField(fieldElement, field.getKind(), field.getCodec(), field.get(persistingObject));
+            root.addContent(fieldElement);
+        }
+    }
+
+    private void persistField(Element element, FieldPlan.Kind kind, ValueCodec<Object> codec, Object fieldValue) {
+        switch (kind) {
+            case LIST:
+                persistList(element, (List<?>) fieldValue);
+                break;
+            case SET:
+                persistSet(element, (Set<?>) fieldValue);
+                break;
+            case MAP:
+                persistMap(element, (Map<?, ?>) fieldValue);
+                break;
+            default:
+                element.setText(encode(codecs, codec, fieldValue));
+        }
+    }
+
+    private void persistList(Element fieldElement, List<?> list) {
+        if (persistPacked(fieldElement, EL_PACKED_LIST, list))
+            return;
+        Element listElement = new Element(EL_LIST);
+        if (!list.isEmpty()) {
+            Class<?> listGenericType = list.get(0).getClass();
+            ValueCodec<Object> codec = codecs.find(listGenericType);
+            listElement.setAttribute(ATTR_LIST_GENERICTYPE, listGenericType.getName());
+            for (Object o : list) {
+                Element listDataElement = new Element(EL_COLLECTIONDATA);
+                persistElement(listDataElement, listGenericType, codec, o);
+                listElement.addContent(listDataElement);
+            }
+        } else {
+            listElement.setAttribute(ATTR_LIST_GENERICTYPE, UNDETERMINED_TYPE);
+        }
+        fieldElement.addContent(listElement);
+    }
+
+    private void persistSet(Element fieldElement, Set<?> set) {
+        if (persistPacked(fieldElement, EL_PACKED_SET, set))
+            return;
+        Element setElement = new Element(EL_SET);
+        if (!set.isEmpty()) {
+            Class<?> setGenericType = set.iterator().next().getClass();
+            ValueCodec<Object> codec = codecs.find(setGenericType);
+            setElement.setAttribute(ATTR_SET_GENERICTYPE, setGenericType.getName());
+            for (Object o : set) {
+                Element listDataElement = new Element(EL_COLLECTIONDATA);
+                persistElement(listDataElement, setGenericType, codec, o);
+                setElement.addContent(listDataElement);
+            }
+        } else {
+            setElement.setAttribute(ATTR_SET_GENERICTYPE, UNDETERMINED_TYPE);
+        }
+        fieldElement.addContent(setElement);
+    }
+
+    /**
+     * @return false if collection isn't made of numbers of a single type
+     */
+    private static boolean persistPacked(Element fieldElement, String element, Collection<?> collection) {
+        if (collection.isEmpty())
+            return false;
+        Class<?> genericType = collection.iterator().next().getClass();
+        int packed = PackedArrays.typeOf(collection, genericType);
+        if (packed == PackedArrays.NONE)
+            return false;
+        Element packedElement = new Element(element);
+        packedElement.setAttribute(ATTR_PACKED_TYPE, genericType.getName());
+        packedElement.setText(PackedArrays.toBase64(collection, packed));
+        fieldElement.addContent(packedElement);
+        return true;
+    }
+
+    private void persistMap(Element fieldElement, Map<?, ?> map) {
+        Element mapElement = new Element(EL_MAP);
+        if (!map.isEmpty()) {
+            Map.Entry<?, ?> classDeterminingEntry = map.entrySet().iterator().next();
+            Class<?> keyGenericType = classDeterminingEntry.getKey().getClass();
+            Class<?> valueGenericType = classDeterminingEntry.getValue().getClass();
+            ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+            ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+            mapElement.setAttribute(ATTR_MAP_KEYTYPE, keyGenericType.getName());
+            mapElement.setAttribute(ATTR_MAP_VALUETYPE, valueGenericType.getName());
+
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                Element mapEntryElement = new Element(EL_MAPENTRY);
+
+                Object key = entry.getKey();
+                mapEntryElement.setAttribute(ATTR_MAP_ENTRYKEY, encode(codecs, key.getClass() == keyGenericType ? keyCodec : null, key));
+                persistElement(mapEntryElement, valueGenericType, valueCodec, entry.getValue());
+                mapElement.addContent(mapEntryElement);
+            }
+        } else {
+            mapElement.setAttribute(ATTR_MAP_KEYTYPE, UNDETERMINED_TYPE);
+            mapElement.setAttribute(ATTR_MAP_VALUETYPE, UNDETERMINED_TYPE);
+        }
+        fieldElement.addContent(mapElement);
+    }
+
+    /**
+     * Collection element, converted with the codec resolved for the collection's
+     * element type unless the element happens to be of some other class.
+     */
+    private void persistElement(Element element, Class<?> genericType, ValueCodec<Object> codec, Object o) {
+        Class<?> type = o.getClass();
+        persistField(element, FieldPlan.kindOf(type), type == genericType ? codec : null, o);
+    }
+
+    private void setupClass(Object o, Element root) {
+        Element classElement = new Element(EL_CLASS);
+        classElement.setText(o.getClass().getName());
+        root.addContent(classElement);
+    }
+
+    public <T> T read(ClassPlan<T> plan, InputStream inputStream) {
+        Element root = getRootElement(inputStream);
+        checkClazz(plan.getType(), root);
+        T object = plan.newInstance();
+        fillInFields(plan, root, object);
+        return object;
+    }
+
+    public void readFields(ClassPlan<?> plan, InputStream inputStream, Projection projection, Object[] values) {
+        Element root = getRootElement(inputStream);
+        checkClazz(plan.getType(), root);
+        List<Element> fieldElements = (List<Element>) root.getChildren(EL_FIELD);
+        List<FieldPlan> fields = plan.getFields();
+        for (int i = 0, last = projection.getLast(); i <= last; i++) {
+            if (!projection.includes(i))
+                continue;
+            FieldPlan field = fields.get(i);
+            try {
+                values[i] = loadObject(fieldElements.get(i), field.getKind(), field.getType(), field.getCodec());
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private <T> void fillInFields(ClassPlan<T> plan, Element root, T loadedObject) {
+        List<Element> fieldElements = (List<Element>) root.getChildren(EL_FIELD);
+        Iterator<Element> fieldIterator = fieldElements.iterator();
+
+        for (FieldPlan field : plan.getFields()) {
+            Element fieldEl = fieldIterator.next();
+            try {
+                Object fieldObject = loadObject(fieldEl, field.getKind(), field.getType(), field.getCodec());
+                field.set(loadedObject, fieldObject);
+            } catch (ClassNotFoundException e) {
+                // Shouldn't ever happen
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private Object loadObject(Element fieldEl, FieldPlan.Kind kind, Class<?> type, ValueCodec<Object> codec) throws ClassNotFoundException {
+        switch (kind) {
+            case LIST:
+                return loadList(fieldEl);
+            case SET:
+                return loadSet(fieldEl);
+            case MAP:
+                return loadMap(fieldEl);
+            default:
+                return decode(codecs, codec, type, fieldEl.getText());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<?> loadList(Element fieldEl) throws ClassNotFoundException {
+        Element packedElement = fieldEl.getChild(EL_PACKED_LIST);
+        if (packedElement != null)
+            return (List<?>) loadPacked(packedElement, false);
+        Element listElement = fieldEl.getChild(EL_LIST);
+        String genericTypeString = listElement.getAttributeValue(ATTR_LIST_GENERICTYPE);
+        if (UNDETERMINED_TYPE.equals(genericTypeString))
+            return new LinkedList<Object>();
+
+        Class<?> listGenericType = Class.forName(genericTypeString);
+        // TODO BEWARE OF EMPTY COLLECTION!!!
+        List<Element> children = (List<Element>) listElement.getChildren(EL_COLLECTIONDATA);
+        List<Object> returnable = new ArrayList<Object>(children.size());
+        FieldPlan.Kind kind = FieldPlan.kindOf(listGenericType);
+        ValueCodec<Object> codec = codecs.find(listGenericType);
+        for (Element child : children)
+            returnable.add(loadObject(child, kind, listGenericType, codec));
+        return returnable;
+    }
+
+    private Set<?> loadSet(Element fieldEl) throws ClassNotFoundException {
+        Element packedElement = fieldEl.getChild(EL_PACKED_SET);
+        if (packedElement != null)
+            return (Set<?>) loadPacked(packedElement, true);
+        Element setElement = fieldEl.getChild(EL_SET);
+        String genericTypeString = setElement.getAttributeValue(ATTR_SET_GENERICTYPE);
+        if (UNDETERMINED_TYPE.equals(genericTypeString))
+            return new HashSet<Object>();
+
+        Class<?> setGenericType = Class.forName(genericTypeString);
+        // TODO BEWARE OF EMPTY COLLECTION!!!
+        List<Element> children = (List<Element>) setElement.getChildren(EL_COLLECTIONDATA);
+        Set<Object> returnable = new HashSet<Object>(children.size());
+        FieldPlan.Kind kind = FieldPlan.kindOf(setGenericType);
+        ValueCodec<Object> codec = codecs.find(setGenericType);
+        for (Element child : children)
+            returnable.add(loadObject(child, kind, setGenericType, codec));
+        return returnable;
+    }
+
+    private static Collection<Object> loadPacked(Element packedElement, boolean set) throws ClassNotFoundException {
+        int type = PackedArrays.typeOf(Class.forName(packedElement.getAttributeValue(ATTR_PACKED_TYPE)));
+        if (type == PackedArrays.NONE)
+            throw new IllegalStateException("Deserialization error: packed elements of unknown type");
+        ByteBuffer block = PackedArrays.fromBase64(packedElement.getText());
+        return PackedArrays.getAll(block, type, PackedArrays.length(type, block.remaining()), set);
+    }
+
+    private Map<?, ?> loadMap(Element fieldEl) throws ClassNotFoundException {
+        Element setElement = fieldEl.getChild(EL_MAP);
+        String keyGenericTypeString = setElement.getAttributeValue(ATTR_MAP_KEYTYPE);
+        if (UNDETERMINED_TYPE.equals(keyGenericTypeString))
+            return new HashMap<Object, Object>();
+
+        Class<?> keyGenericType = Class.forName(keyGenericTypeString);
+        Class<?> valueGenericType = Class.forName(setElement.getAttributeValue(ATTR_MAP_VALUETYPE));
+
+        // TODO BEWARE OF EMPTY COLLECTION!!!
+        List<Element> children = (List<Element>) setElement.getChildren(EL_MAPENTRY);
+        Map<Object, Object> returnable = new HashMap<Object, Object>(children.size());
+        FieldPlan.Kind valueKind = FieldPlan.kindOf(valueGenericType);
+        ValueCodec<Object> keyCodec = codecs.find(keyGenericType);
+        ValueCodec<Object> valueCodec = codecs.find(valueGenericType);
+        for (Element child : children) {
+            Object key = decode(codecs, keyCodec, keyGenericType, child.getAttributeValue(ATTR_MAP_ENTRYKEY));
+            Object value = loadObject(child, valueKind, valueGenericType, valueCodec);
+            returnable.put(key, value);
+        }
+        return returnable;
+
+    }
+
+    private void checkClazz(Class<?> dataClass, Element root) {
+        checkStoredClass(dataClass, root.getChild(EL_CLASS).getText());
+    }
+
+    private Element getRootElement(InputStream inputStream) {
+        try {
+            SAXBuilder b = new SAXBuilder();
+            Document document = b.build(inputStream);
+            return document.getRootElement();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (JDOMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.pleasantnightmare.dbase.reflection;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Streaming codec must stay interchangeable with the JDOM one, and
+ * must be the cheaper of the two.
+ */
+public class StreamingXmlRowCodecTest {
+    private static final int ROUNDS = 50;
+
+    private final CodecRegistry codecs = new CodecRegistry();
+    private final ClassPlan<Row> plan = ClassPlan.build(Row.class, codecs);
+    private final RowCodec jdom = new JdomRowCodec(codecs);
+    private final RowCodec streaming = new StreamingXmlRowCodec(codecs);
+
+    @Test
+    public void writesWhatJdomWrites() {
+        Row row = Row.sample(10);
+        assertEquals(new String(write(jdom, row)), new String(write(streaming, row)));
+    }
+
+    @Test
+    public void readsWhatJdomWrites() {
+        Row row = Row.sample(10);
+        assertEquals(row, streaming.read(plan, new ByteArrayInputStream(write(jdom, row))));
+        assertEquals(row, jdom.read(plan, new ByteArrayInputStream(write(streaming, row))));
+    }
+
+    @Test
+    public void emptyCollections() {
+        Row row = Row.sample(0);
+        assertEquals(row, streaming.read(plan, new ByteArrayInputStream(write(jdom, row))));
+    }
+
+    @Test
+    public void allocatesLessThanJdom() {
+        Row row = Row.sample(1000);
+        long jdomBytes = allocatedPerRoundTrip(jdom, row);
+        long streamingBytes = allocatedPerRoundTrip(streaming, row);
+        assertTrue("JDOM " + jdomBytes + ", streaming " + streamingBytes, streamingBytes < jdomBytes);
+    }
+
+    private long allocatedPerRoundTrip(RowCodec codec, Row row) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        // Warm up first, so class loading doesn't count
+        for (int i = 0; i < ROUNDS; i++)
+            codec.read(plan, new ByteArrayInputStream(write(codec, row)));
+
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ROUNDS; i++)
+            codec.read(plan, new ByteArrayInputStream(write(codec, row)));
+        return (threads.getThreadAllocatedBytes(thread) - before) / ROUNDS;
+    }
+
+    private byte[] write(RowCodec codec, Row row) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.write(plan, row, out);
+        return out.toByteArray();
+    }
+
+    private static class Row {
+        private long id;
+        private String text;
+        private boolean flag;
+        private List<Integer> numbers;
+        private Set<String> tags;
+        private Map<String, Double> weights;
+
+        static Row sample(int size) {
+            Row row = new Row();
+            row.id = 7;
+            row.text = "a\r\nb\t<&>\"'";
+            row.flag = true;
+            row.numbers = size == 0 ? new LinkedList<Integer>() : new ArrayList<Integer>();
+            row.tags = new HashSet<String>();
+            row.weights = new HashMap<String, Double>();
+            for (int i = 0; i < size; i++) {
+                row.numbers.add(i);
+                row.tags.add("tag " + i);
+                row.weights.put("key\t" + i + "\n", i / 2.0);
+            }
+            return row;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Row)) return false;
+            Row that = (Row) o;
+            return id == that.id && flag == that.flag && text.equals(that.text) && numbers.equals(that.numbers)
+                    && tags.equals(that.tags) && weights.equals(that.weights);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) id;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package skunkworks;
+
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Insert throughput of single-row {@link Table#insert} against
+ * {@link Table#insertAll}, for both layouts and sync policies. Not a test;
+ * run by hand.
+ */
+public class BatchInsertBenchmark {
+    private static final int ROWS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < 2; round++) {
+            for (StorageLayout layout : StorageLayout.values()) {
+                for (SyncPolicy sync : SyncPolicy.values()) {
+                    TableOptions options = new TableOptions().format(RowFormat.BINARY).layout(layout).sync(sync);
+                    run(options, false);
+                    run(options, true);
+                }
+            }
+        }
+    }
+
+    private static void run(TableOptions options, boolean batched) throws Exception {
+        File root = File.createTempFile("reflectiondao", "");
+        root.delete();
+        Table<BenchmarkRow> table = new Table<BenchmarkRow>(root, BenchmarkRow.class, options);
+        List<BenchmarkRow> rows = new ArrayList<BenchmarkRow>(ROWS);
+        for (int i = 0; i < ROWS; i++)
+            rows.add(new BenchmarkRow(i));
+
+        long start = System.nanoTime();
+        if (batched) {
+            table.insertAll(rows);
+        } else {
+            for (BenchmarkRow row : rows)
+                table.insert(row);
+        }
+        long elapsed = System.nanoTime() - start;
+        table.close();
+        delete(root);
+
+        System.out.printf("%-12s %-5s %-8s %9.0f rows/s%n", options.getLayout(), options.getSync(),
+                batched ? "batched" : "single", ROWS * 1e9 / elapsed);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    public static class BenchmarkRow extends DefaultIdentified {
+        private int number;
+        private String name;
+        private String description;
+
+        private BenchmarkRow() {
+        }
+
+        BenchmarkRow(int number) {
+            this.number = number;
+            this.name = "Row " + number;
+            this.description = "A somewhat longer description of row " + number;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package skunkworks;
+
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Full table scan throughput of {@link Table#all()} against
+ * {@link Table#all(ParallelismOptions)} at 1 to 16 threads, for both
+ * layouts. Not a test; run by hand, on a machine with that many cores.
+ */
+public class ParallelScanBenchmark {
+    private static final int ROWS = 20000;
+    private static final int[] THREADS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+        for (StorageLayout layout : StorageLayout.values()) {
+            File root = File.createTempFile("reflectiondao", "");
+            root.delete();
+            Table<BenchmarkRow> table = new Table<BenchmarkRow>(root, BenchmarkRow.class, new TableOptions().layout(layout));
+            List<BenchmarkRow> rows = new ArrayList<BenchmarkRow>(ROWS);
+            for (int i = 0; i < ROWS; i++)
+                rows.add(new BenchmarkRow(i));
+            table.insertAll(rows);
+
+            for (int round = 0; round < 2; round++) {
+                long start = System.nanoTime();
+                table.all();
+                report(layout + ", sequential", start);
+                for (int threads : THREADS) {
+                    start = System.nanoTime();
+                    table.all(new ParallelismOptions().threads(threads));
+                    report(layout + ", " + threads + " threads", start);
+                }
+            }
+            table.close();
+            delete(root);
+        }
+    }
+
+    private static void report(String name, long start) {
+        System.out.printf("%-26s %9.0f rows/s%n", name, ROWS * 1e9 / (System.nanoTime() - start));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    public static class BenchmarkRow extends DefaultIdentified {
+        private int number;
+        private String name;
+        private String description;
+
+        private BenchmarkRow() {
+        }
+
+        BenchmarkRow(int number) {
+            this.number = number;
+            this.name = "Row " + number;
+            this.description = "A somewhat longer description of row " + number;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package skunkworks;
+
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.ReflectionDAO;
+import org.pleasantnightmare.dbase.reflection.RowFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bytes per row and rows per second for each {@link RowFormat}.
+ * Not a test; run by hand.
+ */
+public class RowFormatBenchmark {
+    private static final int ROWS = 200000;
+
+    public static void main(String[] args) {
+        BenchmarkRow row = BenchmarkRow.sample();
+        for (RowFormat format : RowFormat.values()) {
+            run(row, format, ROWS / 4);
+            run(row, format, ROWS);
+        }
+    }
+
+    private static void run(BenchmarkRow row, RowFormat format, int rows) {
+        ReflectionDAO dao = ReflectionDAO.getInstance();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long bytes = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rows; i++) {
+            out.reset();
+            dao.serialize(row, out, format);
+            bytes += out.size();
+        }
+        long written = System.nanoTime();
+        byte[] stored = out.toByteArray();
+        for (int i = 0; i < rows; i++)
+            dao.deserialize(BenchmarkRow.class, new ByteArrayInputStream(stored));
+        long read = System.nanoTime();
+
+        System.out.printf("%-6s %5d bytes/row, write %8.0f rows/s, read %8.0f rows/s%n", format, bytes / rows,
+                rows / ((written - start) / 1e9), rows / ((read - written) / 1e9));
+    }
+
+    public static class BenchmarkRow extends DefaultIdentified {
+        private int number;
+        private long timestamp;
+        private double amount;
+        private boolean active;
+        private String name;
+        private String description;
+        private List<Integer> scores;
+
+        static BenchmarkRow sample() {
+            BenchmarkRow row = new BenchmarkRow();
+            row.setId(123456);
+            row.number = 42;
+            row.timestamp = 1306922400000L;
+            row.amount = 1234.5;
+            row.active = true;
+            row.name = "Some name";
+            row.description = "A somewhat longer description of the row";
+            row.scores = new ArrayList<Integer>();
+            for (int i = 0; i < 20; i++)
+                row.scores.add(i * 37);
+            return row;
+        }
+    }
+}
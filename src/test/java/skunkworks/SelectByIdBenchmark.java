@@ -0,0 +1,92 @@
+package skunkworks;
+
+import org.pleasantnightmare.dbase.DefaultIdentified;
+import org.pleasantnightmare.dbase.reflection.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Random {@link Table#selectById(long)} latency, with and without memory
+ * mapping and row cache, for both storage layouts. Not a test; run by hand.
+ */
+public class SelectByIdBenchmark {
+    private static final int ROWS = 20000;
+    private static final int SELECTS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        for (StorageLayout layout : StorageLayout.values()) {
+            File root = File.createTempFile("reflectiondao", "");
+            root.delete();
+            Table<BenchmarkRow> table = open(root, layout, false);
+            long[] ids = new long[ROWS];
+            for (int i = 0; i < ROWS; i++) {
+                BenchmarkRow row = new BenchmarkRow(i);
+                table.insert(row);
+                ids[i] = row.getId();
+            }
+            table.close();
+
+            for (boolean memoryMapped : new boolean[]{false, true, false, true}) {
+                table = open(root, layout, memoryMapped);
+                run(table, ids, layout + (memoryMapped ? ", mapped" : ", read"));
+                table.close();
+            }
+
+            TableOptions cached = new TableOptions().format(RowFormat.BINARY).layout(layout).cacheSize(ROWS);
+            table = new Table<BenchmarkRow>(root, BenchmarkRow.class, cached);
+            run(table, ids, layout + ", cached");
+            run(table, ids, layout + ", cached");
+            System.out.println(table.getCacheStats());
+            table.close();
+            delete(root);
+        }
+    }
+
+    private static Table<BenchmarkRow> open(File root, StorageLayout layout, boolean memoryMapped) {
+        TableOptions options = new TableOptions().format(RowFormat.BINARY).layout(layout).memoryMapped(memoryMapped);
+        return new Table<BenchmarkRow>(root, BenchmarkRow.class, options);
+    }
+
+    private static void run(Table<BenchmarkRow> table, long[] ids, String name) {
+        Random random = new Random(1);
+        long[] latencies = new long[SELECTS];
+        for (int i = 0; i < SELECTS; i++) {
+            long id = ids[random.nextInt(ids.length)];
+            long start = System.nanoTime();
+            table.selectById(id);
+            latencies[i] = System.nanoTime() - start;
+        }
+
+        long total = 0;
+        for (long latency : latencies)
+            total += latency;
+        Arrays.sort(latencies);
+        System.out.printf("%-22s avg %6.2f us, p50 %6.2f us, p99 %6.2f us%n", name, total / 1e3 / SELECTS,
+                latencies[SELECTS / 2] / 1e3, latencies[SELECTS * 99 / 100] / 1e3);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null)
+            for (File child : children)
+                delete(child);
+        file.delete();
+    }
+
+    public static class BenchmarkRow extends DefaultIdentified {
+        private int number;
+        private String name;
+        private String description;
+
+        private BenchmarkRow() {
+        }
+
+        BenchmarkRow(int number) {
+            this.number = number;
+            this.name = "Row " + number;
+            this.description = "A somewhat longer description of row " + number;
+        }
+    }
+}